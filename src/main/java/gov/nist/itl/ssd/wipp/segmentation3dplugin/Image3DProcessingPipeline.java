@@ -22,26 +22,40 @@ package gov.nist.itl.ssd.wipp.segmentation3dplugin;
 
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D.*;
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.BioFormatsUtils;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.MemoryBudget;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.StackReader;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.TiledOmeTiffWriter;
 import ij.ImagePlus;
 import ij.measure.Calibration;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
 
-import ij.process.ImageProcessor;
-import loci.formats.FormatException;
-import loci.formats.codec.CompressionType;
 import loci.formats.in.MetadataOptions;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.out.OMETiffWriter;
-import ome.xml.model.enums.PixelType;
-import ome.xml.model.primitives.PositiveInteger;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.BrickedSegmentation;
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.Image3DCropping;
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.Image3DSmoothing;
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.Segment3DImage;
@@ -55,7 +69,158 @@ public class Image3DProcessingPipeline {
 
 	private static final Logger LOGGER = Logger.getLogger(Image3DProcessingPipeline.class.getName());
 
+	private static final List<String> METHODS = Arrays.asList("MinError",
+			"MaxEntropy", "Otsu", "EGTSobel2D", "EGTSobel3D", "Triangle",
+			"DarkFrames");
+
+	/**
+	 * Output formats: 8-bit mask (0/255), 1-bit mask, connected component
+	 * labels (16-bit, or 32-bit for more than 65535 components)
+	 */
+	public static final List<String> OUTPUT_FORMATS = Collections
+			.unmodifiableList(Arrays.asList("Mask8", "Mask1", "Labels"));
+
+	/**
+	 * Compressions of the output tiles: LZW, or PackBits (run-length) for
+	 * sparse masks
+	 */
+	public static final List<String> OUTPUT_COMPRESSIONS = Collections
+			.unmodifiableList(Arrays.asList("LZW", "PackBits"));
+
+	/**
+	 * Structuring elements of the morphological operations: box (separable,
+	 * linear in the number of voxels whatever the radius), or ball scaled by
+	 * the voxel dimensions (distance transform based)
+	 */
+	public static final List<String> STRUCTURING_ELEMENTS = Collections
+			.unmodifiableList(Arrays.asList("Box", "Ball"));
+
+	private final ForkJoinPool pool;
+	
+	// bytes of the stacks processed at once, from their reading to their
+	// writing
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	
+	private String outputFormat = "Mask8";
+	private String outputCompression = "LZW";
+	private String structuringElement = "Box";
+	// number of bins of the histograms over the range of each stack, 0 for
+	// one bin per grey value of the 8 and 16-bit stacks
+	private int histogramBins = 0;
+	
+	// whether the stacks larger than the budget are segmented brick by
+	// brick, and where their masks are spilled
+	private boolean outOfCore = false;
+	private File scratchDirectory = new File(
+			System.getProperty("java.io.tmpdir"));
+
+	/**
+	 * Pipeline running on the common ForkJoinPool
+	 */
 	public Image3DProcessingPipeline() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool the pool running the parallel steps (smoothing, histogram,
+	 *        segmentation)
+	 */
+	public Image3DProcessingPipeline(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets the heap available for the stacks processed concurrently
+	 * (default: three quarters of the maximum heap). Each stack is admitted
+	 * with the peak footprint estimated from its header, so that as many
+	 * stacks as fit are processed at once. A stack larger than the budget
+	 * is processed alone, or brick by brick within the budget when it is
+	 * segmented out of core (see setOutOfCore).
+	 * 
+	 * @param memoryBudget the budget, in bytes
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @param outputFormat one of OUTPUT_FORMATS (default: Mask8)
+	 */
+	public void setOutputFormat(String outputFormat) {
+		if (!OUTPUT_FORMATS.contains(outputFormat)) {
+			throw new IllegalArgumentException("Unknown output format: "
+					+ outputFormat);
+		}
+		this.outputFormat = outputFormat;
+	}
+
+	/**
+	 * @param outputCompression one of OUTPUT_COMPRESSIONS (default: LZW)
+	 */
+	public void setOutputCompression(String outputCompression) {
+		if (!OUTPUT_COMPRESSIONS.contains(outputCompression)) {
+			throw new IllegalArgumentException("Unknown output compression: "
+					+ outputCompression);
+		}
+		this.outputCompression = outputCompression;
+	}
+
+	/**
+	 * The Ball is scaled by the voxel dimensions given to processImages, or
+	 * else by the physical sizes of the OME metadata of each stack
+	 * 
+	 * @param structuringElement one of STRUCTURING_ELEMENTS (default: Box)
+	 */
+	public void setStructuringElement(String structuringElement) {
+		if (!STRUCTURING_ELEMENTS.contains(structuringElement)) {
+			throw new IllegalArgumentException("Unknown structuring element: "
+					+ structuringElement);
+		}
+		this.structuringElement = structuringElement;
+	}
+
+	/**
+	 * Sets the resolution of the histograms of the histogram based methods.
+	 * By default (0), the histograms of the 8 and 16-bit stacks have one bin
+	 * per grey value, and those of the 32-bit stacks
+	 * Histogram3D.DEFAULT_NUMBER_OF_BINS bins over their range. Otherwise the
+	 * histograms of all the stacks have this number of bins over their range
+	 * (fewer for the 8 and 16-bit stacks, whose bins hold whole grey values),
+	 * and the thresholds are searched over these bins.
+	 * 
+	 * @param histogramBins the number of bins, 0 for the default
+	 */
+	public void setHistogramBins(int histogramBins) {
+		if (histogramBins < 0) {
+			throw new IllegalArgumentException(
+					"The number of bins must not be negative, not "
+							+ histogramBins);
+		}
+		this.histogramBins = histogramBins;
+	}
+
+	/**
+	 * Segments the stacks whose peak footprint exceeds the memory budget out
+	 * of core (default: false): the stack is read, thresholded and segmented
+	 * brick by brick within the budget, its intermediate masks being spilled
+	 * to scratch files. The stack is decoded and smoothed once, its voxels
+	 * being cached until it is thresholded: the scratch directory needs room
+	 * for the uncompressed stack plus two bit-packed masks. The EGT methods
+	 * need the whole stack, such stacks are still processed in memory.
+	 * 
+	 * @param outOfCore whether to segment the stacks larger than the budget
+	 *        out of core
+	 */
+	public void setOutOfCore(boolean outOfCore) {
+		this.outOfCore = outOfCore;
+	}
+
+	/**
+	 * @param scratchDirectory the directory of the scratch files of the
+	 *        out-of-core segmentation (default: java.io.tmpdir)
+	 */
+	public void setScratchDirectory(File scratchDirectory) {
+		this.scratchDirectory = scratchDirectory;
 	}
 
 	public void processImages(String inputImagesFolder,
@@ -105,186 +270,150 @@ public class Image3DProcessingPipeline {
 			LOGGER.info("voxelDimUnit: " + voxelDimUnit);
 			LOGGER.info("smoothImage: " + smoothImage);
 			LOGGER.info("morphologicalOperations: " + morphologicalOperations);
+			LOGGER.info("structuringElement: " + structuringElement);
+			LOGGER.info("histogramBins: " + histogramBins);
 			LOGGER.info("removeEdgeComponents: " + removeEdgeComponents);
 			LOGGER.info("fillHoles: " + fillHoles);
 			LOGGER.info("makeSingleComponent: " + makeSingleComponent);
+			LOGGER.info("threads: " + pool.getParallelism());
+			LOGGER.info("memoryBudget: " + memoryBudget);
+			LOGGER.info("outputFormat: " + outputFormat);
+			LOGGER.info("outputCompression: " + outputCompression);
+			LOGGER.info("outOfCore: " + outOfCore);
+			LOGGER.info("scratchDirectory: " + scratchDirectory);
 			LOGGER.info(images.length + " images to process");
 
 			// start time for benchmark
 			long startTime = System.currentTimeMillis();
 
-			String inputFilename = new String();
-			for(File image : images){
-				try {
-					// Open ImagePlus object from image sequence and set calibration
-					ImagePlus img3D = BioFormatsUtils.readImage(image.getAbsolutePath());
-					if(voxelDimUnit != null) {
-						Calibration imgCalibration = img3D.getCalibration();
-						imgCalibration.pixelWidth = voxelDimX;
-						imgCalibration.pixelHeight = voxelDimY;
-						imgCalibration.pixelDepth = voxelDimZ;
-						imgCalibration.setXUnit(voxelDimUnit);
-						imgCalibration.setYUnit(voxelDimUnit);
-						imgCalibration.setZUnit(voxelDimUnit);
-					}
-					
-					String shortImageName = image.getName();
-					LOGGER.info("Starting processing stack " + shortImageName
-							+ " at time: " + new Date().toString());
-					
-					// smooth image
-					if (smoothImage) {
-						LOGGER.info("Smoothing image...");
-						Image3DSmoothing.grayscaleFlatErosion(img3D, 1, 1, 0);
-						Image3DSmoothing.grayscaleFlatDilation(img3D, 1, 1, 0);
-					}
-
-					double optThresh = 0.0;
-					
-					// find opt Threshold (min error)
-					if(method.equals("MinError")) {
-						MinErrorThresh minErrorThresholding = new MinErrorThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = minErrorThresholding.findThresh(img3D,
-								thresholdMinimumValue, thresholdMaximumValue,
-								thresholdStep);
-						LOGGER.info("Optimal threshold is: " + optThresh);
-					}
+			if (!METHODS.contains(method)) {
+				LOGGER.severe("Thresholding method not found.");
+				return;
+			}
 
-					else if(method.equals("MaxEntropy")) {
-						MaxEntropyThresh maxEntropyThresholding = new MaxEntropyThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = maxEntropyThresholding.findThresh(img3D,
-								thresholdMinimumValue, thresholdMaximumValue,
-								thresholdStep);
-						LOGGER.info("Optimal threshold is: " + optThresh);
+			// the peak footprint of each stack is estimated from its header,
+			// and the largest stacks are scheduled first so that the small
+			// ones fill the budget at the end instead of leaving a long tail
+			List<PipelineStack> stacks = new ArrayList<>(images.length);
+			for (File image : images) {
+				try (StackReader header = new StackReader(image)) {
+					PipelineStack stack = new PipelineStack(image,
+							estimatePeakBytes(header, method, smoothImage,
+									morphologicalOperations,
+									removeEdgeComponents, fillHoles,
+									makeSingleComponent),
+							getOutputBytes(header));
+					if (outOfCore && stack.bytes > memoryBudget) {
+						if (header.isSupported() && !method.startsWith("EGT")) {
+							// segmented alone, brick by brick within the
+							// whole budget
+							stack.outOfCore = true;
+							stack.bytes = memoryBudget;
+						} else {
+							LOGGER.warning("Stack " + image.getName()
+									+ " can not be segmented out of core ("
+									+ (header.isSupported()
+											? "the EGT methods need the whole stack"
+											: "unsupported pixel type")
+									+ "), it will be processed in memory");
+						}
 					}
+					stacks.add(stack);
+				}
+			}
+			stacks.sort(Comparator.comparingLong(
+					(PipelineStack stack) -> stack.bytes).reversed());
 
-						// find opt Threshold (Otsu)
-					else if(method.equals("Otsu")) {
-						OtsuThresh otsuThresholding = new OtsuThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = otsuThresholding.findThresh(img3D,
-								thresholdMinimumValue, thresholdMaximumValue,
-								thresholdStep);
-						LOGGER.info("Optimal threshold from Otsu is: " + optThresh);
-					}
-					
-					// find opt Threshold (EGT 2DSobel)
-					else if(method.equals("EGTSobel2D")) {
-						EGTThresh egtThresholding = new EGTThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = egtThresholding.getEGTThrehold(img3D,
-								-13);
-
-						LOGGER.info("Optimal threshold from EGT is: " + optThresh);
-					}
-					
-					// find opt Threshold (EGT 3DSobel)
-					else if(method.equals("EGTSobel3D")) {
-						EGTThresh egtThresholding = new EGTThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = egtThresholding.findThresh(img3D,
-								-13, true);
-
-						LOGGER.info("Optimal threshold from EGT is: " + optThresh);
-					}
-					
-					// find opt Threshold (Triangle)
-					else if(method.equals("Triangle")) {
-						TriangleThresh triangleThresholding = new TriangleThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = triangleThresholding.findThresh(img3D);
-
-						LOGGER.info("Optimal threshold from Triangle is: " + optThresh);
-					}
-					
-					// find opt Threshold (DarkFrames)
-					else if(method.equals("DarkFrames")) {
-						OtsuThresh otsuThresholding = new OtsuThresh();
-						LOGGER.info("Looking for optimal threshold...");
-						optThresh = otsuThresholding.findThresh(img3D,
-								thresholdMinimumValue, thresholdMaximumValue,
-								thresholdStep);
-						LOGGER.info("Optimal threshold from Otsu is: " + optThresh);
+			// the stacks are read by a reader thread once their peak
+			// footprint fits in the memory budget, segmented concurrently,
+			// and written by a writer thread. A stack larger than the budget
+			// waits for the others and is processed alone (and read, segmented
+			// and written brick by brick when it is segmented out of core).
+			MemoryBudget budget = new MemoryBudget(memoryBudget);
+			BlockingQueue<PipelineStack> readQueue = new LinkedBlockingQueue<>();
+			BlockingQueue<PipelineStack> writeQueue = new LinkedBlockingQueue<>();
+			AtomicReference<Exception> failure = new AtomicReference<>();
+			ExecutorService ioExecutor = Executors.newFixedThreadPool(2);
+			ExecutorService computeExecutor = Executors.newFixedThreadPool(
+					pool.getParallelism());
+			TiledOmeTiffWriter imageWriter = new TiledOmeTiffWriter(tileSize,
+					outputCompression.equals("PackBits")
+							? TiledOmeTiffWriter.PACKBITS_COMPRESSION
+							: TiledOmeTiffWriter.LZW_COMPRESSION, pool);
+			OutputReport report = new OutputReport(outputFormat + "/"
+					+ outputCompression);
+			ioExecutor.submit(() -> readStacks(stacks, budget, readQueue));
+			Future<?> writing = ioExecutor.submit(() -> {
+				writeStacks(outputFolder, imageWriter,
+						outputFormat.equals("Mask1"), report, budget,
+						writeQueue, failure);
+				return null;
+			});
+			
+			try {
+				for (PipelineStack stack = readQueue.take(); stack != PipelineStack.END;
+						stack = readQueue.take()) {
+					if (stack.failure != null) {
+						throw stack.failure;
 					}
-					else {
-						LOGGER.severe("Thresholding method not found.");
-						return;
+					if (failure.get() != null) {
+						throw failure.get();
 					}
-						
-					
-//					// remove useless frames at beginning and end of stack
-//					LOGGER.info("Removing useless frames at beginning and end of stack...");
-//					Image3DCropping image3DCropping = new Image3DCropping();
-//					int[] framesRange = image3DCropping.removeMeaninglessFrames16bits(img3D, (int)optThresh);
-//					LOGGER.info("Starting frame is " + framesRange[0] + " ending frame is " + framesRange[1]);
-//					double meanBlackFrames = image3DCropping.getMeanBKGFrames();
-//					double stdevBlackFrames = image3DCropping.getStdevBKGFrames();
-//					LOGGER.info("Mean intensity of black frames is " + meanBlackFrames + ", stdev intensity of black frames is " + stdevBlackFrames);
-//
-//					// find opt Threshold (DarkFrames)
-//					if(method.equals("DarkFrames")) {
-//						double thresholdFromBlackFrames = meanBlackFrames + 4.0 * stdevBlackFrames;
-//						if(thresholdFromBlackFrames > 0)
-//							optThresh = thresholdFromBlackFrames;
-//						LOGGER.info("Optimal threshold from black frames is: " + optThresh);
-//					}
-					
-					// create segment3DImage object with the image
-					Segment3DImage segment3DImage = new Segment3DImage(img3D);
-					// try to call GC to free unused memory
-					img3D = null;
-					System.gc();
-
-					// segment image with threshold
-					LOGGER.info("Segmenting image (T-E-L)...");
-					ImagePlus segmentedImage = segment3DImage
-							.segmentImage(
-									(int) optThresh,
-									morphologicalOperations,
-									3,
-									removeEdgeComponents,
-									fillHoles,
-									makeSingleComponent);
-					
-					// save segmented image in a FITS file
-					//Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", segmentedImage.);
-					//Writing the output tiled tiff
-					OMEXMLMetadata metadata = BioFormatsUtils.getMetadata(image);
-					File outputFile = new File(outputFolder, image.getName());
-					try (OMETiffWriter imageWriter = new OMETiffWriter()) {
-						metadata.setPixelsType(PixelType.UINT8, 0);
-						metadata.setPixelsSignificantBits(PositiveInteger.valueOf("8"), 0);
-						imageWriter.setMetadataRetrieve(metadata);
-						imageWriter.setTileSizeX(tileSize);
-						imageWriter.setTileSizeY(tileSize);
-						imageWriter.setInterleaved(metadata.getPixelsInterleaved(0));
-						imageWriter.setCompression(CompressionType.LZW.getCompression());
-						imageWriter.setId(outputFile.getPath());
-						for(int z = 1; z <= segmentedImage.getImageStackSize(); ++ z) {
-							ImageProcessor imgProc = segmentedImage.getImageStack().getProcessor(z);
-							//metadata.setPixelsType(PixelType.UINT8, z-1);
-							//metadata.setPixelsSignificantBits(PositiveInteger.valueOf("8"), z-1);
-							imageWriter.saveBytes(z-1, (byte[]) imgProc.getPixels());
+					PipelineStack admitted = stack;
+					computeExecutor.execute(() -> {
+						try {
+							if (admitted.outOfCore) {
+								// written as its planes are produced
+								segmentStackOutOfCore(admitted, outputFolder,
+										imageWriter,
+										outputFormat.equals("Mask1"), report,
+										thresholdMinimumValue,
+										thresholdMaximumValue, thresholdStep,
+										voxelDimX, voxelDimY, voxelDimZ,
+										voxelDimUnit, method, smoothImage,
+										morphologicalOperations,
+										removeEdgeComponents, fillHoles,
+										makeSingleComponent);
+								budget.release(admitted.bytes);
+							} else {
+								segmentStack(admitted, budget,
+										thresholdMinimumValue,
+										thresholdMaximumValue, thresholdStep,
+										voxelDimX, voxelDimY, voxelDimZ,
+										voxelDimUnit, method, smoothImage,
+										morphologicalOperations,
+										removeEdgeComponents, fillHoles,
+										makeSingleComponent);
+								writeQueue.put(admitted);
+							}
+						} catch (Exception | OutOfMemoryError e) {
+							LOGGER.severe("Unable to segment "
+									+ admitted.image.getName() + ": " + e);
+							failure.compareAndSet(null, e instanceof Exception
+									? (Exception) e : new RuntimeException(e));
+							admitted.img3D = null;
+							budget.release(admitted.bytes);
 						}
-
-					} catch (FormatException | IOException ex) {
-						throw new RuntimeException("Unable to write file "
-								+ outputFile + ": " + ex.getMessage(), ex);
-					}
-
-					// get number of foreground voxels after segmentation
-					long frgVoxelCount = segment3DImage.getFRGCount();
-					LOGGER.info("Foreground voxel count after segmentation: "
-							+ frgVoxelCount);
-
-				} catch (Exception e) {
-					LOGGER.severe(e.getMessage());
-					throw new RuntimeException(e);
+					});
 				}
-
+				computeExecutor.shutdown();
+				computeExecutor.awaitTermination(Long.MAX_VALUE,
+						TimeUnit.MILLISECONDS);
+				writeQueue.put(PipelineStack.END);
+				writing.get();
+			} finally {
+				// stops the reader, the segmentations and the writer on
+				// failure (the memory reserved by the stacks in flight is not
+				// needed anymore)
+				computeExecutor.shutdownNow();
+				writeQueue.offer(PipelineStack.END);
+				ioExecutor.shutdownNow();
 			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+
+			LOGGER.info(report.toString());
 
 			// end time for benchmark
 			long endTime = System.currentTimeMillis();
@@ -298,4 +427,581 @@ public class Image3DProcessingPipeline {
 		}
 	}
 
+	/**
+	 * Estimates the peak heap footprint of a stack from its header: while
+	 * it is loaded (voxels, mask and per-thread planes of the smoothing and
+	 * gradient filters), then while it is segmented (mask, labels and
+	 * distances of the selected stages, output stack)
+	 */
+	private long estimatePeakBytes(StackReader header, String method,
+			boolean smoothImage, int morphologicalOperations,
+			boolean removeEdgeComponents, boolean fillHoles,
+			boolean makeSingleComponent) {
+		long sliceSize = (long) header.getXSize() * header.getYSize();
+		long voxels = sliceSize * header.getZSize();
+		long maskBytes = voxels / 8 + sliceSize;
+		int slabs = Math.max(1, Math.min(pool.getParallelism(),
+				header.getZSize()));
+		
+		long planes = 0;
+		if (smoothImage) {
+			// ring, running min/max buffers and halos of each slab
+			planes = 9;
+		}
+		if (method.startsWith("EGT")) {
+			// rolling Sobel windows and gradient planes of each slab
+			planes = Math.max(planes, 12);
+		}
+		long loadBytes = header.getNumberOfBytes() + maskBytes
+				+ planes * Float.BYTES * sliceSize * slabs;
+		
+		// the input is released once thresholded into the mask
+		long segmentationBytes = 2 * maskBytes + voxels;
+		if (removeEdgeComponents || fillHoles || makeSingleComponent) {
+			segmentationBytes += Integer.BYTES * voxels;
+		}
+		if (morphologicalOperations != 0
+				&& structuringElement.equals("Ball")) {
+			// z distances of the distance transform
+			segmentationBytes += voxels;
+		}
+		if (outputFormat.equals("Labels")) {
+			// labels of the final mask, then the label stack
+			segmentationBytes += Integer.BYTES * voxels
+					+ getOutputBytes(header);
+		}
+		return Math.max(loadBytes, segmentationBytes);
+	}
+	
+	/**
+	 * @return the Segment3DImage constant of the structuring element
+	 */
+	private int getStructuringElement() {
+		return structuringElement.equals("Ball")
+				? Segment3DImage.BALL_STRUCTURING_ELEMENT
+				: Segment3DImage.BOX_STRUCTURING_ELEMENT;
+	}
+	
+	/**
+	 * @return the bytes of the output stack: one per voxel for the masks
+	 *         (packed while written for Mask1), up to 4 for the labels
+	 */
+	private long getOutputBytes(StackReader header) {
+		long voxels = (long) header.getXSize() * header.getYSize()
+				* header.getZSize();
+		return outputFormat.equals("Labels") ? Float.BYTES * voxels : voxels;
+	}
+	
+	/**
+	 * Reader stage: reads the stacks with their metadata, once their peak
+	 * footprint has been reserved, then queues them for the segmentation
+	 * (the stacks segmented out of core are read by their segmentation)
+	 */
+	private static void readStacks(List<PipelineStack> stacks,
+			MemoryBudget budget, BlockingQueue<PipelineStack> readQueue) {
+		try {
+			for (PipelineStack stack : stacks) {
+				File image = stack.image;
+				if (stack.bytes > budget.getCapacity()) {
+					LOGGER.info("Stack " + image.getName() + " ("
+							+ stack.bytes + " bytes) exceeds the memory "
+							+ "budget, it will be processed alone");
+				}
+				budget.acquire(stack.bytes);
+				if (stack.outOfCore) {
+					readQueue.put(stack);
+					continue;
+				}
+				try (StackReader stackReader = new StackReader(image)) {
+					// Read the planes and the OME metadata in a single open
+					stack.img3D = stackReader.isSupported()
+							? stackReader.readImage(image.getName())
+							: BioFormatsUtils.readImage(image.getAbsolutePath());
+					if (stack.img3D == null) {
+						throw new IOException("Cannot open image " + image);
+					}
+					stack.metadata = stackReader.getMetadata();
+				} catch (IOException | RuntimeException e) {
+					budget.release(stack.bytes);
+					throw e;
+				}
+				readQueue.put(stack);
+			}
+			readQueue.put(PipelineStack.END);
+		} catch (InterruptedException e) {
+			// the pipeline stopped
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			readQueue.offer(PipelineStack.failed(e));
+		}
+	}
+	
+	/**
+	 * Compute stage: smoothing, thresholding and segmentation of a stack.
+	 * Once segmented, the memory reserved for the stack is reduced to its
+	 * output stack.
+	 */
+	private void segmentStack(PipelineStack stack, MemoryBudget budget,
+			double thresholdMinimumValue,
+			double thresholdMaximumValue, double thresholdStep,
+			double voxelDimX, double voxelDimY, double voxelDimZ,
+			String voxelDimUnit, String method, boolean smoothImage,
+			int morphologicalOperations, boolean removeEdgeComponents,
+			boolean fillHoles, boolean makeSingleComponent) {
+		
+		ImagePlus img3D = stack.img3D;
+		if(voxelDimUnit != null) {
+			Calibration imgCalibration = img3D.getCalibration();
+			imgCalibration.pixelWidth = voxelDimX;
+			imgCalibration.pixelHeight = voxelDimY;
+			imgCalibration.pixelDepth = voxelDimZ;
+			imgCalibration.setXUnit(voxelDimUnit);
+			imgCalibration.setYUnit(voxelDimUnit);
+			imgCalibration.setZUnit(voxelDimUnit);
+		}
+		
+		String shortImageName = stack.image.getName();
+		LOGGER.info("Starting processing stack " + shortImageName
+				+ " at time: " + new Date().toString());
+		
+		// smooth image
+		if (smoothImage) {
+			LOGGER.info("Smoothing image...");
+			Image3DSmoothing.grayscaleFlatOpening(img3D, 1, 1, 0, pool);
+		}
+
+		double optThresh = 0.0;
+		
+		// find opt Threshold (EGT 2DSobel)
+		if(method.equals("EGTSobel2D")) {
+			EGTThresh egtThresholding = new EGTThresh(pool);
+			LOGGER.info("Looking for optimal threshold...");
+			optThresh = egtThresholding.getEGTThrehold(img3D,
+					-13);
+
+			LOGGER.info("Optimal threshold from EGT is: " + optThresh);
+		}
+		
+		// find opt Threshold (EGT 3DSobel)
+		else if(method.equals("EGTSobel3D")) {
+			EGTThresh egtThresholding = new EGTThresh(pool);
+			LOGGER.info("Looking for optimal threshold...");
+			optThresh = egtThresholding.findThresh(img3D,
+					-13, true);
+
+			LOGGER.info("Optimal threshold from EGT is: " + optThresh);
+		}
+		
+		// histogram based methods
+		else {
+			Histogram3D histogram = histogramBins > 0
+					? Histogram3D.computeAdaptive(img3D, histogramBins, pool)
+					: Histogram3D.compute(img3D, pool);
+			optThresh = findHistogramThreshold(method, histogram,
+					isAdaptive(img3D.getBitDepth()), thresholdMinimumValue,
+					thresholdMaximumValue, thresholdStep);
+		}
+			
+		
+//		// remove useless frames at beginning and end of stack
+//		LOGGER.info("Removing useless frames at beginning and end of stack...");
+//		Image3DCropping image3DCropping = new Image3DCropping();
+//		int[] framesRange = image3DCropping.removeMeaninglessFrames16bits(img3D, (int)optThresh);
+//		LOGGER.info("Starting frame is " + framesRange[0] + " ending frame is " + framesRange[1]);
+//		double meanBlackFrames = image3DCropping.getMeanBKGFrames();
+//		double stdevBlackFrames = image3DCropping.getStdevBKGFrames();
+//		LOGGER.info("Mean intensity of black frames is " + meanBlackFrames + ", stdev intensity of black frames is " + stdevBlackFrames);
+//
+//		// find opt Threshold (DarkFrames)
+//		if(method.equals("DarkFrames")) {
+//			double thresholdFromBlackFrames = meanBlackFrames + 4.0 * stdevBlackFrames;
+//			if(thresholdFromBlackFrames > 0)
+//				optThresh = thresholdFromBlackFrames;
+//			LOGGER.info("Optimal threshold from black frames is: " + optThresh);
+//		}
+		
+		// create segment3DImage object with the image, thresholded
+		// while it is loaded
+		LOGGER.info("Segmenting image (T-E-L)...");
+		Segment3DImage segment3DImage = new Segment3DImage(img3D,
+				optThresh, pool);
+		segment3DImage.setStructuringElement(getStructuringElement());
+		double[] voxelDimensions = getVoxelDimensions(stack.metadata,
+				voxelDimX, voxelDimY, voxelDimZ, voxelDimUnit);
+		if(voxelDimensions != null) {
+			segment3DImage.setVoxelDimensions(voxelDimensions[0],
+					voxelDimensions[1], voxelDimensions[2]);
+		}
+		// the mask replaces the input
+		img3D = null;
+		stack.img3D = null;
+
+		// segment thresholded image, into a mask or into the labels of its
+		// connected components
+		ImagePlus segmentedImage = outputFormat.equals("Labels")
+				? segment3DImage.segmentThresholdedImageToLabels(
+						morphologicalOperations,
+						3,
+						removeEdgeComponents,
+						fillHoles,
+						makeSingleComponent)
+				: segment3DImage.segmentThresholdedImage(
+						morphologicalOperations,
+						3,
+						removeEdgeComponents,
+						fillHoles,
+						makeSingleComponent);
+		stack.segmentedImage = segmentedImage;
+		stack.foregroundCount = segment3DImage.getFRGCount();
+		
+		// only the output stack stays reserved until it is written
+		long outputBytes = Math.min(stack.bytes, stack.outputBytes);
+		budget.release(stack.bytes - outputBytes);
+		stack.bytes = outputBytes;
+	}
+	
+	/**
+	 * Compute stage of a stack segmented out of core: the stack is read,
+	 * smoothed and thresholded brick by brick within the memory reserved for
+	 * it (the passes finding the threshold and the thresholding read the
+	 * smoothed voxels cached by the first one), its mask is kept in scratch
+	 * files while it is segmented, and the output planes are written as they
+	 * are produced.
+	 */
+	private void segmentStackOutOfCore(PipelineStack stack, File outputFolder,
+			TiledOmeTiffWriter imageWriter, boolean bilevel,
+			OutputReport report, double thresholdMinimumValue,
+			double thresholdMaximumValue, double thresholdStep,
+			double voxelDimX, double voxelDimY, double voxelDimZ,
+			String voxelDimUnit, String method, boolean smoothImage,
+			int morphologicalOperations, boolean removeEdgeComponents,
+			boolean fillHoles, boolean makeSingleComponent) throws IOException {
+		
+		String shortImageName = stack.image.getName();
+		LOGGER.info("Starting processing stack " + shortImageName
+				+ " out of core at time: " + new Date().toString());
+		
+		try (StackReader stackReader = new StackReader(stack.image);
+				BrickedSegmentation bricked = new BrickedSegmentation(
+						stackReader,
+						BrickedSegmentation.getBrickDepth(stack.bytes,
+								stackReader),
+						scratchDirectory, pool)) {
+			LOGGER.info(bricked.getNumberOfBricks() + " bricks of "
+					+ bricked.getBrickDepth() + " slices");
+			
+			// smooth image while it is read
+			if (smoothImage) {
+				LOGGER.info("Smoothing image brick by brick");
+				bricked.setSmoothing(1, 1, 0);
+			}
+			bricked.setStructuringElement(getStructuringElement());
+			double[] voxelDimensions = getVoxelDimensions(
+					stackReader.getMetadata(), voxelDimX, voxelDimY,
+					voxelDimZ, voxelDimUnit);
+			if(voxelDimensions != null) {
+				bricked.setVoxelDimensions(voxelDimensions[0],
+						voxelDimensions[1], voxelDimensions[2]);
+			}
+			
+			double optThresh = findHistogramThreshold(method,
+					computeHistogram(bricked, stackReader.getBitDepth()),
+					isAdaptive(stackReader.getBitDepth()), thresholdMinimumValue,
+					thresholdMaximumValue, thresholdStep);
+			
+			LOGGER.info("Segmenting image (T-E-L) brick by brick...");
+			bricked.thresholdStack(optThresh);
+			bricked.segmentThresholdedStack(morphologicalOperations, 3,
+					removeEdgeComponents, fillHoles, makeSingleComponent);
+			
+			IntFunction<Object> planes = outputFormat.equals("Labels")
+					? bricked.getLabelPlanes() : bricked.getMaskPlanes();
+			File outputFile = new File(outputFolder, shortImageName);
+			int xSize = stackReader.getXSize();
+			int ySize = stackReader.getYSize();
+			int zSize = stackReader.getZSize();
+			long voxels = (long) xSize * ySize * zSize;
+			long start = System.nanoTime();
+			long bytes;
+			try {
+				bytes = imageWriter.write(outputFile,
+						stackReader.getMetadata(), xSize, ySize, zSize,
+						planes, bilevel);
+			} catch (IOException | UncheckedIOException ex) {
+				throw new RuntimeException("Unable to write file "
+						+ outputFile + ": " + ex.getMessage(), ex);
+			}
+			long nanos = System.nanoTime() - start;
+			report.add(voxels, bytes, nanos);
+			LOGGER.info("Wrote " + outputFile.getName() + ": "
+					+ OutputReport.describe(voxels, bytes, nanos));
+			
+			// get number of foreground voxels after segmentation
+			LOGGER.info("Foreground voxel count after segmentation of "
+					+ shortImageName + ": " + bricked.getFRGCount());
+		}
+	}
+	
+	/**
+	 * @return whether the histograms of the stacks of a bit depth span their
+	 *         range, rather than one bin per grey value
+	 */
+	private boolean isAdaptive(int bitDepth) {
+		return bitDepth == 32 || histogramBins > 0;
+	}
+	
+	/**
+	 * @return the histogram of a stack accumulated brick by brick, with the
+	 *         bins of Histogram3D.compute(ImagePlus) or computeAdaptive: the
+	 *         range of the stack is found by a first pass over the bricks
+	 */
+	private Histogram3D computeHistogram(BrickedSegmentation bricked,
+			int bitDepth) throws IOException {
+		double[] range = { 0.0, 0.0 };
+		if (isAdaptive(bitDepth)) {
+			range[0] = Double.POSITIVE_INFINITY;
+			range[1] = Double.NEGATIVE_INFINITY;
+			bricked.forEachBrick(voxels -> {
+				double[] brickRange = Histogram3D.computeRange(voxels, pool);
+				range[0] = Math.min(range[0], brickRange[0]);
+				range[1] = Math.max(range[1], brickRange[1]);
+			});
+		}
+		Histogram3D[] histogram = new Histogram3D[1];
+		bricked.forEachBrick(voxels -> {
+			Histogram3D brickHistogram = histogramBins > 0
+					? Histogram3D.computeAdaptive(voxels, range[0], range[1],
+							histogramBins, pool)
+					: Histogram3D.compute(voxels, range[0], range[1], pool);
+			histogram[0] = histogram[0] == null ? brickHistogram
+					: histogram[0].plus(brickHistogram);
+		});
+		return histogram[0];
+	}
+	
+	/**
+	 * Finds the threshold of a histogram based method
+	 * 
+	 * @param adaptive whether the histogram spans the range of the image (a
+	 *        32-bit image, or a number of bins set), whose thresholds are
+	 *        searched over the bins of the histogram
+	 */
+	private static double findHistogramThreshold(String method,
+			Histogram3D histogram, boolean adaptive,
+			double thresholdMinimumValue, double thresholdMaximumValue,
+			double thresholdStep) {
+		
+		double minThresh = thresholdMinimumValue;
+		double maxThresh = thresholdMaximumValue;
+		double threshStep = thresholdStep;
+		if(adaptive) {
+			// the threshold range is meant for one bin per grey
+			// value, sweep the bins of the histogram instead
+			minThresh = histogram.toThreshold(0);
+			maxThresh = histogram.toThreshold(
+					histogram.getNumberOfBins() - 2);
+			threshStep = histogram.getBinWidth();
+			LOGGER.info("Adaptive histogram, thresholds from " + minThresh
+					+ " to " + maxThresh + " by " + threshStep);
+		}
+		
+		HistogramThresholder thresholder = getHistogramThresholder(method);
+		LOGGER.info("Looking for optimal threshold...");
+		double optThresh = thresholder.findThresh(histogram, minThresh,
+				maxThresh, threshStep);
+		LOGGER.info("Optimal threshold from " + method + " is: " + optThresh);
+		return optThresh;
+	}
+	
+	/**
+	 * @return the histogram thresholding method, DarkFrames falling back to
+	 *         Otsu
+	 */
+	private static HistogramThresholder getHistogramThresholder(
+			String method) {
+		switch (method) {
+		case "MinError":
+			return new MinErrorThresh();
+		case "MaxEntropy":
+			return new MaxEntropyThresh();
+		case "Otsu":
+		case "DarkFrames":
+			return new OtsuThresh();
+		case "Triangle":
+			return new TriangleThresh();
+		default:
+			throw new IllegalArgumentException(
+					"Thresholding method not found: " + method);
+		}
+	}
+	
+	/**
+	 * @return the voxel dimensions scaling the Ball structuring element: the
+	 *         ones given to processImages, or else the physical sizes of the
+	 *         OME metadata in micrometers, null if some of them are unknown
+	 */
+	static double[] getVoxelDimensions(OMEXMLMetadata metadata,
+			double voxelDimX, double voxelDimY, double voxelDimZ,
+			String voxelDimUnit) {
+		if(voxelDimUnit != null && voxelDimX > 0 && voxelDimY > 0
+				&& voxelDimZ > 0) {
+			return new double[] { voxelDimX, voxelDimY, voxelDimZ };
+		}
+		if (metadata == null || metadata.getImageCount() == 0) {
+			return null;
+		}
+		double[] physicalSizes = {
+				toMicrometers(metadata.getPixelsPhysicalSizeX(0)),
+				toMicrometers(metadata.getPixelsPhysicalSizeY(0)),
+				toMicrometers(metadata.getPixelsPhysicalSizeZ(0)) };
+		for (double physicalSize : physicalSizes) {
+			if (!(physicalSize > 0)) {
+				return null;
+			}
+		}
+		LOGGER.info("Voxel dimensions from the metadata: " + physicalSizes[0]
+				+ " x " + physicalSizes[1] + " x " + physicalSizes[2]
+				+ " micrometers");
+		return physicalSizes;
+	}
+	
+	/**
+	 * @return the length in micrometers, NaN if it is unknown
+	 */
+	private static double toMicrometers(Length length) {
+		Number value = length == null ? null
+				: length.value(UNITS.MICROMETER);
+		return value == null ? Double.NaN : value.doubleValue();
+	}
+	
+	/**
+	 * Writer stage: writes the segmented stacks in the order they complete
+	 * and releases their memory. After a failure, the remaining stacks are
+	 * only released, until the end of the queue.
+	 */
+	private static void writeStacks(File outputFolder,
+			TiledOmeTiffWriter imageWriter, boolean bilevel,
+			OutputReport report, MemoryBudget budget,
+			BlockingQueue<PipelineStack> writeQueue,
+			AtomicReference<Exception> failure) throws InterruptedException {
+		for (PipelineStack stack = writeQueue.take(); stack != PipelineStack.END;
+				stack = writeQueue.take()) {
+			try {
+				if (failure.get() == null) {
+					writeStack(stack, outputFolder, imageWriter, bilevel,
+							report);
+				}
+			} catch (Exception e) {
+				LOGGER.severe(e.getMessage());
+				failure.compareAndSet(null, e);
+			} finally {
+				stack.segmentedImage = null;
+				budget.release(stack.bytes);
+			}
+		}
+	}
+	
+	private static void writeStack(PipelineStack stack, File outputFolder,
+		TiledOmeTiffWriter imageWriter, boolean bilevel, OutputReport report) {
+		// save segmented image in a FITS file
+		//Fits3DWriter.write(outputDirectory + File.separatorChar + shortImageName + ".fits", stack.segmentedImage.);
+		//Writing the output tiled tiff, the tiles being compressed in parallel
+		//(the writer sets the pixel type of the metadata)
+		File outputFile = new File(outputFolder, stack.image.getName());
+		long voxels = (long) stack.segmentedImage.getWidth()
+				* stack.segmentedImage.getHeight()
+				* stack.segmentedImage.getImageStackSize();
+		long start = System.nanoTime();
+		long bytes;
+		try {
+			bytes = imageWriter.write(outputFile, stack.metadata,
+					stack.segmentedImage.getImageStack(), bilevel);
+		} catch (IOException ex) {
+			throw new RuntimeException("Unable to write file "
+					+ outputFile + ": " + ex.getMessage(), ex);
+		}
+		long nanos = System.nanoTime() - start;
+		report.add(voxels, bytes, nanos);
+		LOGGER.info("Wrote " + outputFile.getName() + ": "
+				+ OutputReport.describe(voxels, bytes, nanos));
+
+		// get number of foreground voxels after segmentation
+		LOGGER.info("Foreground voxel count after segmentation of "
+				+ stack.image.getName() + ": " + stack.foregroundCount);
+	}
+	
+	/**
+	 * Size and throughput of the stacks written in an output format, to
+	 * compare the formats on the same images
+	 */
+	private static final class OutputReport {
+		
+		private final String format;
+		private int numberOfStacks;
+		private long voxels;
+		private long bytes;
+		private long nanos;
+		
+		OutputReport(String format) {
+			this.format = format;
+		}
+		
+		synchronized void add(long stackVoxels, long stackBytes,
+				long stackNanos) {
+			numberOfStacks++;
+			voxels += stackVoxels;
+			bytes += stackBytes;
+			nanos += stackNanos;
+		}
+		
+		static String describe(long voxels, long bytes, long nanos) {
+			return bytes + " bytes, "
+					+ String.format("%.3f", 8.0 * bytes / Math.max(voxels, 1))
+					+ " bits per voxel, "
+					+ String.format("%.1f", 1000.0 * voxels / Math.max(nanos, 1))
+					+ " Mvoxels/s";
+		}
+		
+		@Override
+		public synchronized String toString() {
+			return "Output " + format + ": " + numberOfStacks + " stacks, "
+					+ describe(voxels, bytes, nanos);
+		}
+	}
+	
+	/**
+	 * A stack going through the stages of the pipeline
+	 */
+	private static final class PipelineStack {
+		
+		// end of a queue
+		static final PipelineStack END = new PipelineStack(null, 0, 0);
+		
+		final File image;
+		// bytes of the segmented stack
+		final long outputBytes;
+		OMEXMLMetadata metadata;
+		// input stack, until it is segmented
+		ImagePlus img3D;
+		ImagePlus segmentedImage;
+		long foregroundCount;
+		// segmented brick by brick, from its file to its output file
+		boolean outOfCore;
+		// memory reserved for the stack: its estimated peak footprint, then
+		// its output once segmented
+		long bytes;
+		Exception failure;
+		
+		PipelineStack(File image, long bytes, long outputBytes) {
+			this.image = image;
+			this.bytes = bytes;
+			this.outputBytes = outputBytes;
+		}
+		
+		static PipelineStack failed(Exception failure) {
+			PipelineStack stack = new PipelineStack(null, 0, 0);
+			stack.failure = failure;
+			return stack;
+		}
+	}
 }
@@ -12,6 +12,7 @@
 package gov.nist.itl.ssd.wipp.segmentation3dplugin;
 
 import java.io.File;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -56,7 +57,7 @@ public class Main {
         options.addOption(outputOption);
         
         Option tileSizeOption = new Option("ts", "tileSize", true,
-                "Tile size (default 1024).");
+                "Tile size of the output images, a multiple of 16 (default 1024).");
         tileSizeOption.setType(PatternOptionBuilder.NUMBER_VALUE);
         options.addOption(tileSizeOption);
 
@@ -65,6 +66,13 @@ public class Main {
 		thresholdOption.setRequired(false);
         options.addOption(thresholdOption);
 
+		Option histogramBinsOption = new Option("hb", "histogramBins", true,
+				"Number of bins of the histograms of the histogram based thresholds, over the range of each image " +
+						"(default: one bin per grey value of the 8 and 16-bit images).");
+		histogramBinsOption.setRequired(false);
+		histogramBinsOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+		options.addOption(histogramBinsOption);
+
 		Option smoothingOption = new Option("s", "smoothing", true,
 				"Smooth image before segmentation (default false).");
 		smoothingOption.setRequired(false);
@@ -82,6 +90,12 @@ public class Main {
 		morphOpOption.setType(PatternOptionBuilder.NUMBER_VALUE);
 		options.addOption(morphOpOption);
 
+		Option structuringElementOption = new Option("se", "structuringElement", true,
+				"Structuring element of the morphological operations: Box or Ball (scaled by the physical voxel sizes " +
+						"of the image metadata, isotropic when they are unknown) (default Box).");
+		structuringElementOption.setRequired(false);
+		options.addOption(structuringElementOption);
+
 		Option removeEdgeComponentsOption = new Option("re", "removeEdgeComponents", true,
 				"Remove Edge Components (default false).");
 		removeEdgeComponentsOption.setRequired(false);
@@ -96,6 +110,39 @@ public class Main {
 				"Make Single Component (default false).");
 		makeSingleComponentOption.setRequired(false);
 		options.addOption(makeSingleComponentOption);
+
+		Option threadsOption = new Option("nt", "threads", true,
+				"Number of threads (default: number of available processors).");
+		threadsOption.setRequired(false);
+		threadsOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+		options.addOption(threadsOption);
+
+		Option memoryBudgetOption = new Option("mb", "memoryBudget", true,
+				"Heap budget for the images processed concurrently, in MB (default: three quarters of the maximum heap).");
+		memoryBudgetOption.setRequired(false);
+		memoryBudgetOption.setType(PatternOptionBuilder.NUMBER_VALUE);
+		options.addOption(memoryBudgetOption);
+
+		Option outputFormatOption = new Option("of", "outputFormat", true,
+				"Output format: Mask8 (8-bit mask), Mask1 (1-bit mask) or Labels (16/32-bit connected component labels) (default Mask8).");
+		outputFormatOption.setRequired(false);
+		options.addOption(outputFormatOption);
+
+		Option outputCompressionOption = new Option("oc", "outputCompression", true,
+				"Compression of the output tiles: LZW or PackBits (default LZW).");
+		outputCompressionOption.setRequired(false);
+		options.addOption(outputCompressionOption);
+
+		Option outOfCoreOption = new Option("ooc", "outOfCore", true,
+				"Segment the images larger than the memory budget brick by brick, spilling their masks to scratch files (default false). " +
+				"The scratch directory needs room for the uncompressed image plus two bit-packed masks.");
+		outOfCoreOption.setRequired(false);
+		options.addOption(outOfCoreOption);
+
+		Option scratchDirectoryOption = new Option("sd", "scratchDirectory", true,
+				"Directory of the scratch files of the out-of-core segmentation (default: java.io.tmpdir).");
+		scratchDirectoryOption.setRequired(false);
+		options.addOption(scratchDirectoryOption);
 		
 		CommandLineParser parser = new DefaultParser();
 	       try {
@@ -114,6 +161,10 @@ public class Main {
 	                    tileSizeOption.getOpt());
 	            int tileSize = tileSizeNumber == null
 	                    ? 1024 : tileSizeNumber.intValue();
+	            if (tileSize <= 0 || tileSize % 16 != 0) {
+	                throw new ParseException("Tile size must be a positive multiple of 16: "
+	                        + tileSize);
+	            }
 
 			   String filenameFilterValue = commandLine.getOptionValue(
 					   filenameOption.getOpt());
@@ -125,6 +176,13 @@ public class Main {
 	            String thresholding = thresholdValue == null
 	            		? "Otsu" : thresholdValue;
 
+			   Number histogramBinsValue = (Number) commandLine.getParsedOptionValue(
+					   histogramBinsOption.getOpt());
+			   if (histogramBinsValue != null && histogramBinsValue.intValue() < 1) {
+				   throw new ParseException("Number of histogram bins must be positive: "
+						   + histogramBinsValue);
+			   }
+
 			   String smoothingValue = commandLine.getOptionValue(
 					   smoothingOption.getOpt());
 			   boolean smoothing = smoothingValue == null
@@ -135,6 +193,15 @@ public class Main {
 			   int morphOp = morphOpValue == null
 					   ? 0 : morphOpValue.intValue();
 
+			   String structuringElementValue = commandLine.getOptionValue(
+					   structuringElementOption.getOpt());
+			   String structuringElement = structuringElementValue == null
+					   ? "Box" : structuringElementValue;
+			   if (!Image3DProcessingPipeline.STRUCTURING_ELEMENTS.contains(structuringElement)) {
+				   throw new ParseException("Unknown structuring element: "
+						   + structuringElement);
+			   }
+
 			   String removeEdgeComponentsValue = commandLine.getOptionValue(
 					   removeEdgeComponentsOption.getOpt());
 			   boolean removeEdgeComponents = removeEdgeComponentsValue == null
@@ -149,15 +216,75 @@ public class Main {
 					   makeSingleComponentOption.getOpt());
 			   boolean makeSingleComponent = makeSingleComponentValue == null
 					   ? false : Boolean.valueOf(makeSingleComponentValue).booleanValue();
+
+			   Number threadsValue = (Number) commandLine.getParsedOptionValue(
+					   threadsOption.getOpt());
+			   int threads = threadsValue == null
+					   ? Runtime.getRuntime().availableProcessors() : threadsValue.intValue();
+			   if (threads < 1) {
+				   throw new ParseException("Number of threads must be positive: "
+						   + threads);
+			   }
+	            
+			   Number memoryBudgetValue = (Number) commandLine.getParsedOptionValue(
+					   memoryBudgetOption.getOpt());
+			   if (memoryBudgetValue != null && memoryBudgetValue.longValue() < 1) {
+				   throw new ParseException("Memory budget must be positive: "
+						   + memoryBudgetValue);
+			   }
+
+			   String outputFormatValue = commandLine.getOptionValue(
+					   outputFormatOption.getOpt());
+			   String outputFormat = outputFormatValue == null
+					   ? "Mask8" : outputFormatValue;
+			   if (!Image3DProcessingPipeline.OUTPUT_FORMATS.contains(outputFormat)) {
+				   throw new ParseException("Unknown output format: "
+						   + outputFormat);
+			   }
+
+			   String outputCompressionValue = commandLine.getOptionValue(
+					   outputCompressionOption.getOpt());
+			   String outputCompression = outputCompressionValue == null
+					   ? "LZW" : outputCompressionValue;
+			   if (!Image3DProcessingPipeline.OUTPUT_COMPRESSIONS.contains(outputCompression)) {
+				   throw new ParseException("Unknown output compression: "
+						   + outputCompression);
+			   }
+
+			   String outOfCoreValue = commandLine.getOptionValue(
+					   outOfCoreOption.getOpt());
+			   boolean outOfCore = outOfCoreValue == null
+					   ? false : Boolean.valueOf(outOfCoreValue).booleanValue();
+
+			   String scratchDirectory = commandLine.getOptionValue(
+					   scratchDirectoryOption.getOpt());
+			   if (scratchDirectory != null && !new File(scratchDirectory).isDirectory()) {
+				   throw new ParseException("Scratch directory not found: "
+						   + scratchDirectory);
+			   }
 	            
+	            ForkJoinPool pool = new ForkJoinPool(threads);
 	            try {
 	                long start = System.currentTimeMillis();
 
-					Image3DProcessingPipeline pipeline = new Image3DProcessingPipeline();
+					Image3DProcessingPipeline pipeline = new Image3DProcessingPipeline(pool);
+					if (memoryBudgetValue != null) {
+						pipeline.setMemoryBudget(memoryBudgetValue.longValue() << 20);
+					}
+					pipeline.setOutputFormat(outputFormat);
+					pipeline.setOutputCompression(outputCompression);
+					pipeline.setStructuringElement(structuringElement);
+					if (histogramBinsValue != null) {
+						pipeline.setHistogramBins(histogramBinsValue.intValue());
+					}
+					pipeline.setOutOfCore(outOfCore);
+					if (scratchDirectory != null) {
+						pipeline.setScratchDirectory(new File(scratchDirectory));
+					}
 					pipeline.processImages(inputImages, filenameFilter,
 							outputFolder, 1,
 							65535, 1, 0, 0,
-							0, null, thresholding, 1024, smoothing,
+							0, null, thresholding, tileSize, smoothing,
 							morphOp, removeEdgeComponents, fillHolesComponents, makeSingleComponent);
 
 	                float duration = (System.currentTimeMillis() - start) / 1000F;
@@ -167,6 +294,8 @@ public class Main {
 	                LOG.severe(errorMessage);
 					System.exit(1);
 					return;
+	            } finally {
+	            	pool.shutdown();
 	            }
 	            
 
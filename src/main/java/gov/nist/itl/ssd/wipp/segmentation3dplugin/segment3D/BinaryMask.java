@@ -0,0 +1,452 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import java.util.Arrays;
+
+/**
+ * Bit-packed 3D binary mask, 64 voxels per long.
+ *
+ * Each slice is one long array. Rows are padded to a whole number of words
+ * (voxel (x, y) of a slice is bit x & 63 of word y * wordsPerRow + x / 64), so
+ * that row operations never straddle two rows. Padding bits are always 0.
+ */
+public class BinaryMask {
+
+	private final int xSize;
+	private final int ySize;
+	private final int zSize;
+	private final int wordsPerRow;
+	private final long lastWordMask;
+	private final long[][] slices;
+
+	/**
+	 * Creates an empty mask
+	 */
+	public BinaryMask(int xSize, int ySize, int zSize) {
+		this.xSize = xSize;
+		this.ySize = ySize;
+		this.zSize = zSize;
+		this.wordsPerRow = (xSize + 63) >>> 6;
+		this.lastWordMask = (xSize & 63) == 0 ? -1L : (1L << (xSize & 63)) - 1;
+		this.slices = new long[zSize][wordsPerRow * ySize];
+	}
+
+	public int getXSize() {
+		return xSize;
+	}
+
+	public int getYSize() {
+		return ySize;
+	}
+
+	public int getZSize() {
+		return zSize;
+	}
+
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	public long getNumberOfVoxels() {
+		return (long) xSize * ySize * zSize;
+	}
+
+	/**
+	 * @param z slice (0 based)
+	 * @return the words of slice z (row y starts at word y * wordsPerRow)
+	 */
+	public long[] getSlice(int z) {
+		return slices[z];
+	}
+
+	public boolean get(int x, int y, int z) {
+		return (slices[z][y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	public void set(int x, int y, int z) {
+		slices[z][y * wordsPerRow + (x >>> 6)] |= 1L << x;
+	}
+
+	public void clear(int x, int y, int z) {
+		slices[z][y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+	}
+
+	/**
+	 * @return the number of voxels set in slice z
+	 */
+	public long countSlice(int z) {
+		long count = 0;
+		for (long word : slices[z]) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of voxels set in the mask
+	 */
+	public long count() {
+		long count = 0;
+		for (int z = 0; z < zSize; ++z) {
+			count += countSlice(z);
+		}
+		return count;
+	}
+
+	/**
+	 * this = this AND NOT other
+	 */
+	public void andNot(BinaryMask other) {
+		checkSameSize(other);
+		for (int z = 0; z < zSize; ++z) {
+			long[] words = slices[z];
+			long[] otherWords = other.slices[z];
+			for (int i = 0; i < words.length; ++i) {
+				words[i] &= ~otherWords[i];
+			}
+		}
+	}
+
+	/**
+	 * Inverts every voxel of the mask (padding bits stay 0)
+	 */
+	public void invert() {
+		for (int z = 0; z < zSize; ++z) {
+			long[] words = slices[z];
+			for (int i = 0; i < words.length; ++i) {
+				words[i] = ~words[i];
+			}
+			clearPadding(words);
+		}
+	}
+
+	/**
+	 * Box dilation: a voxel is set if any voxel within the
+	 * (2 xRadius + 1) x (2 yRadius + 1) x (2 zRadius + 1) box around it is set.
+	 * Voxels outside of the volume are considered unset.
+	 */
+	public void dilate(int xRadius, int yRadius, int zRadius) {
+		dilate(xRadius, yRadius, zRadius, null);
+	}
+
+	/**
+	 * Box dilation, also storing in sliceCounts (if not null) the number of
+	 * voxels set in each slice of the result
+	 */
+	public void dilate(int xRadius, int yRadius, int zRadius, long[] sliceCounts) {
+
+		// Each axis costs O(1) per word whatever the radius: runs of set
+		// voxels are widened along x, and the y and z windows use the
+		// van Herk / Gil-Werman prefix and suffix ORs.
+		if (xRadius > 0) {
+			long[] rowBuffer = new long[wordsPerRow];
+			for (int z = 0; z < zSize; ++z) {
+				long[] words = slices[z];
+				for (int y = 0; y < ySize; ++y) {
+					dilateRow(words, y * wordsPerRow, xRadius, rowBuffer);
+				}
+			}
+		}
+
+		if (yRadius > 0 && ySize > 1) {
+			int radius = Math.min(yRadius, ySize - 1);
+			long[][] lines = new long[ySize][];
+			int[] lineStarts = new int[ySize];
+			for (int y = 0; y < ySize; ++y) {
+				lineStarts[y] = y * wordsPerRow;
+			}
+			long[] prefix = new long[(ySize + 2 * radius) * wordsPerRow];
+			long[] suffix = new long[prefix.length];
+			for (int z = 0; z < zSize; ++z) {
+				Arrays.fill(lines, slices[z]);
+				dilateLines(lines, lineStarts, radius, prefix, suffix);
+			}
+		}
+
+		if (zRadius > 0 && zSize > 1) {
+			int radius = Math.min(zRadius, zSize - 1);
+			int[] lineStarts = new int[zSize];
+			long[] prefix = new long[(zSize + 2 * radius) * wordsPerRow];
+			long[] suffix = new long[prefix.length];
+			for (int y = 0; y < ySize; ++y) {
+				Arrays.fill(lineStarts, y * wordsPerRow);
+				dilateLines(slices, lineStarts, radius, prefix, suffix);
+			}
+		}
+
+		if (sliceCounts != null) {
+			for (int z = 0; z < zSize; ++z) {
+				sliceCounts[z] = countSlice(z);
+			}
+		}
+	}
+
+	/**
+	 * Sets every voxel of the row within radius of a set voxel: each run of
+	 * set voxels [start, end) becomes [start - radius, end + radius), and
+	 * the runs are written from the end of the previous one so that every
+	 * word is written at most once per run
+	 */
+	private void dilateRow(long[] words, int rowStart, int radius,
+			long[] rowBuffer) {
+		Arrays.fill(rowBuffer, 0L);
+		int filled = 0;
+		int x = nextSetBit(words, rowStart, 0, true);
+		while (x < xSize) {
+			int runEnd = nextSetBit(words, rowStart, x, false);
+			int start = Math.max(filled, x - radius);
+			int end = (int) Math.min(xSize, (long) runEnd + radius);
+			for (int w = start >>> 6; w <= (end - 1) >>> 6; ++w) {
+				rowBuffer[w] |= rangeMask(w, start, end);
+			}
+			filled = end;
+			x = runEnd < xSize ? nextSetBit(words, rowStart, runEnd, true) : xSize;
+		}
+		System.arraycopy(rowBuffer, 0, words, rowStart, wordsPerRow);
+	}
+
+	/**
+	 * @return the first x >= from whose voxel is set (or unset if set is
+	 *         false) in the row, or xSize if there is none
+	 */
+	private int nextSetBit(long[] words, int rowStart, int from, boolean set) {
+		int w = from >>> 6;
+		long flip = set ? 0L : -1L;
+		long word = (words[rowStart + w] ^ flip) & (-1L << from);
+		while (word == 0) {
+			if (++w == wordsPerRow) {
+				return xSize;
+			}
+			word = words[rowStart + w] ^ flip;
+		}
+		return Math.min(xSize, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * ORs each row of words lines[i] (starting at lineStarts[i]) with the
+	 * rows within radius of it. The lines are virtually padded with radius
+	 * empty rows on both sides and cut in blocks of 2 radius + 1 rows, so
+	 * that every window is the suffix OR of one block and the prefix OR of
+	 * the next one (van Herk / Gil-Werman).
+	 */
+	private void dilateLines(long[][] lines, int[] lineStarts, int radius,
+			long[] prefix, long[] suffix) {
+		int count = lines.length;
+		int blockSize = 2 * radius + 1;
+		int paddedCount = count + 2 * radius;
+
+		for (int v = 0; v < paddedCount; ++v) {
+			int i = v - radius;
+			int offset = v * wordsPerRow;
+			boolean blockStart = v % blockSize == 0;
+			for (int w = 0; w < wordsPerRow; ++w) {
+				long word = i >= 0 && i < count ? lines[i][lineStarts[i] + w] : 0L;
+				prefix[offset + w] = blockStart ? word
+						: prefix[offset - wordsPerRow + w] | word;
+			}
+		}
+		for (int v = paddedCount - 1; v >= 0; --v) {
+			int i = v - radius;
+			int offset = v * wordsPerRow;
+			boolean blockEnd = v % blockSize == blockSize - 1
+					|| v == paddedCount - 1;
+			for (int w = 0; w < wordsPerRow; ++w) {
+				long word = i >= 0 && i < count ? lines[i][lineStarts[i] + w] : 0L;
+				suffix[offset + w] = blockEnd ? word
+						: suffix[offset + wordsPerRow + w] | word;
+			}
+		}
+
+		// the window of line i is [i, i + 2 radius] in padded coordinates
+		for (int i = 0; i < count; ++i) {
+			int first = i * wordsPerRow;
+			int last = (i + 2 * radius) * wordsPerRow;
+			for (int w = 0; w < wordsPerRow; ++w) {
+				lines[i][lineStarts[i] + w] = suffix[first + w] | prefix[last + w];
+			}
+		}
+	}
+
+	/**
+	 * Box erosion: a voxel stays set if no voxel within the box around it is
+	 * unset. Voxels outside of the volume are ignored.
+	 */
+	public void erode(int xRadius, int yRadius, int zRadius) {
+		erode(xRadius, yRadius, zRadius, null);
+	}
+
+	/**
+	 * Box erosion, also storing in sliceCounts (if not null) the number of
+	 * voxels set in each slice of the result
+	 */
+	public void erode(int xRadius, int yRadius, int zRadius, long[] sliceCounts) {
+		invert();
+		dilate(xRadius, yRadius, zRadius, sliceCounts);
+		invert();
+		if (sliceCounts != null) {
+			for (int z = 0; z < zSize; ++z) {
+				sliceCounts[z] = (long) xSize * ySize - sliceCounts[z];
+			}
+		}
+	}
+
+	/**
+	 * @param within region to search (null for the whole volume)
+	 * @return the smallest box containing all the voxels set within the
+	 *         region, or null if none is set
+	 */
+	public BoundingBox getBoundingBox(BoundingBox within) {
+		if (within == null) {
+			within = new BoundingBox(0, xSize - 1, 0, ySize - 1, 0, zSize - 1);
+		}
+		int firstWord = within.getXMin() >>> 6;
+		int lastWord = within.getXMax() >>> 6;
+		int xMin = Integer.MAX_VALUE, xMax = -1;
+		int yMin = Integer.MAX_VALUE, yMax = -1;
+		int zMin = Integer.MAX_VALUE, zMax = -1;
+
+		for (int z = within.getZMin(); z <= within.getZMax(); ++z) {
+			long[] words = slices[z];
+			for (int y = within.getYMin(); y <= within.getYMax(); ++y) {
+				int rowStart = y * wordsPerRow;
+				for (int w = firstWord; w <= lastWord; ++w) {
+					long word = words[rowStart + w]
+							& rangeMask(w, within.getXMin(), within.getXMax() + 1);
+					if (word == 0) {
+						continue;
+					}
+					xMin = Math.min(xMin, (w << 6) + Long.numberOfTrailingZeros(word));
+					xMax = Math.max(xMax, (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+					yMin = Math.min(yMin, y);
+					yMax = Math.max(yMax, y);
+					zMin = Math.min(zMin, z);
+					zMax = z;
+				}
+			}
+		}
+		return zMax < 0 ? null : new BoundingBox(xMin, xMax, yMin, yMax, zMin, zMax);
+	}
+
+	/**
+	 * @return a new mask holding a copy of the voxels of the box
+	 */
+	public BinaryMask crop(BoundingBox box) {
+		BinaryMask cropped = new BinaryMask(box.getXSize(), box.getYSize(),
+				box.getZSize());
+		int croppedWordsPerRow = cropped.wordsPerRow;
+		for (int z = 0; z < cropped.zSize; ++z) {
+			long[] words = slices[box.getZMin() + z];
+			long[] croppedWords = cropped.slices[z];
+			for (int y = 0; y < cropped.ySize; ++y) {
+				int rowStart = (box.getYMin() + y) * wordsPerRow;
+				int croppedRowStart = y * croppedWordsPerRow;
+				for (int w = 0; w < croppedWordsPerRow; ++w) {
+					croppedWords[croppedRowStart + w] = getBits(words, rowStart,
+							wordsPerRow, box.getXMin() + (w << 6));
+				}
+				croppedWords[croppedRowStart + croppedWordsPerRow - 1] &= cropped.lastWordMask;
+			}
+		}
+		return cropped;
+	}
+
+	/**
+	 * Replaces the voxels of the box by the ones of a mask of the box size
+	 */
+	public void paste(BinaryMask cropped, BoundingBox box) {
+		int firstWord = box.getXMin() >>> 6;
+		int lastWord = box.getXMax() >>> 6;
+		for (int z = 0; z < cropped.zSize; ++z) {
+			long[] words = slices[box.getZMin() + z];
+			long[] croppedWords = cropped.slices[z];
+			for (int y = 0; y < cropped.ySize; ++y) {
+				int rowStart = (box.getYMin() + y) * wordsPerRow;
+				int croppedRowStart = y * cropped.wordsPerRow;
+				for (int w = firstWord; w <= lastWord; ++w) {
+					long range = rangeMask(w, box.getXMin(), box.getXMax() + 1);
+					long bits = getBits(croppedWords, croppedRowStart,
+							cropped.wordsPerRow, (w << 6) - box.getXMin());
+					words[rowStart + w] = (words[rowStart + w] & ~range) | (bits & range);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets every voxel of the box
+	 */
+	public void fill(BoundingBox box) {
+		int firstWord = box.getXMin() >>> 6;
+		int lastWord = box.getXMax() >>> 6;
+		for (int z = box.getZMin(); z <= box.getZMax(); ++z) {
+			long[] words = slices[z];
+			for (int y = box.getYMin(); y <= box.getYMax(); ++y) {
+				int rowStart = y * wordsPerRow;
+				for (int w = firstWord; w <= lastWord; ++w) {
+					words[rowStart + w] |= rangeMask(w, box.getXMin(), box.getXMax() + 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the 64 bits of a row starting at bit offset (bits outside of
+	 *         the row are 0, offset may be negative)
+	 */
+	private static long getBits(long[] words, int rowStart, int wordsInRow,
+			int offset) {
+		int w = offset >> 6;
+		int shift = offset & 63;
+		long low = (w >= 0 && w < wordsInRow) ? words[rowStart + w] : 0L;
+		if (shift == 0) {
+			return low;
+		}
+		long high = (w + 1 >= 0 && w + 1 < wordsInRow) ? words[rowStart + w + 1] : 0L;
+		return (low >>> shift) | (high << (64 - shift));
+	}
+
+	/**
+	 * @return the bits of word w within [xStart, xEnd)
+	 */
+	static long rangeMask(int w, int xStart, int xEnd) {
+		long mask = -1L;
+		if (w == xStart >>> 6) {
+			mask &= -1L << xStart;
+		}
+		if (w == (xEnd - 1) >>> 6) {
+			mask &= -1L >>> (63 - ((xEnd - 1) & 63));
+		}
+		return mask;
+	}
+
+	private void clearPadding(long[] words) {
+		for (int i = wordsPerRow - 1; i < words.length; i += wordsPerRow) {
+			words[i] &= lastWordMask;
+		}
+	}
+
+	private void checkSameSize(BinaryMask other) {
+		if (other.xSize != xSize || other.ySize != ySize || other.zSize != zSize) {
+			throw new IllegalArgumentException("Mask sizes do not match");
+		}
+	}
+}
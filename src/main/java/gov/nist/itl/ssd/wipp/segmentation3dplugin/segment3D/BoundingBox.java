@@ -0,0 +1,115 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * Axis-aligned box of voxels, bounds included.
+ */
+public class BoundingBox {
+
+	private final int xMin;
+	private final int xMax;
+	private final int yMin;
+	private final int yMax;
+	private final int zMin;
+	private final int zMax;
+
+	public BoundingBox(int xMin, int xMax, int yMin, int yMax, int zMin,
+			int zMax) {
+		if (xMin > xMax || yMin > yMax || zMin > zMax) {
+			throw new IllegalArgumentException("Empty bounding box");
+		}
+		this.xMin = xMin;
+		this.xMax = xMax;
+		this.yMin = yMin;
+		this.yMax = yMax;
+		this.zMin = zMin;
+		this.zMax = zMax;
+	}
+
+	public int getXMin() {
+		return xMin;
+	}
+
+	public int getXMax() {
+		return xMax;
+	}
+
+	public int getYMin() {
+		return yMin;
+	}
+
+	public int getYMax() {
+		return yMax;
+	}
+
+	public int getZMin() {
+		return zMin;
+	}
+
+	public int getZMax() {
+		return zMax;
+	}
+
+	public int getXSize() {
+		return xMax - xMin + 1;
+	}
+
+	public int getYSize() {
+		return yMax - yMin + 1;
+	}
+
+	public int getZSize() {
+		return zMax - zMin + 1;
+	}
+
+	public long getNumberOfVoxels() {
+		return (long) getXSize() * getYSize() * getZSize();
+	}
+
+	/**
+	 * @return true if the box is the whole xSize x ySize x zSize volume
+	 */
+	public boolean isWholeVolume(int xSize, int ySize, int zSize) {
+		return xMin == 0 && yMin == 0 && zMin == 0 && xMax == xSize - 1
+				&& yMax == ySize - 1 && zMax == zSize - 1;
+	}
+
+	/**
+	 * @return the box grown by the given margins, clipped to the
+	 *         xSize x ySize x zSize volume
+	 */
+	public BoundingBox expand(int xMargin, int yMargin, int zMargin,
+			int xSize, int ySize, int zSize) {
+		return new BoundingBox(Math.max(0, xMin - xMargin),
+				Math.min(xSize - 1, xMax + xMargin),
+				Math.max(0, yMin - yMargin),
+				Math.min(ySize - 1, yMax + yMargin),
+				Math.max(0, zMin - zMargin),
+				Math.min(zSize - 1, zMax + zMargin));
+	}
+
+	@Override
+	public String toString() {
+		return "[" + xMin + ", " + xMax + "] x [" + yMin + ", " + yMax
+				+ "] x [" + zMin + ", " + zMax + "]";
+	}
+}
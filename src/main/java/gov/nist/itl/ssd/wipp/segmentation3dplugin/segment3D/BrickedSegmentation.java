@@ -0,0 +1,1003 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.logging.Logger;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.StackReader;
+
+/**
+ * Out-of-core segmentation of a stack too large for the heap, giving the same
+ * mask as Segment3DImage.
+ * 
+ * The stack is processed in bricks of consecutive slices. The voxels of a
+ * brick are read plane by plane, with the 2 * zRadius slices of halo on each
+ * side needed by the smoothing, the first time they are needed, and are
+ * cached (smoothed) in a scratch file of the size of the uncompressed stack,
+ * so that the passes finding the threshold and the thresholding decode and
+ * smooth each slice once. They are thresholded into a bit-packed mask
+ * written to a scratch file, and their cache is deleted. The following steps
+ * read the mask back brick by brick:
+ * - the morphological operations read the brick with a halo of the reach of
+ * all the operations, and write the brick to a second scratch file,
+ * - the connected component steps (edge components, holes, single component)
+ * label each brick, then merge the labels of the voxels facing each other
+ * across the brick boundaries in a union-find over the labels of all the
+ * bricks. The size and the contact with the xz and yz faces of each
+ * component are gathered on the root of its labels, and a second pass over
+ * the bricks rewrites the voxels of the selected components.
+ * 
+ * Only one brick (with its halo), its labels and the union-find of the
+ * labels are in memory at a time.
+ */
+public class BrickedSegmentation implements Closeable {
+	
+	private static final Logger LOG = Logger.getLogger(
+			BrickedSegmentation.class.getName());
+	
+	/**
+	 * Estimated heap needed per voxel of a brick by its most demanding step:
+	 * the labels of the brick, the provisional labels of the labeler and the
+	 * brick mask
+	 */
+	public static final int BYTES_PER_BRICK_VOXEL = 10;
+	
+	private final StackReader reader;
+	private final int xSize;
+	private final int ySize;
+	private final int zSize;
+	private final int wordsPerRow;
+	private final int brickDepth;
+	private final int numberOfBricks;
+	private final File scratchDirectory;
+	// pool running the per-slice work of a brick
+	private final ForkJoinPool pool;
+	// labels the z-slabs of a brick on the pool
+	private final ConnectedComponentLabeler labeler;
+	
+	// x, y and z radii of the grayscale opening, null without smoothing
+	private int[] smoothingRadii;
+	private int structuringElement = Segment3DImage.BOX_STRUCTURING_ELEMENT;
+	private double voxelDimX = 1.0;
+	private double voxelDimY = 1.0;
+	private double voxelDimZ = 1.0;
+	
+	// scratch file of the (smoothed) voxels until the stack is thresholded,
+	// complete once every brick has been read
+	private VoxelFile voxels;
+	private boolean voxelsCached;
+	// scratch file of the mask, available once the stack is thresholded,
+	// and scratch file receiving the mask rewritten with halos
+	private MaskFile mask;
+	private MaskFile nextMask;
+	private final long[] sliceFrgCounts;
+	private long frgCount;
+	
+	/**
+	 * @param reader the reader of the stack (8, 16 or 32-bit), left open
+	 * @param brickDepth the number of slices of a brick, without its halos
+	 *        (see getBrickDepth)
+	 * @param scratchDirectory the directory of the scratch files
+	 * @param pool the pool running the slices of a brick
+	 */
+	public BrickedSegmentation(StackReader reader, int brickDepth,
+			File scratchDirectory, ForkJoinPool pool) {
+		if (!reader.isSupported()) {
+			throw new IllegalArgumentException("Unsupported pixel type for "
+					+ "an out-of-core segmentation");
+		}
+		if (brickDepth <= 0) {
+			throw new IllegalArgumentException(
+					"The brick depth must be positive, not " + brickDepth);
+		}
+		this.reader = reader;
+		this.xSize = reader.getXSize();
+		this.ySize = reader.getYSize();
+		this.zSize = reader.getZSize();
+		this.wordsPerRow = (xSize + 63) >>> 6;
+		this.brickDepth = Math.min(brickDepth, zSize);
+		this.numberOfBricks = (zSize + this.brickDepth - 1) / this.brickDepth;
+		this.scratchDirectory = scratchDirectory;
+		this.pool = pool;
+		this.labeler = new ParallelSlabLabeler(
+				ConnectedComponentLabeler.CONNECTIVITY_6, pool);
+		this.sliceFrgCounts = new long[zSize];
+	}
+	
+	/**
+	 * @param memoryBudget the heap available for the segmentation, in bytes
+	 * @param header the reader of the stack
+	 * @return the number of slices of the bricks fitting in the budget (at
+	 *         least one)
+	 */
+	public static int getBrickDepth(long memoryBudget, StackReader header) {
+		long sliceBytes = (long) header.getXSize() * header.getYSize()
+				* BYTES_PER_BRICK_VOXEL;
+		return (int) Math.max(1, Math.min(header.getZSize(),
+				memoryBudget / Math.max(1, sliceBytes)));
+	}
+	
+	/**
+	 * Smooths the voxels read with a grayscale flat opening (see
+	 * Image3DSmoothing.grayscaleFlatOpening)
+	 */
+	public void setSmoothing(int xRadius, int yRadius, int zRadius) {
+		this.smoothingRadii = new int[] { xRadius, yRadius, zRadius };
+	}
+	
+	/**
+	 * @see Segment3DImage#setStructuringElement(int)
+	 */
+	public void setStructuringElement(int structuringElement) {
+		if (structuringElement != Segment3DImage.BALL_STRUCTURING_ELEMENT
+				&& structuringElement != Segment3DImage.BOX_STRUCTURING_ELEMENT) {
+			throw new IllegalArgumentException(
+					"Invalid structuring element: " + structuringElement);
+		}
+		this.structuringElement = structuringElement;
+	}
+	
+	/**
+	 * @see Segment3DImage#setVoxelDimensions(double, double, double)
+	 */
+	public void setVoxelDimensions(double voxelDimX, double voxelDimY,
+			double voxelDimZ) {
+		if (voxelDimX <= 0 || voxelDimY <= 0 || voxelDimZ <= 0) {
+			throw new IllegalArgumentException("Invalid voxel dimensions: "
+					+ voxelDimX + " x " + voxelDimY + " x " + voxelDimZ);
+		}
+		this.voxelDimX = voxelDimX;
+		this.voxelDimY = voxelDimY;
+		this.voxelDimZ = voxelDimZ;
+	}
+	
+	public int getBrickDepth() {
+		return brickDepth;
+	}
+	
+	public int getNumberOfBricks() {
+		return numberOfBricks;
+	}
+	
+	/**
+	 * Passes the (smoothed) voxels of each brick, in z order, to an action,
+	 * for instance to accumulate their histogram
+	 * 
+	 * @param action the action, which must not keep the voxels
+	 * @throws IOException if a plane can not be read
+	 */
+	public void forEachBrick(Consumer<VoxelBuffer> action)
+			throws IOException {
+		for (int brick = 0; brick < numberOfBricks; ++brick) {
+			action.accept(readBrick(brick));
+		}
+	}
+	
+	/**
+	 * Thresholds the (smoothed) voxels brick by brick into the scratch mask:
+	 * the voxels greater than the threshold are foreground
+	 * 
+	 * @param threshold the threshold
+	 * @return the foreground count
+	 * @throws IOException if a plane can not be read or the mask written
+	 */
+	public long thresholdStack(double threshold) throws IOException {
+		
+		LOG.info("Thresholding image in " + numberOfBricks + " bricks of "
+				+ brickDepth + " slices...");
+		if (mask == null) {
+			mask = new MaskFile(scratchDirectory, wordsPerRow * ySize);
+		}
+		for (int brick = 0; brick < numberOfBricks; ++brick) {
+			VoxelBuffer voxels = readBrick(brick);
+			BinaryMask brickMask = new BinaryMask(xSize, ySize,
+					voxels.getZSize());
+			ConcurrencyUtils.parallelFor(pool, 0, voxels.getZSize(),
+					z -> voxels.thresholdSlice(z, threshold,
+							brickMask.getSlice(z), wordsPerRow));
+			writeMask(mask, brickMask, 0, brickStart(brick));
+		}
+		// the following steps only read the mask
+		deleteVoxels();
+		updateFrgCount();
+		LOG.info("Thresholding done. FRG count: " + frgCount + " BKG count: "
+				+ getBKGCount());
+		return frgCount;
+	}
+	
+	/**
+	 * Applies the segmentation steps following the thresholding, in the
+	 * order of Segment3DImage.segmentThresholdedImage
+	 * 
+	 * @throws IOException if the scratch mask can not be read or written
+	 */
+	public void segmentThresholdedStack(int morphologicalOperationChoice,
+			int morphologicalOperationRadius, boolean removeEdgeComponents,
+			boolean fillHoles, boolean makeSingleComponent) throws IOException {
+		
+		if (removeEdgeComponents) {
+			removeEdgeComponents();
+		}
+		if (fillHoles) {
+			fillHoles();
+		}
+		if (makeSingleComponent) {
+			makeSingleComponent();
+		}
+		if (morphologicalOperationChoice != Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS)
+			applyMorphologicalOperations(morphologicalOperationRadius,
+					morphologicalOperationChoice);
+	}
+	
+	/**
+	 * Removes the components touching the xz and yz faces of the stack
+	 * 
+	 * @return the foreground count
+	 */
+	public long removeEdgeComponents() throws IOException {
+		
+		LOG.info("Removing edge components...");
+		GlobalComponents components = labelComponents(true);
+		rewriteComponents(components, true, components::touchesEdge);
+		updateFrgCount();
+		LOG.info("Removing edge components done. FRG count: " + frgCount
+				+ " BKG count: " + getBKGCount());
+		return frgCount;
+	}
+	
+	/**
+	 * Fills the background not connected to the corner voxel (0, 0, 0)
+	 * 
+	 * @return the foreground count
+	 */
+	public long fillHoles() throws IOException {
+		
+		LOG.info("Filling holes...");
+		long[] firstWords = new long[wordsPerRow * ySize];
+		mask.readSlice(0, firstWords);
+		if ((firstWords[0] & 1L) != 0) {
+			LOG.severe("Error filling holes - corner voxel is not empty");
+			return frgCount;
+		}
+		// the corner voxel is the first voxel of the first brick: its
+		// background component has the global label 1, root of its set
+		GlobalComponents components = labelComponents(false);
+		rewriteComponents(components, false, root -> root != 1);
+		updateFrgCount();
+		LOG.info("Filling holes done. FRG count: " + frgCount + " BKG count: "
+				+ getBKGCount());
+		return frgCount;
+	}
+	
+	/**
+	 * Keeps only the largest component (the first one in scan order for a
+	 * tie)
+	 * 
+	 * @return the foreground count
+	 */
+	public long makeSingleComponent() throws IOException {
+		
+		LOG.info("Making single component...");
+		GlobalComponents components = labelComponents(true);
+		int largestRoot = components.getLargestRoot();
+		if (largestRoot != 0) {
+			rewriteComponents(components, true, root -> root != largestRoot);
+		}
+		updateFrgCount();
+		LOG.info("Making single component done. FRG count: " + frgCount
+				+ " BKG count: " + getBKGCount());
+		return frgCount;
+	}
+	
+	/**
+	 * Applies the dilations and erosions of a morphological operation choice
+	 * of Segment3DImage, then keeps the largest component
+	 * 
+	 * @return the foreground count
+	 */
+	public long applyMorphologicalOperations(int radius,
+			int morphologicalOperationChoice) throws IOException {
+		
+		LOG.info("Applying morphological operations...");
+		
+		// the dilations (true) and erosions (false) of the choice
+		boolean[] operations;
+		switch (morphologicalOperationChoice) {
+			case Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[0];
+				break;
+			case Segment3DImage.CLOSING_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { true, false };
+				break;
+			case Segment3DImage.OPENING_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { false, true };
+				break;
+			case Segment3DImage.DILATE_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { true };
+				break;
+			case Segment3DImage.ERODE_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { false };
+				break;
+			case Segment3DImage.CLOSING_FIRST_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { true, false, false, true };
+				break;
+			case Segment3DImage.OPENING_FIRST_MORPHOLOGICAL_OPERATIONS:
+				operations = new boolean[] { false, true, true, false };
+				break;
+			default:
+				LOG.severe("Invalid choice for morphological operations.");
+				operations = new boolean[0];
+				break;
+		}
+		if (operations.length > 0) {
+			applyOperations(radius, operations);
+		}
+		
+		// make single component to avoid disconnected segments
+		makeSingleComponent();
+		
+		LOG.info("Applying morphological operations done. FRG count: "
+				+ frgCount + " BKG count: " + getBKGCount());
+		return frgCount;
+	}
+	
+	/**
+	 * Applies a sequence of dilations and erosions brick by brick. Each
+	 * operation may change the voxels within its reach of the faces of a
+	 * brick read alone: the bricks are read with a halo of the reach of the
+	 * whole sequence, and written to the second scratch file so that the
+	 * halos of the following bricks are read from the mask before the
+	 * operations.
+	 */
+	private void applyOperations(int radius, boolean[] operations)
+			throws IOException {
+		int reach = structuringElement == Segment3DImage.BOX_STRUCTURING_ELEMENT
+				? radius : (int) (getBallRadius(radius) / voxelDimZ) + 1;
+		int halo = operations.length * reach;
+		if (nextMask == null) {
+			nextMask = new MaskFile(scratchDirectory, wordsPerRow * ySize);
+		}
+		for (int brick = 0; brick < numberOfBricks; ++brick) {
+			int zStart = brickStart(brick);
+			int zEnd = brickStart(brick + 1);
+			int readStart = Math.max(0, zStart - halo);
+			int readEnd = Math.min(zSize, zEnd + halo);
+			BinaryMask slab = readMask(mask, readStart, readEnd);
+			if (countSlices(readStart, readEnd) != 0) {
+				for (boolean dilate : operations) {
+					dilateOrErode(slab, radius, dilate);
+				}
+			}
+			writeMask(nextMask, slab, zStart - readStart, zStart,
+					zEnd - zStart);
+		}
+		MaskFile previousMask = mask;
+		mask = nextMask;
+		nextMask = previousMask;
+		updateFrgCount();
+	}
+	
+	private void dilateOrErode(BinaryMask slab, int radius, boolean dilate) {
+		if (structuringElement == Segment3DImage.BOX_STRUCTURING_ELEMENT) {
+			if (dilate)
+				slab.dilate(radius, radius, radius);
+			else
+				slab.erode(radius, radius, radius);
+		} else {
+			if (dilate)
+				EuclideanDistanceTransform.dilate(slab, getBallRadius(radius),
+						voxelDimX, voxelDimY, voxelDimZ);
+			else
+				EuclideanDistanceTransform.erode(slab, getBallRadius(radius),
+						voxelDimX, voxelDimY, voxelDimZ);
+		}
+	}
+	
+	private double getBallRadius(int radius) {
+		return radius * Math.min(voxelDimX, Math.min(voxelDimY, voxelDimZ));
+	}
+	
+	/**
+	 * Labels the components of the mask (or of its background) brick by
+	 * brick, with global labels: the labels of a brick follow those of the
+	 * previous bricks, and the labels of the voxels facing each other across
+	 * a brick boundary are merged. The root of the labels of a component is
+	 * the label of its first voxel in scan order, as for a single labeling.
+	 */
+	private GlobalComponents labelComponents(boolean foreground)
+			throws IOException {
+		long start = System.nanoTime();
+		GlobalComponents components = new GlobalComponents(numberOfBricks);
+		int[] previousLastSlice = null;
+		int previousOffset = 0;
+		for (int brick = 0; brick < numberOfBricks; ++brick) {
+			LabeledVolume labels = labelBrick(readMask(mask, brickStart(brick),
+					brickStart(brick + 1)), foreground);
+			int offset = components.addBrick(brick, labels);
+			
+			// components touching the xz and yz faces
+			for (int z = 0; z < labels.getZSize(); ++z) {
+				int[] slice = labels.getSlice(z);
+				int lastRow = (ySize - 1) * xSize;
+				for (int x = 0; x < xSize; ++x) {
+					components.markEdge(offset, slice[x]);
+					components.markEdge(offset, slice[lastRow + x]);
+				}
+				for (int row = 0; row <= lastRow; row += xSize) {
+					components.markEdge(offset, slice[row]);
+					components.markEdge(offset, slice[row + xSize - 1]);
+				}
+			}
+			
+			// 6-connectivity across the boundary with the previous brick
+			if (previousLastSlice != null) {
+				int[] firstSlice = labels.getSlice(0);
+				for (int i = 0; i < firstSlice.length; ++i) {
+					if (firstSlice[i] != 0 && previousLastSlice[i] != 0) {
+						components.union(previousOffset + previousLastSlice[i],
+								offset + firstSlice[i]);
+					}
+				}
+			}
+			previousLastSlice = labels.getSlice(labels.getZSize() - 1);
+			previousOffset = offset;
+		}
+		components.gatherOnRoots();
+		LOG.info(components.getNumberOfComponents() + " components over "
+				+ numberOfBricks + " bricks, labeled in "
+				+ (System.nanoTime() - start) / 1000000 + " ms ("
+				+ pool.getParallelism() + " threads)");
+		return components;
+	}
+	
+	/**
+	 * Inverts the voxels of the components whose root is selected, brick by
+	 * brick (the bricks are labeled again as in labelComponents)
+	 */
+	private void rewriteComponents(GlobalComponents components,
+			boolean foreground, IntPredicate selectedRoot) throws IOException {
+		for (int brick = 0; brick < numberOfBricks; ++brick) {
+			int zStart = brickStart(brick);
+			BinaryMask brickMask = readMask(mask, zStart, brickStart(brick + 1));
+			LabeledVolume labels = labelBrick(brickMask, foreground);
+			int offset = components.getOffset(brick);
+			boolean[] inverted = new boolean[labels.getNumberOfComponents() + 1];
+			boolean anyInverted = false;
+			for (int label = 1; label < inverted.length; ++label) {
+				inverted[label] = selectedRoot.test(
+						components.find(offset + label));
+				anyInverted |= inverted[label];
+			}
+			if (!anyInverted) {
+				continue;
+			}
+			ConcurrencyUtils.parallelFor(pool, 0, labels.getZSize(), z -> {
+				int[] slice = labels.getSlice(z);
+				long[] words = brickMask.getSlice(z);
+				for (int y = 0; y < ySize; ++y) {
+					for (int x = 0; x < xSize; ++x) {
+						if (inverted[slice[y * xSize + x]]) {
+							words[y * wordsPerRow + (x >>> 6)] ^= 1L << x;
+						}
+					}
+				}
+			});
+			writeMask(mask, brickMask, 0, zStart, labels.getZSize());
+		}
+	}
+	
+	private LabeledVolume labelBrick(BinaryMask brickMask, boolean foreground) {
+		if (foreground) {
+			return labeler.label(brickMask);
+		}
+		brickMask.invert();
+		LabeledVolume labels = labeler.label(brickMask);
+		brickMask.invert();
+		return labels;
+	}
+	
+	/**
+	 * @return the slices of the mask as 8-bit planes (0/255), read from the
+	 *         scratch mask when they are requested (in any order)
+	 */
+	public IntFunction<Object> getMaskPlanes() {
+		long[] words = new long[wordsPerRow * ySize];
+		return z -> {
+			try {
+				mask.readSlice(z, words);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			byte[] plane = new byte[xSize * ySize];
+			for (int y = 0; y < ySize; ++y) {
+				for (int x = 0; x < xSize; ++x) {
+					if ((words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0) {
+						plane[y * xSize + x] = (byte) 255;
+					}
+				}
+			}
+			return plane;
+		};
+	}
+	
+	/**
+	 * Labels the connected components of the mask over the whole stack, in
+	 * scan order from 1, as Segment3DImage.generateLabeledImagePlus
+	 * 
+	 * @return the slices of the label image, 16-bit (short[]) or, for more
+	 *         than 65535 components, 32-bit (float[]). They are labeled
+	 *         again brick by brick when they are requested, in z order.
+	 */
+	public IntFunction<Object> getLabelPlanes() throws IOException {
+		GlobalComponents components = labelComponents(true);
+		int numberOfComponents = components.getNumberOfComponents();
+		if (numberOfComponents > (1 << 24)) {
+			throw new IllegalStateException("Too many components for a label image: "
+					+ numberOfComponents);
+		}
+		LOG.info("Number of components: " + numberOfComponents);
+		int[] ranks = components.rankRoots();
+		boolean shortLabels = numberOfComponents <= 0xFFFF;
+		
+		return new IntFunction<Object>() {
+			private int brick = -1;
+			private LabeledVolume labels;
+			
+			@Override
+			public Object apply(int z) {
+				if (z < brickStart(brick) || z >= brickStart(brick + 1)) {
+					brick = z / brickDepth;
+					try {
+						labels = labelBrick(readMask(mask, brickStart(brick),
+								brickStart(brick + 1)), true);
+					} catch (IOException ex) {
+						throw new UncheckedIOException(ex);
+					}
+				}
+				int offset = components.getOffset(brick);
+				int[] slice = labels.getSlice(z - brickStart(brick));
+				if (shortLabels) {
+					short[] plane = new short[slice.length];
+					for (int i = 0; i < slice.length; ++i) {
+						if (slice[i] != 0) {
+							plane[i] = (short) ranks[offset + slice[i]];
+						}
+					}
+					return plane;
+				}
+				float[] plane = new float[slice.length];
+				for (int i = 0; i < slice.length; ++i) {
+					if (slice[i] != 0) {
+						plane[i] = ranks[offset + slice[i]];
+					}
+				}
+				return plane;
+			}
+		};
+	}
+	
+	public long getFRGCount() {
+		return frgCount;
+	}
+	
+	public long getBKGCount() {
+		return (long) xSize * ySize * zSize - frgCount;
+	}
+	
+	/**
+	 * Deletes the scratch files
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			deleteVoxels();
+		} finally {
+			try {
+				if (mask != null) {
+					mask.close();
+				}
+			} finally {
+				if (nextMask != null) {
+					nextMask.close();
+				}
+			}
+		}
+	}
+	
+	private void deleteVoxels() throws IOException {
+		voxelsCached = false;
+		if (voxels != null) {
+			VoxelFile file = voxels;
+			voxels = null;
+			file.close();
+		}
+	}
+	
+	/**
+	 * @return the first slice of a brick (zSize for the brick after the last
+	 *         one)
+	 */
+	private int brickStart(int brick) {
+		return Math.max(0, Math.min(zSize, brick * brickDepth));
+	}
+	
+	/**
+	 * Reads the (smoothed) voxels of a brick from their cache, or reads them
+	 * from the stack, smooths them and caches them
+	 */
+	private VoxelBuffer readBrick(int brick) throws IOException {
+		int zStart = brickStart(brick);
+		int zEnd = brickStart(brick + 1);
+		if (voxelsCached) {
+			VoxelBuffer cached = VoxelBuffer.create(reader.getBitDepth(),
+					xSize, ySize, zEnd - zStart);
+			for (int z = zStart; z < zEnd; ++z) {
+				voxels.readSlice(z, cached.getSlice(z - zStart));
+			}
+			return cached;
+		}
+		VoxelBuffer brickVoxels = smoothBrick(zStart, zEnd);
+		if (voxels == null) {
+			voxels = new VoxelFile(scratchDirectory, reader.getBitDepth(),
+					xSize * ySize);
+		}
+		for (int z = zStart; z < zEnd; ++z) {
+			voxels.writeSlice(z, brickVoxels.getSlice(z - zStart));
+		}
+		// the bricks are read in z order: the previous ones are cached
+		voxelsCached = brick == numberOfBricks - 1;
+		return brickVoxels;
+	}
+	
+	/**
+	 * Reads the voxels of slices zStart to zEnd from the stack and smooths
+	 * them
+	 */
+	private VoxelBuffer smoothBrick(int zStart, int zEnd) throws IOException {
+		// the opening needs the 2 * zRadius slices around the brick
+		int halo = smoothingRadii == null ? 0 : 2 * smoothingRadii[2];
+		int readStart = Math.max(0, zStart - halo);
+		int readEnd = Math.min(zSize, zEnd + halo);
+		VoxelBuffer slab = VoxelBuffer.create(reader.getBitDepth(), xSize,
+				ySize, readEnd - readStart);
+		for (int z = readStart; z < readEnd; ++z) {
+			reader.readPlane(z, slab.getSlice(z - readStart));
+		}
+		if (smoothingRadii == null) {
+			return slab;
+		}
+		Image3DSmoothing.grayscaleFlatOpening(
+				new ImagePlus("slab", slab.toImageStack()), smoothingRadii[0],
+				smoothingRadii[1], smoothingRadii[2], pool);
+		if (readStart == zStart && readEnd == zEnd) {
+			return slab;
+		}
+		ImageStack brickStack = new ImageStack(xSize, ySize);
+		for (int z = zStart; z < zEnd; ++z) {
+			brickStack.addSlice(slab.getProcessor(z - readStart));
+		}
+		return VoxelBuffer.wrap(new ImagePlus("brick", brickStack));
+	}
+	
+	private BinaryMask readMask(MaskFile file, int zStart, int zEnd)
+			throws IOException {
+		BinaryMask slab = new BinaryMask(xSize, ySize, zEnd - zStart);
+		for (int z = zStart; z < zEnd; ++z) {
+			file.readSlice(z, slab.getSlice(z - zStart));
+		}
+		return slab;
+	}
+	
+	/**
+	 * Writes depth slices of a mask, from slice first, at slice zStart of a
+	 * scratch file, and updates their foreground counts
+	 */
+	private void writeMask(MaskFile file, BinaryMask slab, int first,
+			int zStart, int depth) throws IOException {
+		for (int z = 0; z < depth; ++z) {
+			file.writeSlice(zStart + z, slab.getSlice(first + z));
+			sliceFrgCounts[zStart + z] = slab.countSlice(first + z);
+		}
+	}
+	
+	private void writeMask(MaskFile file, BinaryMask slab, int first,
+			int zStart) throws IOException {
+		writeMask(file, slab, first, zStart, slab.getZSize() - first);
+	}
+	
+	private long countSlices(int zStart, int zEnd) {
+		long count = 0;
+		for (int z = zStart; z < zEnd; ++z) {
+			count += sliceFrgCounts[z];
+		}
+		return count;
+	}
+	
+	private void updateFrgCount() {
+		frgCount = countSlices(0, zSize);
+	}
+	
+	/**
+	 * Global labels of the components of all the bricks: label l of brick b
+	 * is offset(b) + l. The sizes and the edge contacts of the labels are
+	 * gathered on their roots once all the bricks are labeled.
+	 */
+	private static final class GlobalComponents {
+		
+		private final UnionFind unionFind = new UnionFind(1024);
+		private final int[] offsets;
+		private long[] sizes = new long[1024];
+		private final BitSet touchingEdges = new BitSet();
+		private int numberOfComponents;
+		
+		GlobalComponents(int numberOfBricks) {
+			offsets = new int[numberOfBricks];
+		}
+		
+		/**
+		 * @return the offset of the labels of the brick
+		 */
+		int addBrick(int brick, LabeledVolume labels) {
+			int offset = unionFind.size();
+			offsets[brick] = offset;
+			int numberOfLabels = labels.getNumberOfComponents();
+			if ((long) offset + numberOfLabels >= Integer.MAX_VALUE) {
+				throw new IllegalStateException(
+						"Too many components for the bricks of the stack");
+			}
+			for (int label = 1; label <= numberOfLabels; ++label) {
+				unionFind.makeSet();
+			}
+			if (offset + numberOfLabels >= sizes.length) {
+				long[] newSizes = new long[Math.max(2 * sizes.length,
+						offset + numberOfLabels + 1)];
+				System.arraycopy(sizes, 0, newSizes, 0, sizes.length);
+				sizes = newSizes;
+			}
+			for (int label = 1; label <= numberOfLabels; ++label) {
+				sizes[offset + label] = labels.getSize(label);
+			}
+			return offset;
+		}
+		
+		int getOffset(int brick) {
+			return offsets[brick];
+		}
+		
+		void markEdge(int offset, int label) {
+			if (label != 0) {
+				touchingEdges.set(offset + label);
+			}
+		}
+		
+		void union(int label1, int label2) {
+			unionFind.union(label1, label2);
+		}
+		
+		int find(int label) {
+			return unionFind.find(label);
+		}
+		
+		/**
+		 * Adds the sizes and edge contacts of the labels to their roots
+		 * (which are smaller than them)
+		 */
+		void gatherOnRoots() {
+			numberOfComponents = 0;
+			for (int label = 1; label <= unionFind.size(); ++label) {
+				int root = unionFind.find(label);
+				if (root == label) {
+					numberOfComponents++;
+					continue;
+				}
+				sizes[root] += sizes[label];
+				if (touchingEdges.get(label)) {
+					touchingEdges.set(root);
+				}
+			}
+		}
+		
+		int getNumberOfComponents() {
+			return numberOfComponents;
+		}
+		
+		boolean touchesEdge(int root) {
+			return touchingEdges.get(root);
+		}
+		
+		/**
+		 * @return the root of the largest component, the first one for a
+		 *         tie, 0 if there is none
+		 */
+		int getLargestRoot() {
+			int largestRoot = 0;
+			long largestSize = 0;
+			for (int label = 1; label <= unionFind.size(); ++label) {
+				if (unionFind.find(label) == label
+						&& sizes[label] > largestSize) {
+					largestRoot = label;
+					largestSize = sizes[label];
+				}
+			}
+			return largestRoot;
+		}
+		
+		/**
+		 * @return the rank from 1 of the component of each label, in the
+		 *         order of the roots
+		 */
+		int[] rankRoots() {
+			int[] ranks = new int[unionFind.size() + 1];
+			int rank = 0;
+			for (int label = 1; label <= unionFind.size(); ++label) {
+				int root = unionFind.find(label);
+				ranks[label] = root == label ? ++rank : ranks[root];
+			}
+			return ranks;
+		}
+	}
+	
+	/**
+	 * Scratch file of fixed-size slices, read and written through a direct
+	 * buffer of one slice, in the native byte order
+	 */
+	private static class ScratchFile implements Closeable {
+		
+		private final File file;
+		private final FileChannel channel;
+		protected final ByteBuffer buffer;
+		
+		ScratchFile(File directory, String suffix, int sliceBytes)
+				throws IOException {
+			file = File.createTempFile("segmentation3d-", suffix, directory);
+			file.deleteOnExit();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			buffer = ByteBuffer.allocateDirect(sliceBytes)
+					.order(ByteOrder.nativeOrder());
+		}
+		
+		/**
+		 * Reads slice z into the buffer
+		 */
+		protected void read(int z) throws IOException {
+			long position = (long) z * buffer.capacity();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException("Slice " + z + " is not in " + file);
+				}
+			}
+		}
+		
+		/**
+		 * Writes the buffer to slice z
+		 */
+		protected void write(int z) throws IOException {
+			long position = (long) z * buffer.capacity();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+	}
+	
+	/**
+	 * Scratch file holding the voxels of each slice of a stack
+	 */
+	private static final class VoxelFile extends ScratchFile {
+		
+		private final int bitDepth;
+		
+		VoxelFile(File directory, int bitDepth, int sliceSize)
+				throws IOException {
+			super(directory, ".voxels", sliceSize * (bitDepth / 8));
+			this.bitDepth = bitDepth;
+		}
+		
+		/**
+		 * @param slice the byte, short or float array of the slice
+		 */
+		void readSlice(int z, Object slice) throws IOException {
+			read(z);
+			buffer.clear();
+			switch (bitDepth) {
+				case 8:
+					buffer.get((byte[]) slice);
+					break;
+				case 16:
+					buffer.asShortBuffer().get((short[]) slice);
+					break;
+				default:
+					buffer.asFloatBuffer().get((float[]) slice);
+			}
+		}
+		
+		void writeSlice(int z, Object slice) throws IOException {
+			buffer.clear();
+			switch (bitDepth) {
+				case 8:
+					buffer.put((byte[]) slice);
+					break;
+				case 16:
+					buffer.asShortBuffer().put((short[]) slice);
+					break;
+				default:
+					buffer.asFloatBuffer().put((float[]) slice);
+			}
+			write(z);
+		}
+	}
+	
+	/**
+	 * Scratch file holding the words of each slice of a mask
+	 */
+	private static final class MaskFile extends ScratchFile {
+		
+		private final LongBuffer words;
+		
+		MaskFile(File directory, int sliceWords) throws IOException {
+			super(directory, ".mask", sliceWords * Long.BYTES);
+			words = buffer.asLongBuffer();
+		}
+		
+		void readSlice(int z, long[] slice) throws IOException {
+			read(z);
+			words.clear();
+			words.get(slice);
+		}
+		
+		void writeSlice(int z, long[] slice) throws IOException {
+			words.clear();
+			words.put(slice);
+			write(z);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Thread-safe disjoint-set forest over a fixed range of labels (1..size).
+ *
+ * Links are made with compare-and-set, always from the larger root to the
+ * smaller one, so that the root of a set is its smallest label whatever the
+ * order in which the unions are performed.
+ */
+class ConcurrentUnionFind {
+
+	private final AtomicIntegerArray parent;
+
+	ConcurrentUnionFind(int size) {
+		parent = new AtomicIntegerArray(size + 1);
+		for (int label = 0; label <= size; ++label) {
+			parent.set(label, label);
+		}
+	}
+
+	/**
+	 * Sets the parent of a label before any concurrent use (the parent must
+	 * not be larger than the label)
+	 */
+	void setParent(int label, int parentLabel) {
+		parent.set(label, parentLabel);
+	}
+
+	int find(int label) {
+		int parentLabel;
+		while ((parentLabel = parent.get(label)) != label) {
+			// path halving, only ever moves a label closer to its root
+			int grandParentLabel = parent.get(parentLabel);
+			if (grandParentLabel != parentLabel) {
+				parent.compareAndSet(label, parentLabel, grandParentLabel);
+			}
+			label = parentLabel;
+		}
+		return label;
+	}
+
+	void union(int label1, int label2) {
+		while (true) {
+			int root1 = find(label1);
+			int root2 = find(label2);
+			if (root1 == root2) {
+				return;
+			}
+			if (root1 < root2) {
+				int tmp = root1;
+				root1 = root2;
+				root2 = tmp;
+			}
+			// link the larger root under the smaller one, retry if it changed
+			if (parent.compareAndSet(root1, root1, root2)) {
+				return;
+			}
+			label1 = root1;
+			label2 = root2;
+		}
+	}
+}
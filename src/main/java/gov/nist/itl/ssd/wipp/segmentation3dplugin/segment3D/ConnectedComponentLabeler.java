@@ -0,0 +1,143 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * This is an abstract class for the connected component labeling engines
+ */
+public abstract class ConnectedComponentLabeler {
+
+	public final static int CONNECTIVITY_6 = 6;
+	public final static int CONNECTIVITY_18 = 18;
+	public final static int CONNECTIVITY_26 = 26;
+
+	protected final int connectivity;
+
+	/**
+	 * @param connectivity 6 (faces), 18 (faces and edges) or 26 (faces, edges
+	 *            and corners)
+	 */
+	protected ConnectedComponentLabeler(int connectivity) {
+		if (connectivity != CONNECTIVITY_6 && connectivity != CONNECTIVITY_18
+				&& connectivity != CONNECTIVITY_26) {
+			throw new IllegalArgumentException("Invalid connectivity: " + connectivity);
+		}
+		this.connectivity = connectivity;
+	}
+
+	public int getConnectivity() {
+		return connectivity;
+	}
+
+	/**
+	 * Labels the connected components of the foreground of a mask
+	 *
+	 * @param mask the binary mask
+	 * @return the labels and sizes of the components
+	 */
+	public abstract LabeledVolume label(BinaryMask mask);
+
+	/**
+	 * First labeling pass over the slices [zStart, zEnd): gives each
+	 * foreground voxel the label of its already visited neighbors, or a new
+	 * provisional label, and records the equivalences between neighbor
+	 * labels. Neighbors outside of the slab are ignored.
+	 *
+	 * @param mask the binary mask
+	 * @param labels the label slices, filled for the slab
+	 * @param zStart first slice of the slab (included)
+	 * @param zEnd last slice of the slab (excluded)
+	 * @return the equivalences between the provisional labels of the slab
+	 */
+	protected UnionFind labelSlab(BinaryMask mask, int[][] labels, int zStart,
+			int zEnd) {
+
+		int xSize = mask.getXSize();
+		int ySize = mask.getYSize();
+		int wordsPerRow = mask.getWordsPerRow();
+		int[][] offsets = getBackwardNeighborOffsets();
+
+		UnionFind unionFind = new UnionFind(1024);
+
+		for (int z = zStart; z < zEnd; ++z) {
+			long[] words = mask.getSlice(z);
+			int[] sliceLabels = labels[z];
+			for (int y = 0; y < ySize; ++y) {
+				for (int w = 0; w < wordsPerRow; ++w) {
+					long word = words[y * wordsPerRow + w];
+					while (word != 0) {
+						int x = (w << 6) + Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+
+						int label = 0;
+						for (int[] offset : offsets) {
+							int xNeighbor = x + offset[0];
+							int yNeighbor = y + offset[1];
+							int zNeighbor = z + offset[2];
+							if (xNeighbor < 0 || xNeighbor >= xSize || yNeighbor < 0
+									|| yNeighbor >= ySize || zNeighbor < zStart) {
+								continue;
+							}
+							int neighborLabel = labels[zNeighbor][yNeighbor * xSize + xNeighbor];
+							if (neighborLabel != 0) {
+								label = (label == 0) ? unionFind.find(neighborLabel)
+										: unionFind.union(label, neighborLabel);
+							}
+						}
+						if (label == 0) {
+							label = unionFind.makeSet();
+						}
+						sliceLabels[y * xSize + x] = label;
+					}
+				}
+			}
+		}
+
+		return unionFind;
+	}
+
+	/**
+	 * @return the {dx, dy, dz} offsets of the neighbors visited before a voxel
+	 *         in z, y, x scan order
+	 */
+	protected int[][] getBackwardNeighborOffsets() {
+		int[][] offsets = new int[13][];
+		int count = 0;
+		for (int dz = -1; dz <= 0; ++dz) {
+			for (int dy = -1; dy <= 1; ++dy) {
+				for (int dx = -1; dx <= 1; ++dx) {
+					if (dz == 0 && (dy > 0 || (dy == 0 && dx >= 0))) {
+						continue;
+					}
+					int nonZeroOffsets = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+					if ((connectivity == CONNECTIVITY_6 && nonZeroOffsets > 1)
+							|| (connectivity == CONNECTIVITY_18 && nonZeroOffsets > 2)) {
+						continue;
+					}
+					offsets[count++] = new int[] { dx, dy, dz };
+				}
+			}
+		}
+		int[][] result = new int[count][];
+		System.arraycopy(offsets, 0, result, 0, count);
+		return result;
+	}
+}
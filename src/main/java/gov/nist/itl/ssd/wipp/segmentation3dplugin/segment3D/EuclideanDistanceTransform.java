@@ -0,0 +1,253 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import java.util.Arrays;
+
+/**
+ * Binary morphology with ellipsoidal structuring elements, computed by
+ * thresholding a squared Euclidean distance transform of the mask.
+ *
+ * The transform is separable (Felzenszwalb and Huttenlocher, "Distance
+ * Transforms of Sampled Functions"): a 1D distance along z is computed for the
+ * whole volume and stored on one byte per voxel, capped just above the radius,
+ * then each slice is finished along y and x with the lower envelope of
+ * parabolas. Each pass is linear in the number of voxels, so the cost does not
+ * depend on the radius. Distances are weighted by the voxel spacing, which
+ * gives spherical elements in calibrated units on anisotropic stacks.
+ */
+public class EuclideanDistanceTransform {
+
+	private EuclideanDistanceTransform() {
+	}
+
+	/**
+	 * Ball dilation, see dilate(BinaryMask, double, double, double, double, long[])
+	 */
+	public static void dilate(BinaryMask mask, double radius, double xSpacing,
+			double ySpacing, double zSpacing) {
+		dilate(mask, radius, xSpacing, ySpacing, zSpacing, null);
+	}
+
+	/**
+	 * Ball dilation: a voxel is set if its distance to a set voxel is at most
+	 * radius. Voxels outside of the volume are considered unset.
+	 *
+	 * @param mask the mask to dilate (modified in place)
+	 * @param radius radius of the ball, in the units of the spacings
+	 * @param xSpacing voxel size along x
+	 * @param ySpacing voxel size along y
+	 * @param zSpacing voxel size along z
+	 * @param sliceCounts if not null, receives the number of voxels set in
+	 *        each slice of the result
+	 * @throws IllegalArgumentException if the ball spans more than 254 slices
+	 *         along z
+	 */
+	public static void dilate(BinaryMask mask, double radius, double xSpacing,
+			double ySpacing, double zSpacing, long[] sliceCounts) {
+
+		if (radius <= 0) {
+			if (sliceCounts != null) {
+				for (int z = 0; z < mask.getZSize(); ++z) {
+					sliceCounts[z] = mask.countSlice(z);
+				}
+			}
+			return;
+		}
+		if (radius / zSpacing >= 255) {
+			throw new IllegalArgumentException(
+					"Radius too large for the z spacing: " + radius);
+		}
+
+		int xSize = mask.getXSize();
+		int ySize = mask.getYSize();
+		int zSize = mask.getZSize();
+		int wordsPerRow = mask.getWordsPerRow();
+		int sliceSize = xSize * ySize;
+
+		// distances are only compared to the radius: anything farther than
+		// zCap slices is out of reach, which lets them fit in a byte
+		int zCap = (int) Math.floor(radius / zSpacing) + 1;
+
+		// z: distance (in slices) to the nearest set voxel of the same column
+		byte[][] zDistances = new byte[zSize][sliceSize];
+		for (int z = 0; z < zSize; ++z) {
+			long[] words = mask.getSlice(z);
+			byte[] distances = zDistances[z];
+			byte[] previousDistances = z > 0 ? zDistances[z - 1] : null;
+			for (int y = 0; y < ySize; ++y) {
+				int rowStart = y * wordsPerRow;
+				for (int x = 0; x < xSize; ++x) {
+					int index = y * xSize + x;
+					if ((words[rowStart + (x >>> 6)] & (1L << x)) != 0) {
+						distances[index] = 0;
+					} else if (previousDistances == null) {
+						distances[index] = (byte) zCap;
+					} else {
+						distances[index] = (byte) Math.min(zCap,
+								(previousDistances[index] & 0xff) + 1);
+					}
+				}
+			}
+		}
+		for (int z = zSize - 2; z >= 0; --z) {
+			byte[] distances = zDistances[z];
+			byte[] nextDistances = zDistances[z + 1];
+			for (int index = 0; index < sliceSize; ++index) {
+				int distance = (nextDistances[index] & 0xff) + 1;
+				if (distance < (distances[index] & 0xff)) {
+					distances[index] = (byte) distance;
+				}
+			}
+		}
+
+		// y and x: lower envelope of parabolas, slice by slice
+		double zWeight = zSpacing * zSpacing;
+		double yWeight = ySpacing * ySpacing;
+		double xWeight = xSpacing * xSpacing;
+		// tolerance for the rounding of non integer spacings
+		double threshold = radius * radius * (1 + 1e-9);
+
+		int length = Math.max(xSize, ySize);
+		float[] squaredDistances = new float[sliceSize];
+		double[] input = new double[length];
+		int[] vertices = new int[length];
+		double[] boundaries = new double[length + 1];
+
+		for (int z = 0; z < zSize; ++z) {
+			byte[] distances = zDistances[z];
+			for (int index = 0; index < sliceSize; ++index) {
+				int distance = distances[index] & 0xff;
+				squaredDistances[index] = distance < zCap
+						? (float) (distance * distance * zWeight)
+						: Float.POSITIVE_INFINITY;
+			}
+			zDistances[z] = null;
+
+			for (int x = 0; x < xSize; ++x) {
+				transform(squaredDistances, x, xSize, ySize, yWeight,
+						input, vertices, boundaries);
+			}
+			for (int y = 0; y < ySize; ++y) {
+				transform(squaredDistances, y * xSize, 1, xSize, xWeight,
+						input, vertices, boundaries);
+			}
+
+			// the z distances of every slice are already known, so the slice
+			// can be overwritten
+			long[] words = mask.getSlice(z);
+			Arrays.fill(words, 0L);
+			long count = 0;
+			for (int y = 0; y < ySize; ++y) {
+				int rowStart = y * wordsPerRow;
+				for (int x = 0; x < xSize; ++x) {
+					if (squaredDistances[y * xSize + x] <= threshold) {
+						words[rowStart + (x >>> 6)] |= 1L << x;
+						++count;
+					}
+				}
+			}
+			if (sliceCounts != null) {
+				sliceCounts[z] = count;
+			}
+		}
+	}
+
+	/**
+	 * Ball erosion, see erode(BinaryMask, double, double, double, double, long[])
+	 */
+	public static void erode(BinaryMask mask, double radius, double xSpacing,
+			double ySpacing, double zSpacing) {
+		erode(mask, radius, xSpacing, ySpacing, zSpacing, null);
+	}
+
+	/**
+	 * Ball erosion: a voxel stays set if no unset voxel is within radius.
+	 * Voxels outside of the volume are ignored.
+	 *
+	 * @see #dilate(BinaryMask, double, double, double, double, long[])
+	 */
+	public static void erode(BinaryMask mask, double radius, double xSpacing,
+			double ySpacing, double zSpacing, long[] sliceCounts) {
+		mask.invert();
+		dilate(mask, radius, xSpacing, ySpacing, zSpacing, sliceCounts);
+		mask.invert();
+		if (sliceCounts != null) {
+			long sliceSize = (long) mask.getXSize() * mask.getYSize();
+			for (int z = 0; z < mask.getZSize(); ++z) {
+				sliceCounts[z] = sliceSize - sliceCounts[z];
+			}
+		}
+	}
+
+	/**
+	 * 1D squared distance transform of the n values f[start + i * stride]
+	 * (infinite values are sources of nothing), in place
+	 */
+	private static void transform(float[] f, int start, int stride, int n,
+			double weight, double[] input, int[] vertices, double[] boundaries) {
+
+		// lower envelope of the parabolas rooted at the finite values
+		int k = -1;
+		for (int q = 0; q < n; ++q) {
+			float value = f[start + q * stride];
+			input[q] = value;
+			if (value == Float.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (k < 0) {
+				k = 0;
+				vertices[0] = q;
+				boundaries[0] = Double.NEGATIVE_INFINITY;
+				boundaries[1] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			double intersection;
+			while (true) {
+				int p = vertices[k];
+				intersection = ((value + weight * q * q) - (input[p] + weight * p * p))
+						/ (2 * weight * (q - p));
+				if (intersection > boundaries[k]) {
+					break;
+				}
+				--k;
+			}
+			++k;
+			vertices[k] = q;
+			boundaries[k] = intersection;
+			boundaries[k + 1] = Double.POSITIVE_INFINITY;
+		}
+
+		// nothing set on this line: every value stays infinite
+		if (k < 0) {
+			return;
+		}
+
+		k = 0;
+		for (int q = 0; q < n; ++q) {
+			while (boundaries[k + 1] < q) {
+				++k;
+			}
+			int p = vertices[k];
+			f[start + q * stride] = (float) (weight * (q - p) * (q - p) + input[p]);
+		}
+	}
+}
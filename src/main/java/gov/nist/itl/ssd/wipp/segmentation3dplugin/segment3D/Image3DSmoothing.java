@@ -20,119 +20,423 @@
  */
 package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
 
+import java.util.concurrent.ForkJoinPool;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.process.ImageProcessor;
 
 /**
+ * Grayscale flat (box) erosion and dilation.
+ *
+ * The box filters are separable: a running minimum (or maximum) is computed
+ * along x, then y, then z, with the van Herk / Gil-Werman algorithm. Each
+ * line is cut into blocks of the size of the window, and the minimum over
+ * any window is the minimum of a suffix of one block and a prefix of the
+ * next one, so a pass costs three comparisons per voxel whatever the radius.
+ * Radii can differ along each axis. The x and y passes work on one float
+ * plane at a time, and the z pass on tiles of columns, so no copy of the
+ * stack is made. Voxels outside of the image are ignored, and the results
+ * are the same as with a scan of the whole box.
+ *
+ * The opening (an erosion followed by a dilation) streams through z instead:
+ * each stage keeps the planes of the last 2 * zRadius + 1 slices, filtered
+ * along x and y, in a ring buffer, and takes their minimum (or maximum) along
+ * z. A slice is written back as soon as it is opened, once the slices it
+ * depends on have been read.
+ *
+ * All the operators run on a ForkJoinPool, and give the same results whatever
+ * the number of threads.
+ *
  * @author Mylene Simon <mylene.simon at nist.gov>
  *
  */
 public class Image3DSmoothing {
 
+	// number of columns filtered together along z
+	private static final int Z_TILE_SIZE = 1024;
+
+	/**
+	 * Replaces each voxel by the minimum of its neighbors in the box of
+	 * half-sizes xRadius, yRadius and zRadius (an image with a negative
+	 * radius is left unchanged), on the common ForkJoinPool
+	 */
 	public static void grayscaleFlatErosion(ImagePlus img3D, int xRadius, int yRadius, int zRadius) {
+		grayscaleFlatErosion(img3D, xRadius, yRadius, zRadius, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Replaces each voxel by the minimum of its neighbors in the box of
+	 * half-sizes xRadius, yRadius and zRadius (an image with a negative
+	 * radius is left unchanged)
+	 */
+	public static void grayscaleFlatErosion(ImagePlus img3D, int xRadius, int yRadius, int zRadius,
+			ForkJoinPool pool) {
+		flatMinimum(img3D, xRadius, yRadius, zRadius, 1, pool);
+	}
+	
+	/**
+	 * Replaces each voxel by the maximum of its neighbors in the box of
+	 * half-sizes xRadius, yRadius and zRadius (an image with a negative
+	 * radius is left unchanged), on the common ForkJoinPool
+	 */
+	public static void grayscaleFlatDilation(ImagePlus img3D, int xRadius, int yRadius, int zRadius) {
+		grayscaleFlatDilation(img3D, xRadius, yRadius, zRadius, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Replaces each voxel by the maximum of its neighbors in the box of
+	 * half-sizes xRadius, yRadius and zRadius (an image with a negative
+	 * radius is left unchanged)
+	 */
+	public static void grayscaleFlatDilation(ImagePlus img3D, int xRadius, int yRadius, int zRadius,
+			ForkJoinPool pool) {
+		// the maximum is the opposite of the minimum of the opposite values
+		flatMinimum(img3D, xRadius, yRadius, zRadius, -1, pool);
+	}
+	
+	/**
+	 * Grayscale flat opening (see grayscaleFlatOpening(ImagePlus, int, int,
+	 * int, ForkJoinPool)) on the common ForkJoinPool
+	 */
+	public static void grayscaleFlatOpening(ImagePlus img3D, int xRadius, int yRadius, int zRadius) {
+		grayscaleFlatOpening(img3D, xRadius, yRadius, zRadius, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Grayscale flat erosion followed by a grayscale flat dilation with the
+	 * same box, streamed through z. The result is the same as
+	 * grayscaleFlatErosion then grayscaleFlatDilation.
+	 * 
+	 * The stack is split into one z-slab per thread. Opening a slab needs the
+	 * 2 * zRadius slices before and after it, which are copied before any
+	 * slice is written: each slab allocates 2 * (2 * zRadius + 1) planes for
+	 * its rings and 4 * zRadius planes for its halo.
+	 */
+	public static void grayscaleFlatOpening(ImagePlus img3D, int xRadius, int yRadius, int zRadius,
+			ForkJoinPool pool) {
+		
+		// empty neighborhood
+		if (xRadius < 0 || yRadius < 0 || zRadius < 0) {
+			return;
+		}
 		
-		int xSize = img3D.getWidth();
-		int ySize = img3D.getHeight();
-		int zSize = img3D.getNSlices();
-		ImageStack imgStack = img3D.getStack();
-		
-		// save current values in array
-		int[][][] imageDataBeforeProcessing = new int[xSize][ySize][zSize];
-		for(int z = 0; z < zSize; ++ z) {
-			ImageProcessor proc = imgStack.getProcessor(z+1);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					imageDataBeforeProcessing[x][y][z] = proc.getPixel(x, y);
+		VoxelBuffer imgData = VoxelBuffer.wrap(img3D);
+		int zSize = imgData.getZSize();
+		int numberOfSlabs = Math.max(1, Math.min(zSize, pool.getParallelism()));
+		int[] slabStarts = new int[numberOfSlabs + 1];
+		for (int s = 0; s <= numberOfSlabs; ++s) {
+			slabStarts[s] = (int) ((long) zSize * s / numberOfSlabs);
+		}
+		
+		OpeningSlab[] slabs = new OpeningSlab[numberOfSlabs];
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s ->
+				slabs[s] = new OpeningSlab(imgData, xRadius, yRadius, zRadius,
+						slabStarts[s], slabStarts[s + 1]));
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s -> slabs[s].open());
+	}
+	
+	/**
+	 * Box minimum of sign * voxels, multiplied back by sign. The x and y
+	 * passes are parallelized by z-slabs and the z pass by tiles of columns,
+	 * so that no slice is read by a task while another one writes it.
+	 */
+	private static void flatMinimum(ImagePlus img3D, int xRadius, int yRadius,
+			int zRadius, float sign, ForkJoinPool pool) {
+		
+		// empty neighborhood
+		if (xRadius < 0 || yRadius < 0 || zRadius < 0) {
+			return;
+		}
+		
+		VoxelBuffer imgData = VoxelBuffer.wrap(img3D);
+		int xSize = imgData.getXSize();
+		int ySize = imgData.getYSize();
+		int zSize = imgData.getZSize();
+		int sliceSize = imgData.getSliceSize();
+		
+		// x and y passes, slice by slice
+		if (xRadius > 0 || yRadius > 0) {
+			int numberOfSlabs = Math.max(1, Math.min(zSize, pool.getParallelism()));
+			ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s -> {
+				float[] plane = new float[sliceSize];
+				float[] forward = new float[sliceSize];
+				float[] backward = new float[sliceSize];
+				int zEnd = (int) ((long) zSize * (s + 1) / numberOfSlabs);
+				for (int z = (int) ((long) zSize * s / numberOfSlabs); z < zEnd; ++z) {
+					for (int index = 0; index < sliceSize; ++index) {
+						plane[index] = sign * imgData.getf(z, index);
+					}
+					if (xRadius > 0) {
+						for (int y = 0; y < ySize; ++y) {
+							runningMinimum(plane, y * xSize, 1, xSize, 1, xRadius,
+									forward, backward);
+						}
+					}
+					if (yRadius > 0) {
+						// the rows are filtered together
+						runningMinimum(plane, 0, xSize, ySize, xSize, yRadius,
+								forward, backward);
+					}
+					for (int index = 0; index < sliceSize; ++index) {
+						imgData.setf(z, index, sign * plane[index]);
+					}
 				}
-			}
+			});
 		}
 		
-		// process erosion (min of neighbors)
-		for(int z = 0; z < zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					
-					int minNeighborsValue = Integer.MAX_VALUE;
-					
-					for(int zNeighbor = z - zRadius; zNeighbor <= z + zRadius; zNeighbor ++) {
-						if(zNeighbor >= 0 && zNeighbor < zSize) {
-							
-							for(int xNeighbor = x - xRadius; xNeighbor <= x + xRadius; xNeighbor ++) {
-								if(xNeighbor >= 0 && xNeighbor < xSize) {
-									
-									for(int yNeighbor = y - yRadius; yNeighbor <= y + xRadius; yNeighbor ++) {
-										if(yNeighbor >= 0 && yNeighbor < ySize) {
-											
-											if(imageDataBeforeProcessing[xNeighbor][yNeighbor][zNeighbor] < minNeighborsValue)
-												minNeighborsValue = imageDataBeforeProcessing[xNeighbor][yNeighbor][zNeighbor];
-										}
-									}
-								}
-								
-							}
+		// z pass, by tiles of columns
+		if (zRadius > 0 && zSize > 1) {
+			int tileSize = Math.min(sliceSize, Z_TILE_SIZE);
+			int numberOfTiles = (sliceSize + tileSize - 1) / tileSize;
+			int numberOfGroups = Math.max(1, Math.min(numberOfTiles, pool.getParallelism()));
+			ConcurrencyUtils.parallelFor(pool, 0, numberOfGroups, g -> {
+				float[] tile = new float[zSize * tileSize];
+				float[] forward = new float[zSize * tileSize];
+				float[] backward = new float[zSize * tileSize];
+				for (int tileIndex = g; tileIndex < numberOfTiles; tileIndex += numberOfGroups) {
+					int tileStart = tileIndex * tileSize;
+					int tileLength = Math.min(tileSize, sliceSize - tileStart);
+					for (int z = 0; z < zSize; ++z) {
+						for (int t = 0; t < tileLength; ++t) {
+							tile[z * tileSize + t] = sign * imgData.getf(z, tileStart + t);
+						}
+					}
+					runningMinimum(tile, 0, tileSize, zSize, tileLength, zRadius,
+							forward, backward);
+					for (int z = 0; z < zSize; ++z) {
+						for (int t = 0; t < tileLength; ++t) {
+							imgData.setf(z, tileStart + t, sign * tile[z * tileSize + t]);
 						}
-						
 					}
-					
-					if(minNeighborsValue < Integer.MAX_VALUE) 
-						imgStack.setVoxel(x, y, z, minNeighborsValue);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Van Herk / Gil-Werman running minimum along a line of vectors: vector i
+	 * holds the width values data[offset + i * stride + t], and is replaced by
+	 * the minimum of the vectors [i - radius, i + radius] clipped to
+	 * [0, length).
+	 *
+	 * @param forward buffer of at least length * width values
+	 * @param backward buffer of at least length * width values
+	 */
+	static void runningMinimum(float[] data, int offset, int stride,
+			int length, int width, int radius, float[] forward, float[] backward) {
+		
+		// a window larger than the line is clipped to the line anyway
+		radius = Math.min(radius, length);
+		int windowSize = 2 * radius + 1;
+		
+		// minimum from the start of the block of i to i
+		for (int i = 0; i < length; ++i) {
+			int in = offset + i * stride;
+			int out = i * width;
+			if (i % windowSize == 0) {
+				System.arraycopy(data, in, forward, out, width);
+			} else {
+				for (int t = 0; t < width; ++t) {
+					float value = data[in + t];
+					float previous = forward[out - width + t];
+					forward[out + t] = value < previous ? value : previous;
+				}
+			}
+		}
+		
+		// minimum from i to the end of the block of i
+		for (int i = length - 1; i >= 0; --i) {
+			int in = offset + i * stride;
+			int out = i * width;
+			if (i == length - 1 || (i + 1) % windowSize == 0) {
+				System.arraycopy(data, in, backward, out, width);
+			} else {
+				for (int t = 0; t < width; ++t) {
+					float value = data[in + t];
+					float next = backward[out + width + t];
+					backward[out + t] = value < next ? value : next;
 				}
 			}
 		}
+		
+		// the window [start, end] is the end of the block of start followed by
+		// the beginning of the block of end. Windows clipped by the ends of
+		// the line can lie in a single block.
+		for (int i = 0; i < length; ++i) {
+			int start = Math.max(i - radius, 0);
+			int end = Math.min(i + radius, length - 1);
+			int in = offset + i * stride;
+			if (start / windowSize == end / windowSize) {
+				// either start is the start of the block, or end is clipped
+				// to the end of the line
+				if (start % windowSize == 0) {
+					System.arraycopy(forward, end * width, data, in, width);
+				} else {
+					System.arraycopy(backward, start * width, data, in, width);
+				}
+				continue;
+			}
+			for (int t = 0; t < width; ++t) {
+				float first = backward[start * width + t];
+				float last = forward[end * width + t];
+				data[in + t] = first < last ? first : last;
+			}
+		}
 	}
 	
-	public static void grayscaleFlatDilation(ImagePlus img3D, int xRadius, int yRadius, int zRadius) {
+	/**
+	 * Streamed box minimum: the planes pushed slice by slice are filtered
+	 * along x and y and kept in a ring buffer of 2 * zRadius + 1 planes, over
+	 * which the minimum along z is taken.
+	 */
+	private static final class MinimumStage {
 		
-		int xSize = img3D.getWidth();
-		int ySize = img3D.getHeight();
-		int zSize = img3D.getNSlices();
-		ImageStack imgStack = img3D.getStack();
-		
-		// save current values in array
-		int[][][] imageDataBeforeProcessing = new int[xSize][ySize][zSize];
-		for(int z = 0; z < zSize; ++ z) {
-			ImageProcessor proc = imgStack.getProcessor(z+1);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					imageDataBeforeProcessing[x][y][z] = proc.getPixel(x, y);
+		private final int xSize;
+		private final int ySize;
+		private final int zSize;
+		private final int xRadius;
+		private final int yRadius;
+		private final int zRadius;
+		// plane of slice z in ring[z % ring.length]
+		private final float[][] ring;
+		private final float[] forward;
+		private final float[] backward;
+		
+		MinimumStage(VoxelBuffer imgData, int xRadius, int yRadius, int zRadius) {
+			this.xSize = imgData.getXSize();
+			this.ySize = imgData.getYSize();
+			this.zSize = imgData.getZSize();
+			this.xRadius = xRadius;
+			this.yRadius = yRadius;
+			this.zRadius = zRadius;
+			int sliceSize = imgData.getSliceSize();
+			this.ring = new float[(int) Math.min(2L * zRadius + 1, Math.max(zSize, 1))][sliceSize];
+			this.forward = new float[sliceSize];
+			this.backward = new float[sliceSize];
+		}
+		
+		/**
+		 * Adds the plane of slice z, the slices being pushed in order
+		 */
+		void push(int z, float[] plane) {
+			float[] filtered = ring[z % ring.length];
+			System.arraycopy(plane, 0, filtered, 0, filtered.length);
+			if (xRadius > 0) {
+				for (int y = 0; y < ySize; ++y) {
+					runningMinimum(filtered, y * xSize, 1, xSize, 1, xRadius,
+							forward, backward);
 				}
 			}
+			if (yRadius > 0) {
+				runningMinimum(filtered, 0, xSize, ySize, xSize, yRadius,
+						forward, backward);
+			}
 		}
-				
-		// process dilation (max of neighbors)
-		for(int z = 0; z < zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					
-					int maxNeighborsValue = Integer.MIN_VALUE;
-					
-					for(int zNeighbor = z - zRadius; zNeighbor <= z + zRadius; zNeighbor ++) {
-						if(zNeighbor >= 0 && zNeighbor < zSize) {
-							
-							for(int xNeighbor = x - xRadius; xNeighbor <= x + xRadius; xNeighbor ++) {
-								if(xNeighbor >= 0 && xNeighbor < xSize) {
-									
-									for(int yNeighbor = y - yRadius; yNeighbor <= y + xRadius; yNeighbor ++) {
-										if(yNeighbor >= 0 && yNeighbor < ySize) {
-											
-											if(imageDataBeforeProcessing[xNeighbor][yNeighbor][zNeighbor] > maxNeighborsValue)
-												maxNeighborsValue = imageDataBeforeProcessing[xNeighbor][yNeighbor][zNeighbor];
-										}
-									}
-								}
-								
-							}
-						}
-						
+		
+		/**
+		 * Minimum for slice z, once the slice z + zRadius (or the last slice)
+		 * has been pushed
+		 */
+		void minimum(int z, float[] result) {
+			int zStart = Math.max(z - zRadius, 0);
+			int zEnd = Math.min(z + zRadius, zSize - 1);
+			System.arraycopy(ring[zStart % ring.length], 0, result, 0, result.length);
+			for (int zNeighbor = zStart + 1; zNeighbor <= zEnd; ++zNeighbor) {
+				float[] neighborPlane = ring[zNeighbor % ring.length];
+				for (int index = 0; index < result.length; ++index) {
+					float value = neighborPlane[index];
+					if (value < result[index]) {
+						result[index] = value;
 					}
-					
-					if(maxNeighborsValue > Integer.MIN_VALUE) 
-						imgStack.setVoxel(x, y, z, maxNeighborsValue);
 				}
 			}
 		}
 	}
-
 	
+	/**
+	 * Opening of the slices [zStart, zEnd), streamed through z
+	 */
+	private static final class OpeningSlab {
+		
+		private final VoxelBuffer imgData;
+		private final int zStart;
+		private final int zEnd;
+		private final int zRadius;
+		// first slice read and first slice eroded
+		private final int zReadStart;
+		private final int zErodedStart;
+		// copies of the slices [zStart - 2 * zRadius, zStart) followed by the
+		// slices [zEnd, zEnd + 2 * zRadius), null outside of the image
+		private final float[][] halo;
+		private final MinimumStage erosion;
+		private final MinimumStage dilation;
+		
+		/**
+		 * Slab reading its halo, which is opened by the other slabs
+		 */
+		OpeningSlab(VoxelBuffer imgData, int xRadius, int yRadius, int zRadius,
+				int zStart, int zEnd) {
+			this.imgData = imgData;
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+			this.zRadius = zRadius;
+			this.zReadStart = Math.max(zStart - 2 * zRadius, 0);
+			this.zErodedStart = Math.max(zStart - zRadius, 0);
+			this.halo = new float[4 * zRadius][];
+			for (int h = 0; h < halo.length; ++h) {
+				int z = h < 2 * zRadius ? zStart - 2 * zRadius + h
+						: zEnd + h - 2 * zRadius;
+				if (z >= 0 && z < imgData.getZSize()) {
+					halo[h] = new float[imgData.getSliceSize()];
+					read(z, halo[h]);
+				}
+			}
+			this.erosion = new MinimumStage(imgData, xRadius, yRadius, zRadius);
+			// the dilation is the minimum of the opposite of the eroded values
+			this.dilation = new MinimumStage(imgData, xRadius, yRadius, zRadius);
+		}
+		
+		private void read(int z, float[] plane) {
+			for (int index = 0; index < plane.length; ++index) {
+				plane[index] = imgData.getf(z, index);
+			}
+		}
+		
+		/**
+		 * Slice z is read, slice z - zRadius eroded and slice z - 2 * zRadius
+		 * opened (and overwritten, as it is not read anymore)
+		 */
+		void open() {
+			int zSize = imgData.getZSize();
+			int zReadEnd = Math.min(zEnd + 2 * zRadius, zSize);
+			int zErodedEnd = Math.min(zEnd + zRadius, zSize);
+			float[] plane = new float[imgData.getSliceSize()];
+			
+			for (int z = zReadStart; z < zEnd + 2 * zRadius; ++z) {
+				if (z < zStart) {
+					erosion.push(z, halo[z - zStart + 2 * zRadius]);
+				} else if (z >= zEnd && z < zReadEnd) {
+					erosion.push(z, halo[z - zEnd + 2 * zRadius]);
+				} else if (z < zReadEnd) {
+					read(z, plane);
+					erosion.push(z, plane);
+				}
+				int zEroded = z - zRadius;
+				if (zEroded >= zErodedStart && zEroded < zErodedEnd) {
+					erosion.minimum(zEroded, plane);
+					for (int index = 0; index < plane.length; ++index) {
+						plane[index] = - plane[index];
+					}
+					dilation.push(zEroded, plane);
+				}
+				int zOpened = zEroded - zRadius;
+				if (zOpened >= zStart && zOpened < zEnd) {
+					dilation.minimum(zOpened, plane);
+					for (int index = 0; index < plane.length; ++index) {
+						imgData.setf(zOpened, index, - plane[index]);
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,146 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * Result of a connected component labeling: one int label per voxel (0 for
+ * background, 1..n for the components, numbered in order of their first voxel
+ * in z, y, x scan order) and the size in voxels of each component.
+ */
+public class LabeledVolume {
+
+	private final int xSize;
+	private final int ySize;
+	private final int[][] labels;
+	private final long[] sizes;
+
+	LabeledVolume(int xSize, int ySize, int[][] labels, long[] sizes) {
+		this.xSize = xSize;
+		this.ySize = ySize;
+		this.labels = labels;
+		this.sizes = sizes;
+	}
+
+	public int getXSize() {
+		return xSize;
+	}
+
+	public int getYSize() {
+		return ySize;
+	}
+
+	public int getZSize() {
+		return labels.length;
+	}
+
+	/**
+	 * @return the number of components
+	 */
+	public int getNumberOfComponents() {
+		return sizes.length - 1;
+	}
+
+	public int getLabel(int x, int y, int z) {
+		return labels[z][y * xSize + x];
+	}
+
+	/**
+	 * @param z slice (0 based)
+	 * @return the labels of slice z, in row-major order
+	 */
+	public int[] getSlice(int z) {
+		return labels[z];
+	}
+
+	/**
+	 * @param label component label (1..n)
+	 * @return the size in voxels of the component
+	 */
+	public long getSize(int label) {
+		return sizes[label];
+	}
+
+	/**
+	 * @return the label of the largest component (the first one in scan order
+	 *         in case of a tie), or 0 if there is no component
+	 */
+	public int getLargestLabel() {
+		int largestLabel = 0;
+		long largestSize = 0;
+		for (int label = 1; label < sizes.length; ++label) {
+			if (sizes[label] > largestSize) {
+				largestSize = sizes[label];
+				largestLabel = label;
+			}
+		}
+		return largestLabel;
+	}
+
+	/**
+	 * @param n number of voxels
+	 * @return the number of components larger than n voxels
+	 */
+	public int getNumberOfComponentsLargerThan(long n) {
+		int count = 0;
+		for (int label = 1; label < sizes.length; ++label) {
+			if (sizes[label] > n) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param label component label
+	 * @return a mask with the voxels of the component set
+	 */
+	public BinaryMask toMask(int label) {
+		return toMask(label, null);
+	}
+
+	/**
+	 * @param label component label
+	 * @param sliceCounts if not null, receives the number of voxels of the
+	 *        component in each slice
+	 * @return a mask with the voxels of the component set
+	 */
+	public BinaryMask toMask(int label, long[] sliceCounts) {
+		BinaryMask mask = new BinaryMask(xSize, ySize, labels.length);
+		int wordsPerRow = mask.getWordsPerRow();
+		for (int z = 0; z < labels.length; ++z) {
+			int[] sliceLabels = labels[z];
+			long[] words = mask.getSlice(z);
+			long count = 0;
+			for (int y = 0; y < ySize; ++y) {
+				for (int x = 0; x < xSize; ++x) {
+					if (sliceLabels[y * xSize + x] == label) {
+						words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+						++count;
+					}
+				}
+			}
+			if (sliceCounts != null) {
+				sliceCounts[z] = count;
+			}
+		}
+		return mask;
+	}
+}
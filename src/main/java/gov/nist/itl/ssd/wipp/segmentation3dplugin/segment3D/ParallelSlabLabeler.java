@@ -0,0 +1,174 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import java.util.concurrent.ForkJoinPool;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
+
+/**
+ * Parallel connected component labeling by z-slabs.
+ *
+ * The volume is split into slabs of consecutive slices that are labeled
+ * independently on a ForkJoinPool. The provisional labels of slab s are then
+ * offset by the number of provisional labels of the previous slabs, and the
+ * equivalences across each boundary plane between two slabs are merged into a
+ * concurrent union-find. Since provisional labels are ordered by the scan
+ * position of the voxel which created them, and a set is always represented
+ * by its smallest label, the final labels and sizes are the same as the ones
+ * of UnionFindLabeler whatever the number of threads.
+ */
+public class ParallelSlabLabeler extends ConnectedComponentLabeler {
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Labeler running on the common ForkJoinPool
+	 */
+	public ParallelSlabLabeler(int connectivity) {
+		this(connectivity, ForkJoinPool.commonPool());
+	}
+
+	public ParallelSlabLabeler(int connectivity, ForkJoinPool pool) {
+		super(connectivity);
+		this.pool = pool;
+	}
+
+	@Override
+	public LabeledVolume label(BinaryMask mask) {
+
+		int xSize = mask.getXSize();
+		int ySize = mask.getYSize();
+		int zSize = mask.getZSize();
+		int wordsPerRow = mask.getWordsPerRow();
+
+		// a few slabs per thread to balance the load
+		int numberOfSlabs = Math.max(1, Math.min(zSize, 2 * pool.getParallelism()));
+		int[] slabStarts = new int[numberOfSlabs + 1];
+		for (int s = 0; s <= numberOfSlabs; ++s) {
+			slabStarts[s] = (int) ((long) zSize * s / numberOfSlabs);
+		}
+
+		// first pass: provisional labels of each slab
+		int[][] labels = new int[zSize][];
+		UnionFind[] slabUnionFinds = new UnionFind[numberOfSlabs];
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s -> {
+			for (int z = slabStarts[s]; z < slabStarts[s + 1]; ++z) {
+				labels[z] = new int[xSize * ySize];
+			}
+			slabUnionFinds[s] = labelSlab(mask, labels, slabStarts[s], slabStarts[s + 1]);
+		});
+
+		// global provisional labels: local labels offset by the previous slabs
+		int[] labelOffsets = new int[numberOfSlabs + 1];
+		long numberOfProvisionalLabels = 0;
+		for (int s = 0; s < numberOfSlabs; ++s) {
+			labelOffsets[s] = (int) numberOfProvisionalLabels;
+			numberOfProvisionalLabels += slabUnionFinds[s].size();
+			if (numberOfProvisionalLabels >= Integer.MAX_VALUE) {
+				throw new IllegalStateException("Too many provisional labels");
+			}
+		}
+		labelOffsets[numberOfSlabs] = (int) numberOfProvisionalLabels;
+
+		ConcurrentUnionFind unionFind = new ConcurrentUnionFind(
+				(int) numberOfProvisionalLabels);
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s -> {
+			UnionFind slabUnionFind = slabUnionFinds[s];
+			for (int label = 1; label <= slabUnionFind.size(); ++label) {
+				unionFind.setParent(labelOffsets[s] + label,
+						labelOffsets[s] + slabUnionFind.find(label));
+			}
+			slabUnionFinds[s] = null;
+		});
+
+		// merge the equivalences across the slab boundaries
+		int[][] offsets = getBackwardNeighborOffsets();
+		ConcurrencyUtils.parallelFor(pool, 1, numberOfSlabs, s -> {
+			int z = slabStarts[s];
+			int[] sliceLabels = labels[z];
+			int[] previousSliceLabels = labels[z - 1];
+			for (int y = 0; y < ySize; ++y) {
+				for (int x = 0; x < xSize; ++x) {
+					int label = sliceLabels[y * xSize + x];
+					if (label == 0) {
+						continue;
+					}
+					for (int[] offset : offsets) {
+						if (offset[2] != -1) {
+							continue;
+						}
+						int xNeighbor = x + offset[0];
+						int yNeighbor = y + offset[1];
+						if (xNeighbor < 0 || xNeighbor >= xSize || yNeighbor < 0
+								|| yNeighbor >= ySize) {
+							continue;
+						}
+						int neighborLabel = previousSliceLabels[yNeighbor * xSize + xNeighbor];
+						if (neighborLabel != 0) {
+							unionFind.union(labelOffsets[s] + label,
+									labelOffsets[s - 1] + neighborLabel);
+						}
+					}
+				}
+			}
+		});
+
+		// number the components in order of their first voxel
+		int[] finalLabels = new int[(int) numberOfProvisionalLabels + 1];
+		int numberOfComponents = 0;
+		for (int label = 1; label <= numberOfProvisionalLabels; ++label) {
+			int root = unionFind.find(label);
+			finalLabels[label] = (root == label) ? ++numberOfComponents
+					: finalLabels[root];
+		}
+
+		// second pass: final labels, and sizes of the provisional labels
+		// (each slab only touches its own range of provisional labels)
+		long[] provisionalSizes = new long[(int) numberOfProvisionalLabels + 1];
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfSlabs, s -> {
+			for (int z = slabStarts[s]; z < slabStarts[s + 1]; ++z) {
+				long[] words = mask.getSlice(z);
+				int[] sliceLabels = labels[z];
+				for (int y = 0; y < ySize; ++y) {
+					for (int w = 0; w < wordsPerRow; ++w) {
+						long word = words[y * wordsPerRow + w];
+						while (word != 0) {
+							int index = y * xSize + (w << 6) + Long.numberOfTrailingZeros(word);
+							word &= word - 1;
+
+							int label = labelOffsets[s] + sliceLabels[index];
+							provisionalSizes[label]++;
+							sliceLabels[index] = finalLabels[label];
+						}
+					}
+				}
+			}
+		});
+
+		long[] sizes = new long[numberOfComponents + 1];
+		for (int label = 1; label <= numberOfProvisionalLabels; ++label) {
+			sizes[finalLabels[label]] += provisionalSizes[label];
+		}
+
+		return new LabeledVolume(xSize, ySize, labels, sizes);
+	}
+}
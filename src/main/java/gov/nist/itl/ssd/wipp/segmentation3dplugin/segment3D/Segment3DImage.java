@@ -20,16 +20,22 @@
  */
 package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
+
 /**
  * This is a class to segment a 3D FITS file with a given threshold and compute
  * the number of objects in the image larger than N voxels
@@ -45,12 +51,24 @@ public class Segment3DImage {
 	
 	private ImagePlus segmentedImagePlus;
 
-	private int[][][] imageData;
+	// voxel intensities, released once the image is thresholded
+	private VoxelBuffer imageData;
+	// bit-packed foreground mask, available once the image is thresholded
+	private BinaryMask mask;
 	private int xSize;
 	private int ySize;
 	private int zSize;
+	// pool running the per-slice work
+	private final ForkJoinPool pool;
 	private long frgCount;
 	private long bkgCount;
+	// foreground count of each slice, kept up to date by every operation on
+	// the mask, and a copy of it taken at the end of each stage
+	private long[] sliceFrgCounts;
+	private final Map<String, long[]> stageSliceFrgCounts = new LinkedHashMap<String, long[]>();
+	// smallest box containing the foreground (null if there is none): the
+	// stages after thresholding only work on it, plus the margin they need
+	private BoundingBox foregroundBox;
 	
 	public final static int NO_MORPHOLOGICAL_OPERATIONS = 0;
 	public final static int CLOSING_FIRST_MORPHOLOGICAL_OPERATIONS = 1;
@@ -60,7 +78,24 @@ public class Segment3DImage {
 	public final static int DILATE_MORPHOLOGICAL_OPERATIONS = 5;
 	public final static int ERODE_MORPHOLOGICAL_OPERATIONS = 6;
 	
+	public final static int BALL_STRUCTURING_ELEMENT = 0;
+	public final static int BOX_STRUCTURING_ELEMENT = 1;
+	
 	private boolean isThresholded = false;
+	
+	// structuring element of the morphological operations, and voxel
+	// dimensions used to shape the ball on anisotropic stacks
+	private int structuringElement = BOX_STRUCTURING_ELEMENT;
+	private double voxelDimX = 1.0;
+	private double voxelDimY = 1.0;
+	private double voxelDimZ = 1.0;
+	
+	// engine used to label connected components (by default z-slabs labeled
+	// on the pool, with 6-connectivity as the floods)
+	private ConnectedComponentLabeler labeler;
+	
+	// span flood fill engine (its work stack is reused between the floods)
+	private final SpanFloodFill floodFill = new SpanFloodFill();
 
 	/**
 	 * Constructor of Segment3DImage class
@@ -76,21 +111,55 @@ public class Segment3DImage {
 		this.xSize = image3D.getWidth();
 		this.ySize = image3D.getHeight();
 		this.zSize = image3D.getNSlices();
+		this.pool = ForkJoinPool.commonPool();
+		this.labeler = new ParallelSlabLabeler(
+				ConnectedComponentLabeler.CONNECTIVITY_6, pool);
 		
-		imageData = new int[xSize][ySize][zSize];
 		frgCount = 0;
 		bkgCount = 0;
 		
 		// Fill thresholdedImage with voxel intensities
-		ImageStack imgStack = image3D.getStack();
-		for(int z = 1; z <= zSize; ++ z) {
-			ImageProcessor imgProc = imgStack.getProcessor(z);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					imageData[x][y][z-1] = imgProc.getPixel(x, y);
-				}
-			}
-		}
+		imageData = VoxelBuffer.fromImagePlus(image3D);
+	}
+	
+	/**
+	 * Constructor of Segment3DImage class thresholding the image while
+	 * loading it (on the common ForkJoinPool)
+	 * 
+	 * @param image3D The input 3D ImagePlus
+	 * @param threshold The threshold
+	 */
+	public Segment3DImage(ImagePlus image3D, double threshold) {
+		this(image3D, threshold, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Constructor of Segment3DImage class thresholding the image while
+	 * loading it. The voxels are read slice by slice, in parallel, from the
+	 * pixel arrays of the image processors and only the mask is kept: the
+	 * object is in the same state as after thresholdImage(threshold). The
+	 * threshold may have a fractional part, for 32-bit images.
+	 * 
+	 * @param image3D The input 3D ImagePlus
+	 * @param threshold The threshold
+	 * @param pool The pool running the slices
+	 */
+	public Segment3DImage(ImagePlus image3D, double threshold, ForkJoinPool pool) {
+		
+		this.segmentedImagePlus = image3D.createImagePlus();
+		
+		this.xSize = image3D.getWidth();
+		this.ySize = image3D.getHeight();
+		this.zSize = image3D.getNSlices();
+		this.pool = pool;
+		this.labeler = new ParallelSlabLabeler(
+				ConnectedComponentLabeler.CONNECTIVITY_6, pool);
+		
+		LOG.info("Loading and thresholding image...");
+		double[] sliceThresholds = new double[zSize];
+		Arrays.fill(sliceThresholds, threshold);
+		thresholdSlices(VoxelBuffer.wrap(image3D), sliceThresholds);
+		LOG.info("Thresholding done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 	}
 	
 	
@@ -109,25 +178,10 @@ public class Segment3DImage {
 		if(! isThresholded)
 			thresholdImage(threshold);
 		
-		int nextComponentId = 2;
-		
 		// Get objects sizes
-		for(int z = 0; z < zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					
-					if(imageData[x][y][z] == 1) {
-						
-						int componentSize = nonRecursiveFlood(1,
-								nextComponentId, x, y, z);
-						
-						if(componentSize > n)
-							numberOfObjectsFound ++;
-						
-						nextComponentId ++;
-					}
-				}
-			}
+		if(foregroundBox != null) {
+			LabeledVolume components = labelComponents(extractMask(foregroundBox));
+			numberOfObjectsFound = components.getNumberOfComponentsLargerThan(n);
 		}
 		
 		return numberOfObjectsFound;
@@ -139,6 +193,46 @@ public class Segment3DImage {
 		LOG.info("Starting segmentation of image...");
 		
 		thresholdImage(threshold);
+		return segmentThresholdedImage(morphologicalOperationChoice,
+				morphologicalOperationRadius, removeEdgeComponents, fillHoles,
+				makeSingleComponent);
+	}
+	
+	/**
+	 * Applies the segmentation steps following the thresholding to an image
+	 * already thresholded (for instance by the thresholding constructor)
+	 */
+	public ImagePlus segmentThresholdedImage(int morphologicalOperationChoice, int morphologicalOperationRadius,
+								  boolean removeEdgeComponents, boolean fillHoles, boolean makeSingleComponent) {
+		
+		applySegmentationSteps(morphologicalOperationChoice,
+				morphologicalOperationRadius, removeEdgeComponents, fillHoles,
+				makeSingleComponent);
+		
+		// Update the segmented image ImagePlus object
+		return generateSegmentedImagePlus();
+		
+	}
+	
+	/**
+	 * Applies the segmentation steps following the thresholding to an image
+	 * already thresholded, and labels the connected components of the result
+	 * 
+	 * @return the label image (see generateLabeledImagePlus)
+	 */
+	public ImagePlus segmentThresholdedImageToLabels(int morphologicalOperationChoice, int morphologicalOperationRadius,
+								  boolean removeEdgeComponents, boolean fillHoles, boolean makeSingleComponent) {
+		
+		applySegmentationSteps(morphologicalOperationChoice,
+				morphologicalOperationRadius, removeEdgeComponents, fillHoles,
+				makeSingleComponent);
+		
+		return generateLabeledImagePlus();
+	}
+	
+	private void applySegmentationSteps(int morphologicalOperationChoice, int morphologicalOperationRadius,
+								  boolean removeEdgeComponents, boolean fillHoles, boolean makeSingleComponent) {
+		
 		if(removeEdgeComponents) {
 			removeEdgeComponents();
 		}
@@ -154,10 +248,6 @@ public class Segment3DImage {
 		
 		if(morphologicalOperationChoice != NO_MORPHOLOGICAL_OPERATIONS)
 			applyMorphologicalOperations(morphologicalOperationRadius, morphologicalOperationChoice);
-		
-		// Update the segmented image ImagePlus object
-		return generateSegmentedImagePlus();
-		
 	}
 	
 	public ImagePlus segmentImagePerFrame(int [] threshold, int morphologicalOperationChoice, int morphologicalOperationRadius) {
@@ -187,9 +277,17 @@ public class Segment3DImage {
 			
 			byte[] sliceData = new byte[xSize * ySize];
 			
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					sliceData[y * xSize + x] = (byte) ((imageData[x][y][z] == 1) ? 255 : 0);
+			// only the foreground box has voxels to unpack
+			BoundingBox box = foregroundBox;
+			if(box != null && z >= box.getZMin() && z <= box.getZMax()) {
+				long[] words = mask.getSlice(z);
+				int wordsPerRow = mask.getWordsPerRow();
+				for(int y = box.getYMin(); y <= box.getYMax(); ++ y) {
+					for(int x = box.getXMin(); x <= box.getXMax(); ++ x) {
+						if((words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0) {
+							sliceData[y * xSize + x] = (byte) 255;
+						}
+					}
 				}
 			}
 			
@@ -203,7 +301,62 @@ public class Segment3DImage {
 	}
 	
 	/**
-	 * @return the ImagePlus object of the internal INT 3D image
+	 * Labels the connected components of the mask (with the labeler of
+	 * makeSingleComponent), in scan order from 1, the background being 0
+	 * 
+	 * @return the label image, 16-bit or, for more than 65535 components,
+	 *         32-bit (float labels are exact up to 2^24 components)
+	 */
+	public ImagePlus generateLabeledImagePlus() {
+		LOG.info("Creating the labeled ImagePlus object");
+		BoundingBox box = foregroundBox;
+		LabeledVolume components = box == null ? null
+				: labelComponents(extractMask(box));
+		int numberOfComponents = components == null ? 0
+				: components.getNumberOfComponents();
+		if(numberOfComponents > (1 << 24)) {
+			throw new IllegalStateException("Too many components for a label image: "
+					+ numberOfComponents);
+		}
+		LOG.info("Number of components: " + numberOfComponents);
+		boolean shortLabels = numberOfComponents <= 0xFFFF;
+		
+		ImageStack imgStack = new ImageStack(xSize, ySize);
+		for(int z = 0; z < zSize; ++ z) {
+			
+			short[] shortSlice = shortLabels ? new short[xSize * ySize] : null;
+			float[] floatSlice = shortLabels ? null : new float[xSize * ySize];
+			
+			// the labels are those of the foreground box
+			if(box != null && z >= box.getZMin() && z <= box.getZMax()) {
+				int[] labels = components.getSlice(z - box.getZMin());
+				int boxWidth = box.getXSize();
+				for(int y = box.getYMin(); y <= box.getYMax(); ++ y) {
+					int labelRow = (y - box.getYMin()) * boxWidth - box.getXMin();
+					for(int x = box.getXMin(); x <= box.getXMax(); ++ x) {
+						int label = labels[labelRow + x];
+						if(label != 0) {
+							if(shortLabels)
+								shortSlice[y * xSize + x] = (short) label;
+							else
+								floatSlice[y * xSize + x] = label;
+						}
+					}
+				}
+			}
+			
+			imgStack.addSlice(shortLabels
+					? new ShortProcessor(xSize, ySize, shortSlice, null)
+					: new FloatProcessor(xSize, ySize, floatSlice, null));
+		}
+		segmentedImagePlus.setStack(imgStack);
+		
+		return segmentedImagePlus;
+	}
+	
+	/**
+	 * @return the ImagePlus object of the internal 3D image (intensities, or
+	 *         0/1 values once the image is thresholded)
 	 */
 	public ImagePlus generateImagePlus() {
 		// Update the segmented image ImagePlus object
@@ -213,9 +366,16 @@ public class Segment3DImage {
 			
 			short[] sliceData = new short[xSize * ySize];
 			
-			for(int x = 0; x < xSize; ++ x) {
+			if(isThresholded) {
 				for(int y = 0; y < ySize; ++ y) {
-					sliceData[y * xSize + x] = (short) (imageData[x][y][z] );
+					for(int x = 0; x < xSize; ++ x) {
+						sliceData[y * xSize + x] = (short) (mask.get(x, y, z) ? 1 : 0);
+					}
+				}
+			}
+			else {
+				for(int i = 0; i < sliceData.length; ++ i) {
+					sliceData[i] = (short) imageData.get(z, i);
 				}
 			}
 			
@@ -254,14 +414,23 @@ public class Segment3DImage {
 		ImageStack imgStack = mask3D.getStack();
 		for(int z = 1; z <= zSize; ++ z) {
 			ImageProcessor imgProc = imgStack.getProcessor(z);
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if( imgProc.getPixel(x, y)  == bkgValue ){
-						imageData[x][y][z-1] = 0;
+			for(int i = 0; i < xSize * ySize; ++ i) {
+				if( imgProc.get(i)  == bkgValue ){
+					if(isThresholded) {
+						if(mask.get(i % xSize, i / xSize, z-1)) {
+							mask.clear(i % xSize, i / xSize, z-1);
+							sliceFrgCounts[z-1] --;
+						}
 					}
+					else
+						imageData.set(z-1, i, 0);
 				}
 			}
 		}
+		if(isThresholded) {
+			updateForegroundBox(foregroundBox);
+			recordForegroundCounts("applyBinaryMask");
+		}
 	
 		LOG.info("Applying 3D mask by AND operation");
 		
@@ -272,27 +441,10 @@ public class Segment3DImage {
 	public long thresholdImage(int threshold) {
 		
 		LOG.info("Thresholding image...");
-		frgCount = 0;
-		bkgCount = 0;
 		
-		// Fill thresholdedImage with 1 if pixel value > threshold, 0 otherwise
-		
-		for(int z = 1; z <= zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if(imageData[x][y][z-1] > threshold) {
-						frgCount ++;
-						imageData[x][y][z-1] = 1;
-					}
-					else {
-						bkgCount ++;
-						imageData[x][y][z-1] = 0;
-					}
-				}
-			}
-		}
-		
-		isThresholded = true;
+		double[] sliceThresholds = new double[zSize];
+		Arrays.fill(sliceThresholds, threshold);
+		thresholdSlices(imageData, sliceThresholds);
 		
 		LOG.info("Thresholding done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		
@@ -315,63 +467,70 @@ public class Segment3DImage {
 			return -1;			
 		}
 		LOG.info("Thresholding image...");
-		frgCount = 0;
-		bkgCount = 0;
 		
-		// Fill thresholdedImage with 1 if pixel value > threshold, 0 otherwise
-		
-		for(int z = 1; z <= zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if(imageData[x][y][z-1] > threshold[z-1]) {
-						frgCount ++;
-						imageData[x][y][z-1] = 1;
-					}
-					else {
-						bkgCount ++;
-						imageData[x][y][z-1] = 0;
-					}
-				}
-			}
+		double[] sliceThresholds = new double[zSize];
+		for (int z = 0; z < zSize; ++z) {
+			sliceThresholds[z] = threshold[z];
 		}
-		
-		isThresholded = true;
+		thresholdSlices(imageData, sliceThresholds);
 		
 		LOG.info("Thresholding done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		
 		return frgCount;
 	}
 	
+	/**
+	 * Fill the mask with 1 if voxel value > threshold of its slice, 0
+	 * otherwise, slice by slice on the pool, and release the intensities
+	 */
+	private void thresholdSlices(VoxelBuffer source, double[] sliceThresholds) {
+		
+		BinaryMask thresholdedMask = new BinaryMask(xSize, ySize, zSize);
+		int wordsPerRow = thresholdedMask.getWordsPerRow();
+		long[] counts = new long[zSize];
+		ConcurrencyUtils.parallelFor(pool, 0, zSize, z ->
+				counts[z] = source.thresholdSlice(z, sliceThresholds[z],
+						thresholdedMask.getSlice(z), wordsPerRow));
+		
+		sliceFrgCounts = counts;
+		mask = thresholdedMask;
+		foregroundBox = mask.getBoundingBox(null);
+		imageData = null;
+		
+		isThresholded = true;
+		recordForegroundCounts("thresholdImage");
+	}
+	
 	public long removeEdgeComponents() {
 		
 		LOG.info("Removing edge components...");
 
-		int numVoxels[] = new int[] { xSize, ySize, zSize };
-
-		// only check the xz and yz planes
-		for (int skipDim = 0; skipDim < 2; skipDim++) {
-			int deltas[] = new int[3];
-
-			for (int dim = 0; dim < 3; dim++) {
-				if ((dim == skipDim) && (numVoxels[dim] > 1)) {
-					deltas[dim] = numVoxels[dim] - 1;
-				} else {
-					deltas[dim] = 1;
-				}
-			}
-
-			for (int z = 0; z < zSize; z += deltas[2]) {
-				for (int y = 0; y < ySize; y += deltas[1]) {
-					for (int x = 0; x < xSize; x += deltas[0]) {
-						if(imageData[x][y][z] == 1) {
-							nonRecursiveFlood(1, 0, x, y, z);
-						}
-					}
-				}
+		BoundingBox box = foregroundBox;
+		if (box != null) {
+			// the components touching the xz and yz planes of the volume touch
+			// the same planes of the foreground box: flood the foreground from
+			// all their voxels
+			int faces = 0;
+			if (box.getXMin() == 0) faces |= SpanFloodFill.FACE_X_MIN;
+			if (box.getXMax() == xSize - 1) faces |= SpanFloodFill.FACE_X_MAX;
+			if (box.getYMin() == 0) faces |= SpanFloodFill.FACE_Y_MIN;
+			if (box.getYMax() == ySize - 1) faces |= SpanFloodFill.FACE_Y_MAX;
+
+			BinaryMask region = extractMask(box);
+			BinaryMask removed = new BinaryMask(box.getXSize(), box.getYSize(),
+					box.getZSize());
+			long[] removedPerSlice = new long[box.getZSize()];
+			floodFill.fillFromFaces(region, true, removed, faces, removedPerSlice);
+			region.andNot(removed);
+			storeMask(region, box);
+			for (int z = 0; z < box.getZSize(); ++z) {
+				sliceFrgCounts[box.getZMin() + z] -= removedPerSlice[z];
 			}
+			updateForegroundBox(box);
 		}
+		logSkippedVoxels("Removing edge components", box);
 
-		updateForegroundBackgroundCounts();
+		recordForegroundCounts("removeEdgeComponents");
 
 		LOG.info("Removing edge components done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		
@@ -382,30 +541,115 @@ public class Segment3DImage {
 		
 		LOG.info("Filling holes...");
 
-		if (imageData[0][0][0] != 0) {
+		if (mask.get(0, 0, 0)) {
 			System.err
 					.println("Error filling holes- corner voxel is not empty");
 			return (1);
 			// TODO : throw specific error
 		}
 
-		nonRecursiveFlood(0, 2, 0, 0, 0);
-		LOG.info("Marking bck done.");
+		BoundingBox box = foregroundBox;
+		if (box == null) {
+			// only background, connected to the corner
+			logSkippedVoxels("Filling holes", null);
+			recordForegroundCounts("fillHoles");
+			LOG.info("Filling holes done. FRG count: " + frgCount + " BKG count: " + bkgCount);
+			return frgCount;
+		}
 
-		for (int z = 0; z < zSize; z++) {
-			for (int y = 0; y < ySize; y++) {
-				for (int x = 0; x < xSize; x++) {
+		// Work on the foreground box grown by one voxel. The voxels of the
+		// grown box outside of the foreground box (its shell) are background,
+		// and connected to the background outside of the grown box, which is
+		// in one piece unless it is made of two slabs on both sides of the
+		// foreground box along a single axis.
+		int[] sizes = { xSize, ySize, zSize };
+		int[] mins = { box.getXMin(), box.getYMin(), box.getZMin() };
+		int[] maxs = { box.getXMax(), box.getYMax(), box.getZMax() };
+		int shellFaces = 0;
+		int axesWithSlabs = 0;
+		int slabAxis = -1;
+		for (int axis = 0; axis < 3; ++axis) {
+			boolean lowSlab = mins[axis] > 0;
+			boolean highSlab = maxs[axis] < sizes[axis] - 1;
+			if (lowSlab) shellFaces |= 1 << (2 * axis);
+			if (highSlab) shellFaces |= 2 << (2 * axis);
+			if (lowSlab || highSlab) {
+				axesWithSlabs ++;
+				slabAxis = (lowSlab && highSlab) ? axis : -1;
+			}
+		}
+		if (axesWithSlabs != 1) {
+			slabAxis = -1;
+		}
+		boolean cornerInBox = mins[0] == 0 && mins[1] == 0 && mins[2] == 0;
+
+		BoundingBox grownBox = box.expand(1, 1, 1, xSize, ySize, zSize);
+		BinaryMask region = extractMask(grownBox);
+		BinaryMask background = new BinaryMask(grownBox.getXSize(),
+				grownBox.getYSize(), grownBox.getZSize());
+		long[] backgroundPerSlice = new long[grownBox.getZSize()];
+		if (cornerInBox) {
+			floodFill.fill(region, false, background, 0, 0, 0, backgroundPerSlice);
+		} else {
+			// the corner is in the (first) outside piece, which touches the
+			// shell on the low face of the slab axis or on all its faces
+			int seedFaces = slabAxis < 0 ? shellFaces : 1 << (2 * slabAxis);
+			floodFill.fillFromFaces(region, false, background, seedFaces,
+					backgroundPerSlice);
+		}
+		LOG.info("Marking bck done.");
 
-					if (imageData[x][y][z] == 2) {
-						imageData[x][y][z] = 0;
-					} else if (imageData[x][y][z] == 0) {
-						imageData[x][y][z] = 1;
-					}
+		// the background outside of the grown box which was not reached is
+		// a hole too
+		BoundingBox unreached = null;
+		if (slabAxis >= 0) {
+			int[] faceVoxel = { 0, 0, 0 };
+			faceVoxel[slabAxis] = maxs[slabAxis] + 1 - mins[slabAxis] + 1;
+			int[] unreachedMins = { 0, 0, 0 };
+			int[] unreachedMaxs = { xSize - 1, ySize - 1, zSize - 1 };
+			unreachedMins[slabAxis] = maxs[slabAxis] + 2;
+			if (!background.get(faceVoxel[0], faceVoxel[1], faceVoxel[2])
+					&& unreachedMins[slabAxis] < sizes[slabAxis]) {
+				unreached = new BoundingBox(unreachedMins[0], unreachedMaxs[0],
+						unreachedMins[1], unreachedMaxs[1], unreachedMins[2],
+						unreachedMaxs[2]);
+			}
+		} else if (cornerInBox && shellFaces != 0) {
+			int[] faceVoxel = { 0, 0, 0 };
+			for (int axis = 0; axis < 3; ++axis) {
+				if ((shellFaces & (2 << (2 * axis))) != 0) {
+					faceVoxel[axis] = maxs[axis] + 1 - (mins[axis] > 0 ? mins[axis] - 1 : 0);
+					break;
 				}
 			}
+			if (!background.get(faceVoxel[0], faceVoxel[1], faceVoxel[2])) {
+				unreached = new BoundingBox(0, xSize - 1, 0, ySize - 1, 0, zSize - 1);
+			}
 		}
 
-		updateForegroundBackgroundCounts();
+		// everything not reached from the corner is foreground or a hole
+		background.invert();
+		if (unreached != null) {
+			mask.fill(unreached);
+		}
+		storeMask(background, grownBox);
+
+		if (unreached == null) {
+			long sliceSize = (long) grownBox.getXSize() * grownBox.getYSize();
+			for (int z = 0; z < grownBox.getZSize(); ++z) {
+				sliceFrgCounts[grownBox.getZMin() + z] = sliceSize - backgroundPerSlice[z];
+			}
+			updateForegroundBox(grownBox);
+		} else {
+			// rare: the foreground cuts the volume in two, count again
+			for (int z = 0; z < zSize; ++z) {
+				sliceFrgCounts[z] = mask.countSlice(z);
+			}
+			updateForegroundBox(null);
+		}
+		logSkippedVoxels("Filling holes", grownBox);
+
+		recordForegroundCounts("fillHoles");
 		LOG.info("Filling holes done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		return frgCount;
 	}
@@ -414,45 +658,22 @@ public class Segment3DImage {
 		
 		LOG.info("Making single component...");
 
-		int maxComponentId = 2;
-		int maxComponentSize = 0;
-		
-		int nextComponentId = 2;
-		
-		// Get objects sizes and find largest component
-		for(int z = 0; z < zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					
-					if(imageData[x][y][z] == 1) {
-						
-						int componentSize = nonRecursiveFlood(1,
-								nextComponentId, x, y, z);
-						if(componentSize > maxComponentSize) {
-							maxComponentId = nextComponentId;
-							maxComponentSize = componentSize;
-						}
-						
-						nextComponentId ++;
-					}
-				}
-			}
-		}
-		
-		for (int z = 0; z < zSize; z++) {
-			for (int y = 0; y < ySize; y++) {
-				for (int x = 0; x < xSize; x++) {
-
-					if (imageData[x][y][z] == maxComponentId) {
-						imageData[x][y][z] = 1;
-					} else if (imageData[x][y][z] != 0) {
-						imageData[x][y][z] = 0;
-					}
-				}
+		// Get objects sizes and keep only the largest component
+		BoundingBox box = foregroundBox;
+		if (box != null) {
+			LabeledVolume components = labelComponents(extractMask(box));
+			int largestLabel = components.getLargestLabel();
+			if(largestLabel != 0) {
+				long[] componentPerSlice = new long[box.getZSize()];
+				storeMask(components.toMask(largestLabel, componentPerSlice), box);
+				System.arraycopy(componentPerSlice, 0, sliceFrgCounts,
+						box.getZMin(), box.getZSize());
+				updateForegroundBox(box);
 			}
 		}
+		logSkippedVoxels("Making single component", box);
 
-		updateForegroundBackgroundCounts();
+		recordForegroundCounts("makeSingleComponent");
 		
 		LOG.info("Making single component done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		
@@ -513,232 +734,212 @@ public class Segment3DImage {
 		// make single component to avoid disconnected segments
 		makeSingleComponent();
 		
-		updateForegroundBackgroundCounts();
+		recordForegroundCounts("applyMorphologicalOperations");
 		LOG.info("Applying morphological operations done. FRG count: " + frgCount + " BKG count: " + bkgCount);
 		
 		return frgCount;
 	}
 	
+	/**
+	 * Dilates the mask with the current structuring element. The box spans
+	 * 2 * radius + 1 voxels along each axis. The ball radius is given in
+	 * voxels along the finest axis: the ball has a radius of
+	 * radius * min(voxelDimX, voxelDimY, voxelDimZ) in calibrated units.
+	 * 
+	 * @param radius radius of the structuring element
+	 */
 	public void dilate(int radius) {
-		dilateOrErode(radius, 0, 1);
+		dilateOrErode(radius, true);
+		recordForegroundCounts("dilate");
 	}
 	
+	/**
+	 * Erodes the mask with the current structuring element
+	 * 
+	 * @param radius radius of the structuring element (see dilate)
+	 */
 	public void erode(int radius) {
-		dilateOrErode(radius, 1, 0);
+		dilateOrErode(radius, false);
+		recordForegroundCounts("erode");
 	}
 	
-	private void dilateOrErode(int radius, int fromValue, int toValue) {
-
-		int centerXYZ[] = new int[3];
-		int offsetXYZ[] = new int[3];
-
-		for (centerXYZ[2] = 0; centerXYZ[2] < zSize; centerXYZ[2]++) {
-			for (centerXYZ[1] = 0; centerXYZ[1] < ySize; centerXYZ[1]++) {
-				for (centerXYZ[0] = 0; centerXYZ[0] < xSize; centerXYZ[0]++) {
-
-					if (imageData[centerXYZ[0]][centerXYZ[1]][centerXYZ[2]] == toValue) {
-
-						for (offsetXYZ[2] = centerXYZ[2] - radius; offsetXYZ[2] <= centerXYZ[2]
-								+ radius; offsetXYZ[2]++) {
-
-							for (offsetXYZ[1] = centerXYZ[1] - radius; offsetXYZ[1] <= centerXYZ[1]
-									+ radius; offsetXYZ[1]++) {
-
-								for (offsetXYZ[0] = centerXYZ[0] - radius; offsetXYZ[0] <= centerXYZ[0]
-										+ radius; offsetXYZ[0]++) {
-
-									if ((offsetXYZ[2] >= 0)
-											&& (offsetXYZ[2] < zSize)
-											&& (offsetXYZ[1] >= 0)
-											&& (offsetXYZ[1] < ySize)
-											&& (offsetXYZ[0] >= 0)
-											&& (offsetXYZ[0] < xSize)) {
-
-										if (imageData[offsetXYZ[0]][offsetXYZ[1]][offsetXYZ[2]] == fromValue) {
-											imageData[offsetXYZ[0]][offsetXYZ[1]][offsetXYZ[2]] = 2;
-										}
-									}
-								}
-							}
-						}
-					}
-				}
-			}
+	private void dilateOrErode(int radius, boolean dilate) {
+		
+		BoundingBox box = foregroundBox;
+		if (box == null) {
+			logSkippedVoxels(dilate ? "Dilation" : "Erosion", null);
+			return;
 		}
-
-		for (int z = 0; z < zSize; ++z) {
-			for (int x = 0; x < xSize; ++x) {
-				for (int y = 0; y < ySize; ++y) {
-					if (imageData[x][y][z] == 2) {
-						imageData[x][y][z] = toValue;
-					}
-				}
-			}
+		
+		// everything within reach of the structuring element of a foreground
+		// voxel (the margin also keeps the box faces out of reach for the
+		// erosion, unless they are faces of the volume)
+		BoundingBox grownBox;
+		if (structuringElement == BOX_STRUCTURING_ELEMENT) {
+			grownBox = box.expand(radius, radius, radius, xSize, ySize, zSize);
+		} else {
+			double ballRadius = getBallRadius(radius);
+			grownBox = box.expand((int) (ballRadius / voxelDimX) + 1,
+					(int) (ballRadius / voxelDimY) + 1,
+					(int) (ballRadius / voxelDimZ) + 1, xSize, ySize, zSize);
 		}
-
+		
+		BinaryMask region = extractMask(grownBox);
+		long[] regionPerSlice = new long[grownBox.getZSize()];
+		if (structuringElement == BOX_STRUCTURING_ELEMENT) {
+			if (dilate)
+				region.dilate(radius, radius, radius, regionPerSlice);
+			else
+				region.erode(radius, radius, radius, regionPerSlice);
+		} else {
+			if (dilate)
+				EuclideanDistanceTransform.dilate(region, getBallRadius(radius),
+						voxelDimX, voxelDimY, voxelDimZ, regionPerSlice);
+			else
+				EuclideanDistanceTransform.erode(region, getBallRadius(radius),
+						voxelDimX, voxelDimY, voxelDimZ, regionPerSlice);
+		}
+		storeMask(region, grownBox);
+		System.arraycopy(regionPerSlice, 0, sliceFrgCounts, grownBox.getZMin(),
+				grownBox.getZSize());
+		
+		updateForegroundBox(dilate ? grownBox : box);
+		logSkippedVoxels(dilate ? "Dilation" : "Erosion", grownBox);
 	}
 	
+	private double getBallRadius(int radius) {
+		return radius * Math.min(voxelDimX, Math.min(voxelDimY, voxelDimZ));
+	}
+	
+	
+	/**
+	 * Labels the components of a region of the mask with the labeler, and
+	 * logs the time taken
+	 */
+	private LabeledVolume labelComponents(BinaryMask region) {
+		long start = System.nanoTime();
+		LabeledVolume components = labeler.label(region);
+		LOG.info("Labeled " + components.getNumberOfComponents()
+				+ " components in " + (System.nanoTime() - start) / 1000000
+				+ " ms (" + labeler.getClass().getSimpleName() + ", "
+				+ pool.getParallelism() + " threads)");
+		return components;
+	}
+	
+	/**
+	 * @return the mask restricted to a box (the mask itself if the box is the
+	 *         whole volume)
+	 */
+	private BinaryMask extractMask(BoundingBox box) {
+		return box.isWholeVolume(xSize, ySize, zSize) ? mask : mask.crop(box);
+	}
+	
+	/**
+	 * Writes back a mask restricted to a box by extractMask
+	 */
+	private void storeMask(BinaryMask region, BoundingBox box) {
+		if (box.isWholeVolume(xSize, ySize, zSize))
+			mask = region;
+		else
+			mask.paste(region, box);
+	}
 	
 	/**
-	 * Find and label a component in the image flooding from the pixel at
-	 * position (x,y,z)
+	 * Shrinks the foreground box to the foreground within a box containing it
 	 * 
-	 * @param fromLabel
-	 *            Label of the pixel in thresholded image to find
-	 * @param toLabel
-	 *            Label put on the found label
-	 * @param x
-	 *            Start x position
-	 * @param y
-	 *            Start y position
-	 * @param z
-	 *            Start z position
-	 * @return Size in pixels of the component
+	 * @param within box containing the foreground (null for the whole volume)
 	 */
-	private int nonRecursiveFlood(int fromLabel, int toLabel, int x, int y, int z) {
-		
-		// Initialize number of pixels in the component and number of pixels to visit
-		int numVoxelsFilled = 0;
-		int xyzToVisitSize = 0;
-		
-		int arraySize = xSize * ySize * (zSize/2 + 1);
-		if(arraySize == 0) arraySize = 1;
-		
-		int[] voxelToVisitX = new int[arraySize];
-		int[] voxelToVisitY = new int[arraySize];
-		int[] voxelToVisitZ = new int[arraySize];
-		
-		// List of pixels to visit (located with their (x,y,z) coordinates)
-		//List<XYZToVisit> xyzToVisitList = new ArrayList<XYZToVisit>();
-		//xyzToVisitList.add(new XYZToVisit(x, y, z));
-		voxelToVisitX[0] = x;
-		voxelToVisitY[0] = y;
-		voxelToVisitZ[0] = z;
-		
-		xyzToVisitSize ++;
-		
-		// Visit pixels to visit
-		while(xyzToVisitSize > 0) {
-			xyzToVisitSize --;
-			
-			XYZToVisit currentXYZ = new XYZToVisit(voxelToVisitX[xyzToVisitSize], voxelToVisitY[xyzToVisitSize], voxelToVisitZ[xyzToVisitSize]);
-			
-			// If pixel is labeled with label of interest, change label and flood
-			if(imageData[currentXYZ.x][currentXYZ.y][currentXYZ.z] == fromLabel) {
-				imageData[currentXYZ.x][currentXYZ.y][currentXYZ.z] = toLabel;
-				
-				for (int zOffset = -1; zOffset <= 1; zOffset++) {
-			      for (int yOffset = -1; yOffset <= 1; yOffset++) {
-				      for (int xOffset = -1; xOffset <= 1; xOffset++) {
-				    	  
-				    	  if (Math.abs(zOffset) + Math.abs(yOffset) + Math.abs(xOffset) != 1) {
-				    		  continue;
-				    	  }
-				    	  
-				    	  if ((currentXYZ.z + zOffset < 0) || 
-			    			  (currentXYZ.y + yOffset < 0) || 
-			    			  (currentXYZ.x + xOffset < 0) || 
-			    			  (currentXYZ.z + zOffset >= zSize) ||
-			    			  (currentXYZ.y + yOffset >= ySize) ||
-			    			  (currentXYZ.x + xOffset >= xSize)) {
-				    		  continue;
-				    	  }
-				    	  
-							// Add a new pixel to visit in the list and increase
-							// number of pixels to visit
-							/*if (xyzToVisitList.size() <= xyzToVisitSize)
-								xyzToVisitList.add(new XYZToVisit(currentXYZ.x
-										+ xOffset, currentXYZ.y + yOffset,
-										currentXYZ.z + zOffset));
-							else
-								xyzToVisitList.set(xyzToVisitSize,
-										new XYZToVisit(currentXYZ.x + xOffset,
-												currentXYZ.y + yOffset,
-												currentXYZ.z + zOffset));*/
-				    	  
-				    	    if(xyzToVisitSize == arraySize) {
-				    	    	
-				    	    	LOG.info("Increasing array size to: " + arraySize * 2);
-				    	    	int[] newVoxelToVisitX = new int[arraySize * 2];
-				    			int[] newVoxelToVisitY = new int[arraySize * 2];
-				    			int[] newVoxelToVisitZ = new int[arraySize * 2];
-				    			System.arraycopy(voxelToVisitX, 0, newVoxelToVisitX, 0, arraySize);
-				    			System.arraycopy(voxelToVisitY, 0, newVoxelToVisitY, 0, arraySize);
-				    			System.arraycopy(voxelToVisitZ, 0, newVoxelToVisitZ, 0, arraySize);
-				    			voxelToVisitX = newVoxelToVisitX;
-				    			voxelToVisitY = newVoxelToVisitY;
-				    			voxelToVisitZ = newVoxelToVisitZ;
-				    			arraySize *= 2;
-				    			
-				    			System.gc();
-				    	    }
-				    	  
-				    	    voxelToVisitX[xyzToVisitSize] = currentXYZ.x + xOffset;
-				    	    voxelToVisitY[xyzToVisitSize] = currentXYZ.y + yOffset;
-				    	    voxelToVisitZ[xyzToVisitSize] = currentXYZ.z + zOffset;
-
-							xyzToVisitSize++;
-
-				      }
-			      }
-				}
-				 // Count number of pixels in the component
-				numVoxelsFilled ++;
-			}
-		}
-		
-		// Return number of pixels in the component
-		return numVoxelsFilled;
+	private void updateForegroundBox(BoundingBox within) {
+		foregroundBox = mask.getBoundingBox(within);
+	}
+	
+	private void logSkippedVoxels(String stage, BoundingBox processedBox) {
+		long numberOfVoxels = (long) xSize * ySize * zSize;
+		long skipped = numberOfVoxels
+				- (processedBox == null ? 0 : processedBox.getNumberOfVoxels());
+		LOG.info(stage + " skipped " + String.format("%.1f", 100.0 * skipped / numberOfVoxels)
+				+ "% of the voxels (foreground box: " + foregroundBox + ")");
 	}
 	
-	private long updateForegroundBackgroundCounts() {
-		  
-		this.frgCount = 0;
-		this.bkgCount = 0;
+	/**
+	 * Updates the foreground and background counts from the per-slice counts
+	 * and keeps a copy of the per-slice counts for the stage
+	 * 
+	 * @param stage name of the stage which just ended
+	 */
+	private void recordForegroundCounts(String stage) {
 		
-		for(int z = 1; z <= zSize; ++ z) {
-			for(int x = 0; x < xSize; ++ x) {
-				for(int y = 0; y < ySize; ++ y) {
-					if(imageData[x][y][z-1] == 1) {
-						frgCount ++;
-					}
-					else {
-						bkgCount ++;
-					}
-				}
-			}
+		long count = 0;
+		for(int z = 0; z < zSize; ++ z) {
+			count += sliceFrgCounts[z];
 		}
+		this.frgCount = count;
+		this.bkgCount = (long) xSize * ySize * zSize - count;
 		
-		return frgCount;
-		}
+		stageSliceFrgCounts.put(stage, sliceFrgCounts.clone());
+	}
 	
 	
 	public long getFRGCount(){
-		updateForegroundBackgroundCounts();
 		return frgCount;
 	}
 	public long getBKGCount(){
-		updateForegroundBackgroundCounts();
 		return bkgCount;
 	}
+	
+	/**
+	 * @return the current foreground count of each slice (null if the image
+	 *         is not thresholded)
+	 */
+	public long[] getSliceFRGCounts() {
+		return sliceFrgCounts == null ? null : sliceFrgCounts.clone();
+	}
+	
+	/**
+	 * @return the foreground count of each slice at the end of the last run of
+	 *         each stage, by stage name, in order of first run
+	 */
+	public Map<String, long[]> getStageSliceFRGCounts() {
+		return Collections.unmodifiableMap(stageSliceFrgCounts);
+	}
+	
+	/**
+	 * @param labeler the connected component labeling engine used by
+	 *        makeSingleComponent, getNumberOfObjectsLargerThanNPixels and
+	 *        generateLabeledImagePlus
+	 *        (default: ParallelSlabLabeler on the pool of the segmentation,
+	 *        or UnionFindLabeler on a single thread, both giving the same
+	 *        labels)
+	 */
+	public void setLabeler(ConnectedComponentLabeler labeler) {
+		this.labeler = labeler;
+	}
 
 	/**
-	 * Class used in nonRecursiveFlood method (helper class)
-	 * 
-	 * @author Mylene Simon
-	 *
+	 * @param structuringElement BOX_STRUCTURING_ELEMENT (default) or
+	 *        BALL_STRUCTURING_ELEMENT (distance transform based)
 	 */
-	private class XYZToVisit {
-		
-		public int x;
-		public int y;
-		public int z;
-		
-		public XYZToVisit(int x, int y, int z) {
-			this.x = x;
-			this.y = y;
-			this.z = z;
+	public void setStructuringElement(int structuringElement) {
+		if (structuringElement != BALL_STRUCTURING_ELEMENT
+				&& structuringElement != BOX_STRUCTURING_ELEMENT) {
+			throw new IllegalArgumentException(
+					"Invalid structuring element: " + structuringElement);
 		}
+		this.structuringElement = structuringElement;
+	}
 
+	/**
+	 * Sets the voxel dimensions used to shape the ball structuring element
+	 * (all must be positive, default 1 x 1 x 1)
+	 */
+	public void setVoxelDimensions(double voxelDimX, double voxelDimY,
+			double voxelDimZ) {
+		if (voxelDimX <= 0 || voxelDimY <= 0 || voxelDimZ <= 0) {
+			throw new IllegalArgumentException("Invalid voxel dimensions: "
+					+ voxelDimX + " x " + voxelDimY + " x " + voxelDimZ);
+		}
+		this.voxelDimX = voxelDimX;
+		this.voxelDimY = voxelDimY;
+		this.voxelDimZ = voxelDimZ;
 	}
 }
@@ -0,0 +1,233 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * Scanline (span) flood fill on bit-packed masks, 6-connectivity.
+ *
+ * A fill finds the voxels connected to one or several seeds in a region of a
+ * mask (the voxels of the region mask equal to regionValue) and sets them in
+ * a filled mask. Voxels already set in the filled mask are never visited.
+ * Whole x-runs are filled at once with word operations, and only the start of
+ * each run of the neighboring rows is pushed on the work stack, which is kept
+ * between calls.
+ */
+class SpanFloodFill {
+
+	static final int FACE_X_MIN = 1;
+	static final int FACE_X_MAX = 2;
+	static final int FACE_Y_MIN = 4;
+	static final int FACE_Y_MAX = 8;
+	static final int FACE_Z_MIN = 16;
+	static final int FACE_Z_MAX = 32;
+
+	// (x, y, z) triples of the seeds left to visit
+	private int[] stack = new int[3 * 1024];
+	private int stackSize;
+
+	// current fill
+	private BinaryMask region;
+	private boolean regionValue;
+	private BinaryMask filled;
+	private int xSize;
+	private int ySize;
+	private int zSize;
+	private int wordsPerRow;
+	private long lastWordMask;
+	private long[] filledPerSlice;
+
+	/**
+	 * Fills the component of the region containing voxel (x, y, z)
+	 *
+	 * @param filledPerSlice if not null, the number of voxels filled in each
+	 *        slice is added to it
+	 * @return the number of voxels filled
+	 */
+	long fill(BinaryMask region, boolean regionValue, BinaryMask filled,
+			int x, int y, int z, long[] filledPerSlice) {
+		start(region, regionValue, filled, filledPerSlice);
+		push(x, y, z);
+		return flood();
+	}
+
+	/**
+	 * Fills, in a single pass, every component of the region touching the
+	 * selected faces of the volume
+	 *
+	 * @param faces OR of the FACE_* constants of the planes to seed
+	 * @param filledPerSlice if not null, the number of voxels filled in each
+	 *        slice is added to it
+	 * @return the number of voxels filled
+	 */
+	long fillFromFaces(BinaryMask region, boolean regionValue,
+			BinaryMask filled, int faces, long[] filledPerSlice) {
+		start(region, regionValue, filled, filledPerSlice);
+		long numVoxelsFilled = 0;
+
+		for (int z = 0; z < zSize; ++z) {
+			boolean zFace = ((faces & FACE_Z_MIN) != 0 && z == 0)
+					|| ((faces & FACE_Z_MAX) != 0 && z == zSize - 1);
+			for (int y = 0; y < ySize; ++y) {
+				if (zFace || ((faces & FACE_Y_MIN) != 0 && y == 0)
+						|| ((faces & FACE_Y_MAX) != 0 && y == ySize - 1)) {
+					pushRuns(y, z, 0, xSize);
+				} else {
+					if ((faces & FACE_X_MIN) != 0) {
+						push(0, y, z);
+					}
+					if ((faces & FACE_X_MAX) != 0) {
+						push(xSize - 1, y, z);
+					}
+				}
+			}
+			// flood slice by slice to keep the stack short
+			numVoxelsFilled += flood();
+		}
+		return numVoxelsFilled;
+	}
+
+	private void start(BinaryMask region, boolean regionValue,
+			BinaryMask filled, long[] filledPerSlice) {
+		this.region = region;
+		this.regionValue = regionValue;
+		this.filled = filled;
+		this.xSize = region.getXSize();
+		this.ySize = region.getYSize();
+		this.zSize = region.getZSize();
+		this.wordsPerRow = region.getWordsPerRow();
+		this.lastWordMask = (xSize & 63) == 0 ? -1L : (1L << (xSize & 63)) - 1;
+		this.filledPerSlice = filledPerSlice;
+		this.stackSize = 0;
+	}
+
+	private long flood() {
+		long numVoxelsFilled = 0;
+
+		while (stackSize > 0) {
+			stackSize -= 3;
+			int x = stack[stackSize];
+			int y = stack[stackSize + 1];
+			int z = stack[stackSize + 2];
+
+			long[] regionWords = region.getSlice(z);
+			long[] filledWords = filled.getSlice(z);
+			int rowStart = y * wordsPerRow;
+			int w = x >>> 6;
+			if ((available(regionWords, filledWords, rowStart, w) & (1L << x)) == 0) {
+				continue;
+			}
+
+			// extend the span to the right
+			long zeros = ~available(regionWords, filledWords, rowStart, w)
+					& (-1L << x);
+			while (zeros == 0 && w < wordsPerRow - 1) {
+				++w;
+				zeros = ~available(regionWords, filledWords, rowStart, w);
+			}
+			int xEnd = zeros == 0 ? xSize
+					: (w << 6) + Long.numberOfTrailingZeros(zeros);
+
+			// extend the span to the left
+			w = x >>> 6;
+			zeros = ~available(regionWords, filledWords, rowStart, w)
+					& ((1L << x) - 1);
+			while (zeros == 0 && w > 0) {
+				--w;
+				zeros = ~available(regionWords, filledWords, rowStart, w);
+			}
+			int xStart = zeros == 0 ? 0
+					: (w << 6) + 64 - Long.numberOfLeadingZeros(zeros);
+
+			// fill the span
+			for (w = xStart >>> 6; w <= (xEnd - 1) >>> 6; ++w) {
+				filledWords[rowStart + w] |= BinaryMask.rangeMask(w, xStart, xEnd);
+			}
+			numVoxelsFilled += xEnd - xStart;
+			if (filledPerSlice != null) {
+				filledPerSlice[z] += xEnd - xStart;
+			}
+
+			// seed the runs of the four neighboring rows along the span
+			if (y > 0) {
+				pushRuns(y - 1, z, xStart, xEnd);
+			}
+			if (y < ySize - 1) {
+				pushRuns(y + 1, z, xStart, xEnd);
+			}
+			if (z > 0) {
+				pushRuns(y, z - 1, xStart, xEnd);
+			}
+			if (z < zSize - 1) {
+				pushRuns(y, z + 1, xStart, xEnd);
+			}
+		}
+		return numVoxelsFilled;
+	}
+
+	/**
+	 * Pushes the first voxel of each run of available voxels of row (y, z)
+	 * within [xStart, xEnd)
+	 */
+	private void pushRuns(int y, int z, int xStart, int xEnd) {
+		long[] regionWords = region.getSlice(z);
+		long[] filledWords = filled.getSlice(z);
+		int rowStart = y * wordsPerRow;
+		long previous = 0;
+		for (int w = xStart >>> 6; w <= (xEnd - 1) >>> 6; ++w) {
+			long candidates = available(regionWords, filledWords, rowStart, w)
+					& BinaryMask.rangeMask(w, xStart, xEnd);
+			long runStarts = candidates & ~((candidates << 1) | (previous >>> 63));
+			while (runStarts != 0) {
+				push((w << 6) + Long.numberOfTrailingZeros(runStarts), y, z);
+				runStarts &= runStarts - 1;
+			}
+			previous = candidates;
+		}
+	}
+
+	/**
+	 * @return the bits of word w of the row which are in the region and not
+	 *         filled yet
+	 */
+	private long available(long[] regionWords, long[] filledWords,
+			int rowStart, int w) {
+		long regionWord = regionWords[rowStart + w];
+		if (!regionValue) {
+			regionWord = ~regionWord;
+			if (w == wordsPerRow - 1) {
+				regionWord &= lastWordMask;
+			}
+		}
+		return regionWord & ~filledWords[rowStart + w];
+	}
+
+	private void push(int x, int y, int z) {
+		if (stackSize == stack.length) {
+			int[] newStack = new int[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, stackSize);
+			stack = newStack;
+		}
+		stack[stackSize] = x;
+		stack[stackSize + 1] = y;
+		stack[stackSize + 2] = z;
+		stackSize += 3;
+	}
+}
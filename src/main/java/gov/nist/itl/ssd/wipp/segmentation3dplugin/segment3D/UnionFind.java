@@ -0,0 +1,89 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * Disjoint-set forest over provisional component labels (1, 2, ...).
+ *
+ * The root of a set is always its smallest label, so that the root of a
+ * component is the label of its first voxel in scan order.
+ */
+class UnionFind {
+
+	private int[] parent;
+	private int size;
+
+	UnionFind(int initialCapacity) {
+		parent = new int[Math.max(2, initialCapacity)];
+		size = 0;
+	}
+
+	/**
+	 * @return the number of labels created
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Creates a new singleton set
+	 *
+	 * @return its label
+	 */
+	int makeSet() {
+		size++;
+		if (size == parent.length) {
+			int[] newParent = new int[parent.length * 2];
+			System.arraycopy(parent, 0, newParent, 0, parent.length);
+			parent = newParent;
+		}
+		parent[size] = size;
+		return size;
+	}
+
+	int find(int label) {
+		while (parent[label] != label) {
+			// path halving
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Merges the sets of two labels
+	 *
+	 * @return the root of the merged set
+	 */
+	int union(int label1, int label2) {
+		int root1 = find(label1);
+		int root2 = find(label2);
+		if (root1 == root2) {
+			return root1;
+		}
+		if (root1 < root2) {
+			parent[root2] = root1;
+			return root1;
+		}
+		parent[root1] = root2;
+		return root2;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+/**
+ * Two-pass connected component labeling with a union-find structure.
+ *
+ * The first pass scans the foreground voxels in z, y, x order and gives each
+ * voxel the label of its already visited neighbors (or a new provisional
+ * label), recording the equivalences between neighbor labels. The second
+ * pass replaces the provisional labels by the final component labels and
+ * computes the component sizes. The cost is linear in the number of voxels
+ * and nothing is allocated per component besides the union-find entries.
+ */
+public class UnionFindLabeler extends ConnectedComponentLabeler {
+
+	public UnionFindLabeler(int connectivity) {
+		super(connectivity);
+	}
+
+	@Override
+	public LabeledVolume label(BinaryMask mask) {
+
+		int xSize = mask.getXSize();
+		int ySize = mask.getYSize();
+		int zSize = mask.getZSize();
+		int wordsPerRow = mask.getWordsPerRow();
+
+		// first pass: provisional labels and equivalences
+		int[][] labels = new int[zSize][xSize * ySize];
+		UnionFind unionFind = labelSlab(mask, labels, 0, zSize);
+
+		// number the components in order of their first voxel
+		// (the root of a set is its smallest provisional label)
+		int numberOfProvisionalLabels = unionFind.size();
+		int[] finalLabels = new int[numberOfProvisionalLabels + 1];
+		int numberOfComponents = 0;
+		for (int label = 1; label <= numberOfProvisionalLabels; ++label) {
+			int root = unionFind.find(label);
+			finalLabels[label] = (root == label) ? ++numberOfComponents
+					: finalLabels[root];
+		}
+
+		// second pass: final labels and sizes
+		long[] sizes = new long[numberOfComponents + 1];
+		for (int z = 0; z < zSize; ++z) {
+			long[] words = mask.getSlice(z);
+			int[] sliceLabels = labels[z];
+			for (int y = 0; y < ySize; ++y) {
+				for (int w = 0; w < wordsPerRow; ++w) {
+					long word = words[y * wordsPerRow + w];
+					while (word != 0) {
+						int index = y * xSize + (w << 6) + Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+
+						int label = finalLabels[sliceLabels[index]];
+						sliceLabels[index] = label;
+						sizes[label]++;
+					}
+				}
+			}
+		}
+
+		return new LabeledVolume(xSize, ySize, labels, sizes);
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees
+ * are not subject to copyright protection in the United States and are considered
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute
+ * this software and its documentation without fee is hereby granted, provided that
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED,
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF,
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Voxel storage for a 3D stack.
+ *
+ * Voxels are stored slice by slice (z-major), each slice being one primitive
+ * array in row-major order (index = y * xSize + x), so that x is the
+ * contiguous axis. The primitive type follows the bit depth of the input:
+ * byte for 8-bit, short for 16-bit and float for 32-bit images. Integer
+ * values are unsigned, as in ImageJ.
+ */
+public abstract class VoxelBuffer {
+
+	protected final int xSize;
+	protected final int ySize;
+	protected final int zSize;
+
+	protected VoxelBuffer(int xSize, int ySize, int zSize) {
+		this.xSize = xSize;
+		this.ySize = ySize;
+		this.zSize = zSize;
+	}
+
+	/**
+	 * Allocates an empty (zero filled) buffer
+	 *
+	 * @param bitDepth 8, 16 or 32
+	 * @param xSize width
+	 * @param ySize height
+	 * @param zSize number of slices
+	 * @return the new buffer
+	 */
+	public static VoxelBuffer create(int bitDepth, int xSize, int ySize, int zSize) {
+		switch (bitDepth) {
+			case 8:
+				return new ByteVoxels(xSize, ySize, new byte[zSize][xSize * ySize]);
+			case 16:
+				return new ShortVoxels(xSize, ySize, new short[zSize][xSize * ySize]);
+			case 32:
+				return new FloatVoxels(xSize, ySize, new float[zSize][xSize * ySize]);
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+	}
+
+	/**
+	 * Copies the voxels of a 3D ImagePlus into a new buffer of the matching type
+	 *
+	 * @param img3D The input 3D ImagePlus
+	 * @return the new buffer
+	 */
+	public static VoxelBuffer fromImagePlus(ImagePlus img3D) {
+		VoxelBuffer buffer = wrap(img3D);
+		for (int z = 0; z < buffer.zSize; ++z) {
+			buffer.copySlice(z);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Wraps the pixel arrays of a 3D ImagePlus without copying them. Writes to
+	 * the returned buffer go directly to the image processors.
+	 *
+	 * @param img3D The input 3D ImagePlus
+	 * @return the buffer sharing the image pixel arrays
+	 */
+	public static VoxelBuffer wrap(ImagePlus img3D) {
+		int xSize = img3D.getWidth();
+		int ySize = img3D.getHeight();
+		int zSize = img3D.getNSlices();
+		int bitDepth = img3D.getBitDepth();
+		ImageStack imgStack = img3D.getStack();
+
+		switch (bitDepth) {
+			case 8: {
+				byte[][] slices = new byte[zSize][];
+				for (int z = 0; z < zSize; ++z) {
+					slices[z] = (byte[]) imgStack.getProcessor(z + 1).getPixels();
+				}
+				return new ByteVoxels(xSize, ySize, slices);
+			}
+			case 16: {
+				short[][] slices = new short[zSize][];
+				for (int z = 0; z < zSize; ++z) {
+					slices[z] = (short[]) imgStack.getProcessor(z + 1).getPixels();
+				}
+				return new ShortVoxels(xSize, ySize, slices);
+			}
+			case 32: {
+				float[][] slices = new float[zSize][];
+				for (int z = 0; z < zSize; ++z) {
+					slices[z] = (float[]) imgStack.getProcessor(z + 1).getPixels();
+				}
+				return new FloatVoxels(xSize, ySize, slices);
+			}
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		}
+	}
+
+	public int getXSize() {
+		return xSize;
+	}
+
+	public int getYSize() {
+		return ySize;
+	}
+
+	public int getZSize() {
+		return zSize;
+	}
+
+	public int getSliceSize() {
+		return xSize * ySize;
+	}
+
+	public long getNumberOfVoxels() {
+		return (long) xSize * ySize * zSize;
+	}
+
+	/**
+	 * @return 8, 16 or 32
+	 */
+	public abstract int getBitDepth();
+
+	/**
+	 * @param z slice (0 based)
+	 * @param index index in the slice (y * xSize + x)
+	 * @return the voxel value, truncated to an int for 32-bit buffers
+	 */
+	public abstract int get(int z, int index);
+
+	/**
+	 * Stores a value without any range check (values are cast to the buffer
+	 * type)
+	 */
+	public abstract void set(int z, int index, int value);
+
+	/**
+	 * @param z slice (0 based)
+	 * @param index index in the slice (y * xSize + x)
+	 * @return the voxel value
+	 */
+	public abstract float getf(int z, int index);
+
+	/**
+	 * Stores a value, clamping and rounding it to the buffer type range like
+	 * ImageStack.setVoxel does
+	 */
+	public abstract void setf(int z, int index, double value);
+
+	/**
+	 * Thresholds slice z into the words of a bit-packed slice (see
+	 * BinaryMask): a voxel is set if its value is greater than threshold
+	 *
+	 * @param z slice (0 based)
+	 * @param threshold the threshold
+	 * @param words the words of the mask slice (overwritten)
+	 * @param wordsPerRow number of words of each row of the mask
+	 * @return the number of voxels set
+	 */
+	public abstract long thresholdSlice(int z, double threshold, long[] words,
+			int wordsPerRow);
+
+	/**
+	 * @return the integer threshold selecting the same integer values as
+	 *         threshold (value > floor(threshold))
+	 */
+	static int integerThreshold(double threshold) {
+		return (int) Math.max(Integer.MIN_VALUE,
+				Math.min(Integer.MAX_VALUE, Math.floor(threshold)));
+	}
+
+	/**
+	 * @param z slice (0 based)
+	 * @return the primitive array backing slice z
+	 */
+	public abstract Object getSlice(int z);
+
+	/**
+	 * @param z slice (0 based)
+	 * @return an ImageProcessor sharing the array backing slice z
+	 */
+	public abstract ImageProcessor getProcessor(int z);
+
+	/**
+	 * Replaces the array backing slice z by a copy of itself
+	 */
+	protected abstract void copySlice(int z);
+
+	/**
+	 * @return an ImageStack sharing the arrays of this buffer
+	 */
+	public ImageStack toImageStack() {
+		ImageStack imgStack = new ImageStack(xSize, ySize);
+		for (int z = 0; z < zSize; ++z) {
+			imgStack.addSlice(getProcessor(z));
+		}
+		return imgStack;
+	}
+
+	private static final class ByteVoxels extends VoxelBuffer {
+
+		private final byte[][] slices;
+
+		ByteVoxels(int xSize, int ySize, byte[][] slices) {
+			super(xSize, ySize, slices.length);
+			this.slices = slices;
+		}
+
+		@Override
+		public int getBitDepth() {
+			return 8;
+		}
+
+		@Override
+		public int get(int z, int index) {
+			return slices[z][index] & 0xff;
+		}
+
+		@Override
+		public void set(int z, int index, int value) {
+			slices[z][index] = (byte) value;
+		}
+
+		@Override
+		public float getf(int z, int index) {
+			return slices[z][index] & 0xff;
+		}
+
+		@Override
+		public void setf(int z, int index, double value) {
+			if (value < 0.0) value = 0.0;
+			if (value > 255.0) value = 255.0;
+			slices[z][index] = (byte) (int) (value + 0.5);
+		}
+
+		@Override
+		public long thresholdSlice(int z, double threshold, long[] words,
+				int wordsPerRow) {
+			byte[] slice = slices[z];
+			int intThreshold = integerThreshold(threshold);
+			long count = 0;
+			for (int y = 0; y < ySize; ++y) {
+				int index = y * xSize;
+				for (int w = 0; w < wordsPerRow; ++w) {
+					int xEnd = Math.min(xSize, (w + 1) << 6);
+					long word = 0;
+					for (int x = w << 6; x < xEnd; ++x, ++index) {
+						if ((slice[index] & 0xff) > intThreshold) {
+							word |= 1L << x;
+						}
+					}
+					words[y * wordsPerRow + w] = word;
+					count += Long.bitCount(word);
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public Object getSlice(int z) {
+			return slices[z];
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int z) {
+			return new ByteProcessor(xSize, ySize, slices[z]);
+		}
+
+		@Override
+		protected void copySlice(int z) {
+			slices[z] = slices[z].clone();
+		}
+	}
+
+	private static final class ShortVoxels extends VoxelBuffer {
+
+		private final short[][] slices;
+
+		ShortVoxels(int xSize, int ySize, short[][] slices) {
+			super(xSize, ySize, slices.length);
+			this.slices = slices;
+		}
+
+		@Override
+		public int getBitDepth() {
+			return 16;
+		}
+
+		@Override
+		public int get(int z, int index) {
+			return slices[z][index] & 0xffff;
+		}
+
+		@Override
+		public void set(int z, int index, int value) {
+			slices[z][index] = (short) value;
+		}
+
+		@Override
+		public float getf(int z, int index) {
+			return slices[z][index] & 0xffff;
+		}
+
+		@Override
+		public void setf(int z, int index, double value) {
+			if (value < 0.0) value = 0.0;
+			if (value > 65535.0) value = 65535.0;
+			slices[z][index] = (short) (int) (value + 0.5);
+		}
+
+		@Override
+		public long thresholdSlice(int z, double threshold, long[] words,
+				int wordsPerRow) {
+			short[] slice = slices[z];
+			int intThreshold = integerThreshold(threshold);
+			long count = 0;
+			for (int y = 0; y < ySize; ++y) {
+				int index = y * xSize;
+				for (int w = 0; w < wordsPerRow; ++w) {
+					int xEnd = Math.min(xSize, (w + 1) << 6);
+					long word = 0;
+					for (int x = w << 6; x < xEnd; ++x, ++index) {
+						if ((slice[index] & 0xffff) > intThreshold) {
+							word |= 1L << x;
+						}
+					}
+					words[y * wordsPerRow + w] = word;
+					count += Long.bitCount(word);
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public Object getSlice(int z) {
+			return slices[z];
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int z) {
+			return new ShortProcessor(xSize, ySize, slices[z], null);
+		}
+
+		@Override
+		protected void copySlice(int z) {
+			slices[z] = slices[z].clone();
+		}
+	}
+
+	private static final class FloatVoxels extends VoxelBuffer {
+
+		private final float[][] slices;
+
+		FloatVoxels(int xSize, int ySize, float[][] slices) {
+			super(xSize, ySize, slices.length);
+			this.slices = slices;
+		}
+
+		@Override
+		public int getBitDepth() {
+			return 32;
+		}
+
+		@Override
+		public int get(int z, int index) {
+			return (int) slices[z][index];
+		}
+
+		@Override
+		public void set(int z, int index, int value) {
+			slices[z][index] = value;
+		}
+
+		@Override
+		public float getf(int z, int index) {
+			return slices[z][index];
+		}
+
+		@Override
+		public void setf(int z, int index, double value) {
+			slices[z][index] = (float) value;
+		}
+
+		@Override
+		public long thresholdSlice(int z, double threshold, long[] words,
+				int wordsPerRow) {
+			float[] slice = slices[z];
+			long count = 0;
+			for (int y = 0; y < ySize; ++y) {
+				int index = y * xSize;
+				for (int w = 0; w < wordsPerRow; ++w) {
+					int xEnd = Math.min(xSize, (w + 1) << 6);
+					long word = 0;
+					for (int x = w << 6; x < xEnd; ++x, ++index) {
+						if (slice[index] > threshold) {
+							word |= 1L << x;
+						}
+					}
+					words[y * wordsPerRow + w] = word;
+					count += Long.bitCount(word);
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public Object getSlice(int z) {
+			return slices[z];
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int z) {
+			return new FloatProcessor(xSize, ySize, slices[z], null);
+		}
+
+		@Override
+		protected void copySlice(int z) {
+			slices[z] = slices[z].clone();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+/**
+ * Cumulative moments of a histogram: number of voxels, sum and sum of squares
+ * of the bin indices up to each bin. The moments of the voxels below or above
+ * any threshold are then read in constant time.
+ * 
+ * Counts and sums are kept as longs so that they are exact; the sums of
+ * squares, which may overflow a long on large volumes, as doubles.
+ */
+class CumulativeHistogram {
+	
+	private final long[] counts;
+	private final long[] sums;
+	private final double[] squaredSums;
+	
+	CumulativeHistogram(Histogram3D histogram) {
+		int numberOfBins = histogram.getNumberOfBins();
+		counts = new long[numberOfBins];
+		sums = new long[numberOfBins];
+		squaredSums = new double[numberOfBins];
+		
+		long count = 0;
+		long sum = 0;
+		double squaredSum = 0.0;
+		for (int i = 0; i < numberOfBins; ++i) {
+			long binCount = histogram.getCount(i);
+			count += binCount;
+			sum += binCount * i;
+			squaredSum += (double) binCount * i * i;
+			counts[i] = count;
+			sums[i] = sum;
+			squaredSums[i] = squaredSum;
+		}
+	}
+	
+	/**
+	 * @return the number of bins
+	 */
+	int getNumberOfBins() {
+		return counts.length;
+	}
+	
+	/**
+	 * @return the number of voxels in bins 0 to i (included)
+	 */
+	long count(int i) {
+		return i < 0 ? 0 : counts[Math.min(i, counts.length - 1)];
+	}
+	
+	/**
+	 * @return the sum of the bin indices of the voxels in bins 0 to i
+	 *         (included)
+	 */
+	long sum(int i) {
+		return i < 0 ? 0 : sums[Math.min(i, sums.length - 1)];
+	}
+	
+	/**
+	 * @return the sum of the squared bin indices of the voxels in bins 0 to i
+	 *         (included)
+	 */
+	double squaredSum(int i) {
+		return i < 0 ? 0.0 : squaredSums[Math.min(i, squaredSums.length - 1)];
+	}
+	
+	/**
+	 * @return the total number of voxels
+	 */
+	long totalCount() {
+		return counts[counts.length - 1];
+	}
+	
+	/**
+	 * @return the sum of the bin indices of all voxels
+	 */
+	long totalSum() {
+		return sums[sums.length - 1];
+	}
+	
+	/**
+	 * @return the sum of the squared bin indices of all voxels
+	 */
+	double totalSquaredSum() {
+		return squaredSums[squaredSums.length - 1];
+	}
+}
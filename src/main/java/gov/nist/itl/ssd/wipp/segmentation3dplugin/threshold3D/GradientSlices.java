@@ -0,0 +1,143 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+import java.util.concurrent.ForkJoinPool;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.SobelFilter3D;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D.PercentileSelector.SliceReader;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D.PercentileSelector.SliceSource;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Gradient magnitudes of the slices of a 3D image, computed on the fly for
+ * the EGT thresholding so that no edge stack is kept in memory.
+ * 
+ * The 2D gradients are computed slice by slice by ImageJ (findEdges) on a
+ * copy of the slice. The 3D Sobel gradients of a slice need the slices
+ * before and after it: they are computed on a rolling window of three
+ * slices (see SobelFilter3D). In both cases the input image is left unmodified and each reader
+ * only holds a few slices.
+ */
+class GradientSlices {
+	
+	// range of the 3D Sobel magnitudes of 16-bit images, rescaled to 16 bits
+	private static final double MIN_SOBEL_16_BITS = - 1045860.0;
+	private static final double MAX_SOBEL_16_BITS = 1045860.0;
+	private static final double SCALE_16_BITS = 65535.0
+			/ (MAX_SOBEL_16_BITS - MIN_SOBEL_16_BITS);
+	
+	/**
+	 * 2D gradients of each slice, as computed by ImageJ findEdges
+	 * 
+	 * @param img3D the input image (not modified)
+	 * @param toFloat true to compute the gradients of the slices converted to
+	 *        float, false to compute them in the type of the image
+	 * @return the gradient slices
+	 */
+	static SliceSource sobel2D(ImagePlus img3D, boolean toFloat) {
+		ImageStack imgStack = img3D.getStack();
+		int zSize = img3D.getNSlices();
+		int sliceSize = img3D.getWidth() * img3D.getHeight();
+		return new SliceSource() {
+			
+			@Override
+			public int getZSize() {
+				return zSize;
+			}
+			
+			@Override
+			public SliceReader read(int zStart) {
+				float[] buffer = new float[sliceSize];
+				return new SliceReader() {
+					
+					private int z = zStart;
+					
+					@Override
+					public float[] next() {
+						ImageProcessor imgProc = imgStack.getProcessor(++z);
+						// convertToFloat returns the processor itself for
+						// 32-bit images, which must not be modified
+						ImageProcessor edges = toFloat && imgProc.getBitDepth() != 32
+								? imgProc.convertToFloat() : imgProc.duplicate();
+						edges.findEdges();
+						return PercentileSelector.toFloats(edges.getPixels(), buffer);
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * 3D Sobel gradients of each slice, rescaled and stored in the type of
+	 * the image as by EGTThresh.findEdgesSobel
+	 * 
+	 * @param img3D the input image (not modified)
+	 * @return the gradient slices
+	 */
+	static SliceSource sobel3D(ImagePlus img3D) {
+		VoxelBuffer input = VoxelBuffer.wrap(img3D);
+		return new SliceSource() {
+			
+			@Override
+			public int getZSize() {
+				return input.getZSize();
+			}
+			
+			@Override
+			public SliceReader read(int zStart) {
+				SobelFilter3D window = new SobelFilter3D(input, zStart);
+				VoxelBuffer output = VoxelBuffer.create(input.getBitDepth(),
+						input.getXSize(), input.getYSize(), 1);
+				float[] buffer = new float[input.getSliceSize()];
+				return () -> {
+					window.filterSlice(output, 0, GradientSlices::rescale);
+					return PercentileSelector.toFloats(output.getSlice(0), buffer);
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Replaces the voxels of an image by their 3D Sobel gradient magnitudes,
+	 * rescaled to 16 bits
+	 * 
+	 * @param img3D the image, modified in place
+	 * @param pool the pool filtering the slabs of the image
+	 */
+	static void findEdgesSobel3D(ImagePlus img3D, ForkJoinPool pool) {
+		VoxelBuffer imgData = VoxelBuffer.wrap(img3D);
+		SobelFilter3D.filter(imgData, imgData, GradientSlices::rescale, pool);
+	}
+	
+	/**
+	 * Rescaling of the 3D Sobel magnitudes of EGTThresh.findEdgesSobel
+	 */
+	private static double rescale(double sobelValue) {
+		sobelValue = (sobelValue - MIN_SOBEL_16_BITS) * SCALE_16_BITS;
+		if (sobelValue<0.0) sobelValue = 0.0;
+		if (sobelValue>65535.0) sobelValue = 65535.0;
+		return sobelValue;
+	}
+}
@@ -0,0 +1,597 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+import java.util.concurrent.ForkJoinPool;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
+import ij.ImagePlus;
+
+/**
+ * Histogram of the grey values of a 3D image, shared by the thresholding
+ * methods.
+ * 
+ * The histograms of 8 and 16-bit images have one bin per grey value by
+ * default. Adaptive histograms first find the range of the data and split it
+ * into a given number of bins: this is the default for 32-bit images, and
+ * narrows the histograms of 16-bit images using a small part of their range.
+ * Bin indices are mapped back to grey values with getBinStart, toBin and
+ * toThreshold. NaN and infinite values of 32-bit images are not counted.
+ * The voxels exactly equal to 0 are also counted apart, so that the
+ * background left by a mask can be removed from a wider bin (withoutZeros).
+ * 
+ * The slices are read from the pixel arrays of the image processors, in row
+ * order. They are split into chunks accumulated into separate histograms on a
+ * ForkJoinPool, which are then merged.
+ */
+public class Histogram3D {
+	
+	/**
+	 * Number of bins of the histograms of 32-bit images when not specified
+	 */
+	public static final int DEFAULT_NUMBER_OF_BINS = 65536;
+	
+	private final long[] counts;
+	private final long numberOfVoxels;
+	// number of voxels equal to 0, counted in the bin of 0
+	private final long zeroCount;
+	// grey value of the lower edge of bin 0
+	private final double minValue;
+	// width of the bins, in grey values
+	private final double binWidth;
+	// true for 8 and 16-bit images, whose bins hold binWidth consecutive
+	// integer values
+	private final boolean integerValues;
+	
+	private Histogram3D(long[] counts, long zeroCount, double minValue,
+			double binWidth, boolean integerValues) {
+		this.counts = counts;
+		this.zeroCount = zeroCount;
+		this.minValue = minValue;
+		this.binWidth = binWidth;
+		this.integerValues = integerValues;
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		this.numberOfVoxels = total;
+	}
+	
+	/**
+	 * Computes the histogram of a 3D image on the common ForkJoinPool
+	 * 
+	 * @param img3D the 8, 16 or 32-bit input image
+	 * @return the histogram, with one bin per grey value for 8 and 16-bit
+	 *         images and DEFAULT_NUMBER_OF_BINS bins for 32-bit images
+	 */
+	public static Histogram3D compute(ImagePlus img3D) {
+		return compute(img3D, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Computes the histogram of a 3D image
+	 * 
+	 * @param img3D the 8, 16 or 32-bit input image
+	 * @param pool the pool accumulating the chunks of slices
+	 * @return the histogram, with one bin per grey value for 8 and 16-bit
+	 *         images and DEFAULT_NUMBER_OF_BINS bins for 32-bit images
+	 */
+	public static Histogram3D compute(ImagePlus img3D, ForkJoinPool pool) {
+		VoxelBuffer voxels = VoxelBuffer.wrap(img3D);
+		if (voxels.getBitDepth() == 32) {
+			return computeAdaptive(voxels, DEFAULT_NUMBER_OF_BINS, pool);
+		}
+		int numberOfValues = 1 << voxels.getBitDepth();
+		return accumulate(voxels, 0, numberOfValues - 1, numberOfValues, pool);
+	}
+	
+	/**
+	 * Computes the histogram of a 3D image over the range of its values, on
+	 * the common ForkJoinPool
+	 * 
+	 * @param img3D the 8, 16 or 32-bit input image
+	 * @param numberOfBins the maximum number of bins (the bins of 8 and 16-bit
+	 *        images have an integer width, so there may be less bins)
+	 * @return the histogram
+	 */
+	public static Histogram3D computeAdaptive(ImagePlus img3D, int numberOfBins) {
+		return computeAdaptive(img3D, numberOfBins, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Computes the histogram of a 3D image over the range of its values, found
+	 * by a first pass over the voxels
+	 * 
+	 * @param img3D the 8, 16 or 32-bit input image
+	 * @param numberOfBins the maximum number of bins (the bins of 8 and 16-bit
+	 *        images have an integer width, so there may be less bins)
+	 * @param pool the pool processing the chunks of slices
+	 * @return the histogram
+	 */
+	public static Histogram3D computeAdaptive(ImagePlus img3D, int numberOfBins,
+			ForkJoinPool pool) {
+		return computeAdaptive(VoxelBuffer.wrap(img3D), numberOfBins, pool);
+	}
+	
+	private static Histogram3D computeAdaptive(VoxelBuffer voxels,
+			int numberOfBins, ForkJoinPool pool) {
+		double[] range = computeRange(voxels, pool);
+		return computeAdaptive(voxels, range[0], range[1], numberOfBins, pool);
+	}
+	
+	/**
+	 * Finds the range of the (finite) values of a part of a 3D image, for
+	 * instance a slab of a stack too large to be loaded at once
+	 * 
+	 * @param voxels the 8, 16 or 32-bit input voxels
+	 * @param pool the pool processing the chunks of slices
+	 * @return the minimum and maximum values, {+Infinity, -Infinity} if there
+	 *         is none
+	 */
+	public static double[] computeRange(VoxelBuffer voxels, ForkJoinPool pool) {
+		int zSize = voxels.getZSize();
+		int numberOfChunks = numberOfChunks(zSize, pool);
+		double[][] chunkRanges = new double[numberOfChunks][];
+		
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfChunks, chunk -> {
+			double[] range = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			for (int z = chunkStart(zSize, chunk, numberOfChunks);
+					z < chunkStart(zSize, chunk + 1, numberOfChunks); ++z) {
+				updateRange(voxels.getSlice(z), range);
+			}
+			chunkRanges[chunk] = range;
+		});
+		
+		// merge the chunk ranges
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double[] range : chunkRanges) {
+			min = Math.min(min, range[0]);
+			max = Math.max(max, range[1]);
+		}
+		return new double[] { min, max };
+	}
+	
+	/**
+	 * Computes the histogram of a part of a 3D image with the bins that
+	 * compute(ImagePlus) gives to the whole image, so that the histograms of
+	 * the slabs of a stack too large to be loaded at once can be added
+	 * 
+	 * @param voxels the 8, 16 or 32-bit input voxels
+	 * @param min the minimum value of the whole image (only used for 32-bit
+	 *        images, see computeRange)
+	 * @param max the maximum value of the whole image (only used for 32-bit
+	 *        images)
+	 * @param pool the pool accumulating the chunks of slices
+	 * @return the histogram of the voxels
+	 */
+	public static Histogram3D compute(VoxelBuffer voxels, double min,
+			double max, ForkJoinPool pool) {
+		if (voxels.getBitDepth() == 32) {
+			return accumulate(voxels, min, max, DEFAULT_NUMBER_OF_BINS, pool);
+		}
+		int numberOfValues = 1 << voxels.getBitDepth();
+		return accumulate(voxels, 0, numberOfValues - 1, numberOfValues, pool);
+	}
+	
+	/**
+	 * Computes the histogram of a part of a 3D image with the bins that
+	 * computeAdaptive(ImagePlus, int) gives to the whole image, so that the
+	 * histograms of the slabs of a stack too large to be loaded at once can
+	 * be added
+	 * 
+	 * @param voxels the 8, 16 or 32-bit input voxels
+	 * @param min the minimum value of the whole image (see computeRange)
+	 * @param max the maximum value of the whole image
+	 * @param numberOfBins the maximum number of bins
+	 * @param pool the pool accumulating the chunks of slices
+	 * @return the histogram of the voxels
+	 */
+	public static Histogram3D computeAdaptive(VoxelBuffer voxels, double min,
+			double max, int numberOfBins, ForkJoinPool pool) {
+		if (numberOfBins <= 0) {
+			throw new IllegalArgumentException(
+					"The number of bins must be positive, not " + numberOfBins);
+		}
+		return accumulate(voxels, min, max, numberOfBins, pool);
+	}
+	
+	/**
+	 * Computes the histogram of one slice of a 3D image
+	 * 
+	 * @param img3D the 8, 16 or 32-bit input image
+	 * @param z slice (0 based)
+	 * @return the histogram of slice z, with one bin per grey value for 8 and
+	 *         16-bit images and DEFAULT_NUMBER_OF_BINS bins over the range of
+	 *         the slice for 32-bit images
+	 */
+	public static Histogram3D computeSlice(ImagePlus img3D, int z) {
+		return computeSlice(VoxelBuffer.wrap(img3D), z);
+	}
+	
+	/**
+	 * Computes the histogram of one slice of a wrapped 3D image, so that the
+	 * slices of a stack can be processed without wrapping it again
+	 * 
+	 * @param voxels the 8, 16 or 32-bit input voxels
+	 * @param z slice (0 based)
+	 * @return the histogram of slice z, with one bin per grey value for 8 and
+	 *         16-bit images and DEFAULT_NUMBER_OF_BINS bins over the range of
+	 *         the slice for 32-bit images
+	 */
+	public static Histogram3D computeSlice(VoxelBuffer voxels, int z) {
+		Object slice = voxels.getSlice(z);
+		Histogram3D binning;
+		if (slice instanceof float[]) {
+			double[] range = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			updateRange(slice, range);
+			binning = emptyHistogram(range[0], range[1], DEFAULT_NUMBER_OF_BINS,
+					false);
+		} else {
+			int numberOfValues = 1 << voxels.getBitDepth();
+			binning = emptyHistogram(0, numberOfValues - 1, numberOfValues, true);
+		}
+		long[] counts = new long[binning.counts.length];
+		long zeroCount = accumulate(slice, binning.minValue, binning.binWidth,
+				counts);
+		return new Histogram3D(counts, zeroCount, binning.minValue,
+				binning.binWidth, binning.integerValues);
+	}
+	
+	/**
+	 * Accumulates the voxels into numberOfBins bins over [min, max], the bins
+	 * of integer values having an integer width
+	 */
+	private static Histogram3D accumulate(VoxelBuffer voxels, double min,
+			double max, int numberOfBins, ForkJoinPool pool) {
+		Histogram3D binning = emptyHistogram(min, max, numberOfBins,
+				voxels.getBitDepth() != 32);
+		int zSize = voxels.getZSize();
+		int numberOfChunks = numberOfChunks(zSize, pool);
+		long[][] chunkCounts = new long[numberOfChunks][];
+		long[] chunkZeroCounts = new long[numberOfChunks];
+		
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfChunks, chunk -> {
+			long[] localCounts = new long[binning.counts.length];
+			for (int z = chunkStart(zSize, chunk, numberOfChunks);
+					z < chunkStart(zSize, chunk + 1, numberOfChunks); ++z) {
+				chunkZeroCounts[chunk] += accumulate(voxels.getSlice(z),
+						binning.minValue, binning.binWidth, localCounts);
+			}
+			chunkCounts[chunk] = localCounts;
+		});
+		
+		// merge the chunk histograms
+		long[] counts = chunkCounts[0];
+		long zeroCount = chunkZeroCounts[0];
+		for (int chunk = 1; chunk < numberOfChunks; ++chunk) {
+			long[] localCounts = chunkCounts[chunk];
+			for (int i = 0; i < counts.length; ++i) {
+				counts[i] += localCounts[i];
+			}
+			zeroCount += chunkZeroCounts[chunk];
+		}
+		return new Histogram3D(counts, zeroCount, binning.minValue,
+				binning.binWidth, binning.integerValues);
+	}
+	
+	/**
+	 * @return an empty histogram of numberOfBins bins (at most) over [min, max]
+	 */
+	private static Histogram3D emptyHistogram(double min, double max,
+			int numberOfBins, boolean integerValues) {
+		if (min > max) {
+			// no (finite) value
+			min = 0.0;
+			max = 0.0;
+		}
+		if (integerValues) {
+			long numberOfValues = (long) (max - min) + 1;
+			long width = (numberOfValues + numberOfBins - 1) / numberOfBins;
+			int bins = (int) ((numberOfValues + width - 1) / width);
+			return new Histogram3D(new long[bins], 0, min, width, true);
+		}
+		if (max > min) {
+			return new Histogram3D(new long[numberOfBins], 0, min,
+					(max - min) / numberOfBins, false);
+		}
+		return new Histogram3D(new long[1], 0, min, 1.0, false);
+	}
+	
+	private static int numberOfChunks(int zSize, ForkJoinPool pool) {
+		return Math.max(1, Math.min(zSize, 2 * pool.getParallelism()));
+	}
+	
+	private static int chunkStart(int zSize, int chunk, int numberOfChunks) {
+		return (int) ((long) zSize * chunk / numberOfChunks);
+	}
+	
+	private static void updateRange(Object slice, double[] range) {
+		double min = range[0];
+		double max = range[1];
+		if (slice instanceof byte[]) {
+			for (byte value : (byte[]) slice) {
+				int v = value & 0xff;
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+		} else if (slice instanceof short[]) {
+			for (short value : (short[]) slice) {
+				int v = value & 0xffff;
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+		} else {
+			for (float v : (float[]) slice) {
+				// NaN and infinite values are ignored
+				if (v - v == 0.0f) {
+					if (v < min) min = v;
+					if (v > max) max = v;
+				}
+			}
+		}
+		range[0] = min;
+		range[1] = max;
+	}
+	
+	/**
+	 * Adds the voxels of a slice to the counts
+	 * 
+	 * @return the number of voxels of the slice equal to 0
+	 */
+	private static long accumulate(Object slice, double minValue,
+			double binWidth, long[] counts) {
+		int lastBin = counts.length - 1;
+		long zeroCount = 0;
+		if (slice instanceof float[]) {
+			double scale = 1.0 / binWidth;
+			for (float v : (float[]) slice) {
+				if (v - v == 0.0f) {
+					int bin = (int) ((v - minValue) * scale);
+					counts[Math.max(0, Math.min(bin, lastBin))] ++;
+					if (v == 0.0f) {
+						++zeroCount;
+					}
+				}
+			}
+			return zeroCount;
+		}
+		int min = (int) minValue;
+		int width = (int) binWidth;
+		// with one bin per value, the zeros are the increase of bin 0
+		long zeroBinCount = counts[0];
+		if (slice instanceof byte[]) {
+			if (min == 0 && width == 1) {
+				for (byte value : (byte[]) slice) {
+					counts[value & 0xff] ++;
+				}
+				return counts[0] - zeroBinCount;
+			}
+			for (byte value : (byte[]) slice) {
+				int v = value & 0xff;
+				counts[(v - min) / width] ++;
+				if (v == 0) {
+					++zeroCount;
+				}
+			}
+		} else {
+			if (min == 0 && width == 1) {
+				for (short value : (short[]) slice) {
+					counts[value & 0xffff] ++;
+				}
+				return counts[0] - zeroBinCount;
+			}
+			for (short value : (short[]) slice) {
+				int v = value & 0xffff;
+				counts[(v - min) / width] ++;
+				if (v == 0) {
+					++zeroCount;
+				}
+			}
+		}
+		return zeroCount;
+	}
+	
+	/**
+	 * @return the number of bins
+	 */
+	public int getNumberOfBins() {
+		return counts.length;
+	}
+	
+	/**
+	 * @return the number of grey values of each bin
+	 */
+	public double getBinWidth() {
+		return binWidth;
+	}
+	
+	/**
+	 * @return the grey value of the lower edge of the first bin
+	 */
+	public double getMinValue() {
+		return minValue;
+	}
+	
+	/**
+	 * @return the grey value of the lower edge of bin i
+	 */
+	public double getBinStart(int i) {
+		return minValue + i * binWidth;
+	}
+	
+	/**
+	 * @return the bin holding the grey value, -1 if it is outside of the
+	 *         histogram
+	 */
+	public int getBin(double value) {
+		double bin = Math.floor((value - minValue) / binWidth);
+		if (bin < 0 || value - value != 0.0) {
+			return -1;
+		}
+		if (bin >= counts.length) {
+			// the maximum of a 32-bit image is the upper edge of the last bin
+			return !integerValues && value == getBinStart(counts.length)
+					? counts.length - 1 : -1;
+		}
+		return (int) bin;
+	}
+	
+	/**
+	 * Maps a threshold to bins: the voxels lower than or equal to the
+	 * threshold are those of bins 0 to toBin(threshold) (included)
+	 * 
+	 * @param threshold a threshold in grey values
+	 * @return the last bin below the threshold, -1 if there is none
+	 */
+	public int toBin(double threshold) {
+		double bin;
+		if (integerValues) {
+			// integer values v are lower than or equal to the threshold if
+			// v < threshold + 1
+			bin = Math.floor((threshold - minValue + 1.0) / binWidth) - 1;
+		} else {
+			// bins end at an edge lower than or equal to the threshold, up to
+			// the rounding errors (so that toBin(toThreshold(bin)) == bin)
+			bin = Math.floor((threshold - minValue) / binWidth + 1e-6) - 1;
+		}
+		return (int) Math.max(-1, Math.min(bin, counts.length - 1));
+	}
+	
+	/**
+	 * Maps bins back to a threshold in grey values: the voxels of bins 0 to
+	 * bin (included) are lower than or equal to the threshold, those of the
+	 * following bins greater
+	 * 
+	 * @param bin the last bin below the threshold
+	 * @return the threshold, in grey values
+	 */
+	public double toThreshold(int bin) {
+		double threshold = getBinStart(bin + 1);
+		return integerValues ? threshold - 1.0 : Math.nextDown(threshold);
+	}
+	
+	/**
+	 * @return the number of voxels of bin i
+	 */
+	public long getCount(int i) {
+		return counts[i];
+	}
+	
+	/**
+	 * @return a copy of the counts of the bins
+	 */
+	public long[] getCounts() {
+		return counts.clone();
+	}
+	
+	/**
+	 * @return the number of voxels counted in the histogram
+	 */
+	public long getNumberOfVoxels() {
+		return numberOfVoxels;
+	}
+	
+	/**
+	 * @return the number of voxels equal to 0 (counted in bin getBin(0.0))
+	 */
+	public long getZeroCount() {
+		return zeroCount;
+	}
+	
+	/**
+	 * @param other a histogram with the same bins (the histogram of another
+	 *        part of the same image)
+	 * @return the sum of the two histograms
+	 */
+	public Histogram3D plus(Histogram3D other) {
+		if (other.counts.length != counts.length || other.minValue != minValue
+				|| other.binWidth != binWidth) {
+			throw new IllegalArgumentException(
+					"Cannot add histograms with different bins");
+		}
+		long[] newCounts = counts.clone();
+		for (int i = 0; i < newCounts.length; ++i) {
+			newCounts[i] += other.counts[i];
+		}
+		return new Histogram3D(newCounts, zeroCount + other.zeroCount,
+				minValue, binWidth, integerValues);
+	}
+	
+	/**
+	 * @return a copy of the histogram without the voxels of bin i (for
+	 *         instance the background left by a mask)
+	 */
+	public Histogram3D without(int i) {
+		long[] newCounts = counts.clone();
+		newCounts[i] = 0;
+		return new Histogram3D(newCounts, i == getBin(0.0) ? 0 : zeroCount,
+				minValue, binWidth, integerValues);
+	}
+	
+	/**
+	 * @return a copy of the histogram without the voxels equal to 0 (the
+	 *         background left by a mask), the other voxels of their bin being
+	 *         kept
+	 */
+	public Histogram3D withoutZeros() {
+		if (zeroCount == 0) {
+			return this;
+		}
+		long[] newCounts = counts.clone();
+		newCounts[getBin(0.0)] -= zeroCount;
+		return new Histogram3D(newCounts, 0, minValue, binWidth, integerValues);
+	}
+	
+	/**
+	 * Merges consecutive bins
+	 * 
+	 * @param numberOfBins the number of bins of the result (dividing the
+	 *        current number of bins)
+	 * @return the rebinned histogram
+	 */
+	public Histogram3D rebin(int numberOfBins) {
+		if (numberOfBins <= 0 || counts.length % numberOfBins != 0) {
+			throw new IllegalArgumentException("Cannot rebin " + counts.length
+					+ " bins into " + numberOfBins);
+		}
+		int factor = counts.length / numberOfBins;
+		long[] newCounts = new long[numberOfBins];
+		for (int i = 0; i < counts.length; ++i) {
+			newCounts[i / factor] += counts[i];
+		}
+		return new Histogram3D(newCounts, zeroCount, minValue,
+				binWidth * factor, integerValues);
+	}
+	
+	/**
+	 * @return the counts as ints, as expected by the ImageJ thresholders
+	 *         (counts above Integer.MAX_VALUE are saturated)
+	 */
+	public int[] toIntArray() {
+		int[] intCounts = new int[counts.length];
+		for (int i = 0; i < counts.length; ++i) {
+			intCounts[i] = (int) Math.min(Integer.MAX_VALUE, counts[i]);
+		}
+		return intCounts;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+/**
+ * Thresholding method only relying on the histogram of the image, which can
+ * then be computed once, in parallel or brick by brick, whatever the method.
+ */
+public interface HistogramThresholder {
+
+	/**
+	 * Finds the optimal threshold from the histogram of the image
+	 * 
+	 * @param histogram histogram of the image (see Histogram3D)
+	 * @param min minimum threshold, in grey values
+	 * @param max maximum threshold (included), in grey values
+	 * @param delta threshold increment, in grey values
+	 * @return the optimal threshold, in grey values
+	 */
+	double findThresh(Histogram3D histogram, double min, double max,
+			double delta);
+}
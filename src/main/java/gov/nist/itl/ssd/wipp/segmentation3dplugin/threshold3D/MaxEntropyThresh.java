@@ -28,15 +28,16 @@ import java.io.PrintStream;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.Image3DSmoothing;
 import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.Segment3DImage;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.process.ImageProcessor;
 
 
 /**
@@ -52,12 +53,27 @@ import ij.process.ImageProcessor;
 *
  *
  */
-public class MaxEntropyThresh extends Threshold3DImage {
+public class MaxEntropyThresh extends Threshold3DImage
+		implements HistogramThresholder {
 
 	private static Log _logger = LogFactory
 			.getLog(MaxEntropyThresh.class);
 
 	public int [] findThreshPerSlice(ImagePlus img3D, double min, double max, double delta) {
+		return findThreshPerSlice(img3D, min, max, delta, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Finds the maximum entropy threshold of each slice, the slices being
+	 * processed in parallel
+	 * 
+	 * @param img3D the 8 or 16-bit input image (the thresholds of 32-bit
+	 *        images are not integers)
+	 * @param pool the pool processing the slices
+	 * @return the threshold of each slice
+	 */
+	public int [] findThreshPerSlice(ImagePlus img3D, double min, double max, double delta,
+			ForkJoinPool pool) {
 		   
 		
 /*		int[] hist = imageProcessor.getHistogram();
@@ -72,34 +88,18 @@ public class MaxEntropyThresh extends Threshold3DImage {
 			_logger.error("Input image is null, no threshold to be found.");
 			return null;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		int bitDepth = img3D.getBitDepth();
-		int numberOfVoxels = numrows * numcols * numzs;
+		if (img3D.getBitDepth() == 32) {
+			_logger.error("Per slice thresholds need an 8 or 16-bit image.");
+			return null;
+		}
+		VoxelBuffer voxels = VoxelBuffer.wrap(img3D);
+		int numzs = voxels.getZSize();
 		
 		int [] optThresh = new int[numzs];
 		
-		ImageStack imgStack = img3D.getStack();
-		int numberGreyValues = (int) Math.pow(2, bitDepth);
-		
-		int[] histogram = new int[numberGreyValues];
-		
-		// compute histogram
-		for (int z = 0; z < numzs; z++) {
-			ImageProcessor imgProc = imgStack.getProcessor(z+1);
-			for(int idx=0;idx<numberGreyValues; idx++){
-				histogram[idx]=0;
-			}
-			for(int x = 0; x < numcols; ++ x) {
-				for(int y = 0; y < numrows; ++ y) {
-					int temp =imgProc.getPixel(x, y);
-					histogram[temp] ++;
-				}
-			}
-			optThresh[z] = entropySplit(histogram);
-
-		}
+		// compute histogram of each slice
+		ConcurrencyUtils.parallelFor(pool, 0, numzs, z ->
+			optThresh[z] = entropySplit(Histogram3D.computeSlice(voxels, z)));
 		
 		return optThresh;
 	}
@@ -119,114 +119,102 @@ public class MaxEntropyThresh extends Threshold3DImage {
 			_logger.error("Input image is null, no threshold to be found.");
 			return -1.0;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		int bitDepth = img3D.getBitDepth();
-		//int numberOfVoxels = numrows * numcols * numzs;
-		
-		double optThresh = 0.0;
-		
-		ImageStack imgStack = img3D.getStack();
-		int numberGreyValues = (int) Math.pow(2, bitDepth);
-		
-		int[] histogram = new int[numberGreyValues];
-		//double[] probabilities = new double[numberGreyValues];
 		
 		// compute histogram
-		for (int z = 0; z < numzs; z++) {
-			ImageProcessor imgProc = imgStack.getProcessor(z+1);
-			
-			for(int x = 0; x < numcols; ++ x) {
-				for(int y = 0; y < numrows; ++ y) {
-					int temp =imgProc.getPixel(x, y);
-					// ignore the background values after a cell mask has been applied
-					// consider only values from the foreground of the cell mask
-					if(temp != 0)
-						histogram[temp] ++;
-				}
-			}
-		}
+		return findThresh(Histogram3D.compute(img3D), min, max, delta);
+	}
+	
+	/**
+	 * Finds the maximum entropy threshold from the histogram of the image,
+	 * over all its bins (min, max and delta are ignored)
+	 * 
+	 * @param histogram histogram of the image
+	 * @return the optimal threshold, in grey values
+	 */
+	@Override
+	public double findThresh(Histogram3D histogram, double min, double max, double delta) {
 		
-		optThresh = entropySplit(histogram);
-
-		return optThresh;
+		// ignore the background values after a cell mask has been applied
+		// consider only values from the foreground of the cell mask
+		// (only the zeros, not the whole bin of an adaptive histogram)
+		return histogram.toThreshold(entropySplit(histogram.withoutZeros()));
 	}
 	
 	/**
 	  * Calculate maximum entropy split of a histogram.
+	  * 
+	  * With N(t) and S(t) the number of voxels and the sum of n log(n) over
+	  * the bins 0 to t, the entropy of the black part is
+	  * log(N(t)) - S(t) / N(t), and similarly for the white part with the
+	  * complementary sums. Both are read from cumulative sums, so the split
+	  * is linear in the number of occupied bins, the empty bins leaving the
+	  * entropies unchanged.
 	  *
-	  * @param hist histogram to be thresholded.
+	  * @param histogram histogram to be thresholded.
 	  *
 	  * @return index of the maximum entropy split.`
 	  */
-	 private int entropySplit(int[] hist) {
+	 private int entropySplit(Histogram3D histogram) {
 
-	   // Normalize histogram, that is makes the sum of all bins equal to 1.
-	   double sum = 0;
+	   long[] hist = histogram.getCounts();
+
+	   // Compact the histogram to its occupied bins
+	   int numberOfOccupiedBins = 0;
 	   for (int i = 0; i < hist.length; ++i) {
-	     sum += hist[i];
+	     if (hist[i] > 0) {
+	       numberOfOccupiedBins++;
+	     }
 	   }
-	   if (sum == 0) {
+	   if (numberOfOccupiedBins == 0) {
 	     // This should not normally happen, but...
 	     throw new IllegalArgumentException("Empty histogram: sum of all bins is zero.");
 	   }
-
-	   double[] normalizedHist = new double[hist.length];
-	   for (int i = 0; i < hist.length; i++) {
-	     normalizedHist[i] = hist[i] / sum;
-	   }
-
-	   //
-	   double[] pT = new double[hist.length];
-	   pT[0] = normalizedHist[0];
-	   for (int i = 1; i < hist.length; i++) {
-	     pT[i] = pT[i - 1] + normalizedHist[i];
-	   }
-
-	   // Entropy for black and white parts of the histogram
-	   final double epsilon = Double.MIN_VALUE;
-	   double[] hB = new double[hist.length];
-	   double[] hW = new double[hist.length];
-	   for (int t = 0; t < hist.length; t++) {
-	     // Black entropy
-	     if (pT[t] > epsilon) {
-	       double hhB = 0;
-	       for (int i = 0; i <= t; i++) {
-	         if (normalizedHist[i] > epsilon) {
-	           hhB -= normalizedHist[i] / pT[t] * Math.log(normalizedHist[i] / pT[t]);
-	         }
-	       }
-	       hB[t] = hhB;
-	     } else {
-	       hB[t] = 0;
-	     }
-
-	     // White  entropy
-	     double pTW = 1 - pT[t];
-	     if (pTW > epsilon) {
-	       double hhW = 0;
-	       for (int i = t + 1; i < hist.length; ++i) {
-	         if (normalizedHist[i] > epsilon) {
-	           hhW -= normalizedHist[i] / pTW * Math.log(normalizedHist[i] / pTW);
-	         }
-	       }
-	       hW[t] = hhW;
-	     } else {
-	       hW[t] = 0;
+	   int[] bins = new int[numberOfOccupiedBins];
+	   long[] counts = new long[numberOfOccupiedBins];
+	   double total = 0;
+	   double totalNLogN = 0;
+	   for (int i = 0, k = 0; i < hist.length; ++i) {
+	     if (hist[i] > 0) {
+	       bins[k] = i;
+	       counts[k] = hist[i];
+	       total += hist[i];
+	       totalNLogN += hist[i] * Math.log(hist[i]);
+	       k++;
 	     }
 	   }
 
-	   // Find histogram index with maximum entropy
-	   double jMax = hB[0] + hW[0];
+	   // Entropy of the whole histogram, which is the entropy of the splits
+	   // below the first occupied bin (all white) and at the last one (all black)
+	   double hAll = Math.log(total) - totalNLogN / total;
+
+	   // Find histogram index with maximum entropy, the first one in case of
+	   // equality
+	   double jMax = Double.NEGATIVE_INFINITY;
 	   int tMax = 0;
-	   for (int t = 1; t < hist.length; ++t) {
-	     double j = hB[t] + hW[t];
+	   if (bins[0] > 0) {
+	     jMax = hAll;
+	   }
+	   double nB = 0;
+	   double nLogNB = 0;
+	   for (int k = 0; k < numberOfOccupiedBins - 1; ++k) {
+	     nB += counts[k];
+	     nLogNB += counts[k] * Math.log(counts[k]);
+	     double nW = total - nB;
+	     double nLogNW = totalNLogN - nLogNB;
+
+	     // Black and white entropies
+	     double hB = Math.log(nB) - nLogNB / nB;
+	     double hW = Math.log(nW) - nLogNW / nW;
+
+	     double j = hB + hW;
 	     if (j > jMax) {
 	       jMax = j;
-	       tMax = t;
+	       tMax = bins[k];
 	     }
 	   }
+	   if (hAll > jMax) {
+	     tMax = bins[numberOfOccupiedBins - 1];
+	   }
 
 	   return tMax;
 	 }
@@ -21,8 +21,9 @@
 package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
 
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.process.ImageProcessor;
+
+import java.io.PrintWriter;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -42,7 +43,8 @@ import org.apache.commons.logging.LogFactory;
  * @author peter bajcsy
  * 
  */
-public class MinErrorThresh extends Threshold3DImage {
+public class MinErrorThresh extends Threshold3DImage
+		implements HistogramThresholder {
 	private static Log _logger = LogFactory.getLog(MinErrorThresh.class);
 
 	/**
@@ -68,118 +70,75 @@ public class MinErrorThresh extends Threshold3DImage {
 			_logger.error("Missing array of input images");
 			return -1.0;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		//int numbands = img3D.getNChannels();
-		//int type = img3D.getBitDepth();
-		int bitDepth = img3D.getBitDepth();
-		int numberGreyValues = (int) Math.pow(2, bitDepth);
+
+		// compute histogram
+		return findThresh(Histogram3D.compute(img3D), min, max, delta);
+	}
+
+	/**
+	 * This method finds the optimal threshold following the min error criterion
+	 * over a range of thresholds, from the histogram of the image. The
+	 * moments of the BKG and FRG classes are read from the cumulative
+	 * histogram, so each threshold is scored in constant time.
+	 * 
+	 * @param histogram
+	 *            - histogram of the image
+	 * @param min
+	 *            - minimum threshold, in grey values
+	 * @param max
+	 *            - maximum threshold (included), in grey values
+	 * @param delta
+	 *            - delta threshold increment, in grey values
+	 * @return - double threshold value
+	 */
+	@Override
+	public double findThresh(Histogram3D histogram, double min, double max, double delta) {
+
+		CumulativeHistogram moments = new CumulativeHistogram(histogram);
+		PrintWriter diagnostics = getDiagnostics();
 
 		double thresh = 0.0;
 		int numIter = 1 + (int) ((max - min) / delta);
-		long[] countBlack = new long[numIter];
-		long[] countWhite = new long[numIter];
 		int iter = 0;
+		long countBlack;
+		long countWhite;
 		double sumW;
 		double sumW2;
 		double sumB;
 		double sumB2;
-		long totalNumPixels = numrows * numcols * numzs;
+		long totalNumPixels = moments.totalCount();
 		double p_t, sigmaFRG_t, sigmaBKG_t;
 		double[] score = new double[numIter];
+		double epsilon = 0.000001;
 		
-		ImageStack imgStack = img3D.getStack();
-		int[] histogram = new int[numberGreyValues];
-		
-		// compute histogram
-		for (int z = 0; z < numzs; z++) {
-			ImageProcessor imgProc = imgStack.getProcessor(z+1);
-			
-			for(int x = 0; x < numcols; ++ x) {
-				for(int y = 0; y < numrows; ++ y) {
-					int temp =imgProc.getPixel(x, y);
-					histogram[temp] ++;
-				}
-			}
+		if (diagnostics != null) {
+			diagnostics.println("THRESHOLD,P,SIGMA FRG, SIGMA BKG,SCORE");
 		}
-		
-		System.out.println("THRESHOLD,P,SIGMA FRG, SIGMA BKG,SCORE");
 
-		for (thresh = min; thresh <= max; thresh += delta) {
-			
-			countBlack[iter] = 0;
-			countWhite[iter] = 0;
-			sumW = 0.0;
-			sumW2 = 0.0;
-			sumB = 0.0;
-			sumB2 = 0.0;
+		for (thresh = min; thresh <= max && iter < numIter; thresh += delta) {
 			
-			// ImageObject [] intermediate = Threshold3DImage.threshold(img3D,
-			// thresh);
+			// BKG pixels are those in bins 0 to thresh (included), their
+			// moments are read from the cumulative histogram
+			int t = histogram.toBin(thresh);
+			countBlack = moments.count(t);
+			sumB = moments.sum(t);
+			sumB2 = moments.squaredSum(t);
 			
-//			for (int z = 0; z < numzs; z++) {
-//				ImageProcessor imgProc = imgStack.getProcessor(z+1);
-//				
-//				for(int x = 0; x < numcols; ++ x) {
-//					for(int y = 0; y < numrows; ++ y) {
-//						int temp =imgProc.getPixel(x, y);
-//						
-//						// FRG pixels are those above the threshold
-//						if (temp > thresh) {
-//							// white pixels
-//							sumW += temp;
-//							sumW2 += Math.pow(
-//									temp, 2);
-//							countWhite[iter]++;
-//						} else {
-//							// black pixels
-//							sumB += temp;
-//							sumB2 += Math.pow(
-//									temp, 2);
-//							countBlack[iter]++;
-//						}
-//					}
-//				}
-//			}
-			
-			for(int i=0; i<= thresh; i++) {
-				sumB += histogram[i] * i;
-				sumB2 += histogram[i] * Math.pow(i, 2);
-				countBlack[iter] += histogram[i];
-			}
-			
-			for(int i=(int)thresh + 1; i< numberGreyValues; i++) {
-				sumW += histogram[i] * i;
-				sumW2 += histogram[i] * Math.pow(i, 2);
-				countWhite[iter] += histogram[i];
-			}
+			// FRG pixels are those above the threshold
+			countWhite = totalNumPixels - countBlack;
+			sumW = moments.totalSum() - moments.sum(t);
+			sumW2 = moments.totalSquaredSum() - sumB2;
 
 			// compute ratio of background/all pixels = P(T)
 			// compute sigma of BKG and sigma of FRG
-			double epsilon = 0.000001;
-			
-			p_t = (double) countBlack[iter] / totalNumPixels;
-			if (countBlack[iter] > 0 && countWhite[iter] > 0) {
-				sigmaBKG_t = Math.sqrt(sumB2 * countBlack[iter]
+			p_t = (double) countBlack / totalNumPixels;
+			if (countBlack > 0 && countWhite > 0) {
+				sigmaBKG_t = Math.sqrt(sumB2 * countBlack
 						- sumB * sumB)
-						/ (double) countBlack[iter];
-				sigmaFRG_t = Math.sqrt(sumW2 * countWhite[iter]
+						/ (double) countBlack;
+				sigmaFRG_t = Math.sqrt(sumW2 * countWhite
 						- sumW * sumW)
-						/ (double) (countWhite[iter]);
-				/*System.out.print("P[" + thresh + "]=" + p_t);
-				System.out.print(" , ");
-				System.out.print("sigmaFRG[" + thresh + "]=" + sigmaFRG_t);
-				System.out.print(" , ");
-				System.out.print("sigmaBKG[" + thresh + "]=" + sigmaBKG_t);
-				System.out.print(" , ");*/
-			
-
-				if ((totalNumPixels - countBlack[iter]) != countWhite[iter]) {
-					System.out.println("error? "
-							+ (totalNumPixels - countBlack[iter])
-							+ ", " + countWhite[iter]);
-				}
+						/ (double) (countWhite);
 				
 				if (sigmaBKG_t < epsilon || sigmaFRG_t < epsilon
 						|| p_t < epsilon || (1 - p_t) < epsilon) {
@@ -192,16 +151,14 @@ public class MinErrorThresh extends Threshold3DImage {
 							* Math.log10(p_t) - (1 - p_t)
 							* Math.log10(1 - p_t);
 				}
-				/*System.out.println("score[" + iter + "]="
-						+ score[iter]);*/
 				
-				System.out.println(thresh + "," + p_t + "," + sigmaFRG_t + "," + sigmaBKG_t + "," + score[iter]);
+				if (diagnostics != null) {
+					diagnostics.println(thresh + "," + p_t + "," + sigmaFRG_t + "," + sigmaBKG_t + "," + score[iter]);
+				}
 			} else {
 				score[iter] = Double.MAX_VALUE;
 			}
 
-			
-
 			iter++;
 		}
 
@@ -217,10 +174,10 @@ public class MinErrorThresh extends Threshold3DImage {
 				minGlobalScore = score[iter];
 				optGlobalThresh = min + iter * delta;
 			}
-			System.out.print("Global score[" + iter + "]="
-					+ score[iter]);
-			
-			System.out.println();
+			if (diagnostics != null) {
+				diagnostics.println("Global score[" + iter + "]="
+						+ score[iter]);
+			}
 		}
 		double optLocalThresh = -1.0;
 		double val1, val2, val3;
@@ -265,11 +222,15 @@ public class MinErrorThresh extends Threshold3DImage {
 				optGlobalThresh = 0;
 			}
 			optThresh = optGlobalThresh;
-			System.out.println("optGlobalThresh=" + optThresh);
+			_logger.debug("optGlobalThresh=" + optThresh);
 		}else{
 			//CASE: it did find local minima
 			optThresh = optLocalThresh;
-			System.out.println("optLocalThresh=" + optThresh);
+			_logger.debug("optLocalThresh=" + optThresh);
+		}
+		
+		if (diagnostics != null) {
+			diagnostics.flush();
 		}
 
 		return optThresh;
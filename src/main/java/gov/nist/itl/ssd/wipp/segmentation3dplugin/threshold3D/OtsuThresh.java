@@ -20,18 +20,19 @@
  */
 package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
 
+import java.io.PrintWriter;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.process.ImageProcessor;
 
 /**
  * @author Mylene Simon <mylene.simon at nist.gov>
  *
  */
-public class OtsuThresh extends Threshold3DImage {
+public class OtsuThresh extends Threshold3DImage
+		implements HistogramThresholder {
 	
 	private static Log _logger = LogFactory.getLog(OtsuThresh.class);
 
@@ -53,65 +54,67 @@ public class OtsuThresh extends Threshold3DImage {
 			_logger.error("Input image is null, no threshold to be found.");
 			return -1.0;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
-		int bitDepth = img3D.getBitDepth();
-		int numberOfVoxels = numrows * numcols * numzs;
-		
-		double optThresh = 0.0;
-		
-		ImageStack imgStack = img3D.getStack();
-		int numberGreyValues = (int) Math.pow(2, bitDepth);
-		
-		int[] histogram = new int[numberGreyValues];
-		double[] probabilities = new double[numberGreyValues];
 		
 		// compute histogram
-		for (int z = 0; z < numzs; z++) {
-			ImageProcessor imgProc = imgStack.getProcessor(z+1);
-			
-			for(int x = 0; x < numcols; ++ x) {
-				for(int y = 0; y < numrows; ++ y) {
-					int temp =imgProc.getPixel(x, y);
-					histogram[temp] ++;
-				}
-			}
-		}
-		
-		// compute probabilities
-		for (int i = 0; i < numberGreyValues; i++) {
-			probabilities[i] = (double) histogram[i] / (double) numberOfVoxels;
-		}
+		return findThresh(Histogram3D.compute(img3D), min, max, delta);
+	}
+	
+	/**
+	 * Finds the threshold maximizing the inter-class variance over a range of
+	 * thresholds. The class weights and means are read from the cumulative
+	 * moments of the histogram, so each threshold is scored in constant time.
+	 * 
+	 * @param histogram histogram of the image
+	 * @param min minimum threshold, in grey values
+	 * @param max maximum threshold (included), in grey values
+	 * @param delta threshold increment, in grey values
+	 * @return the optimal threshold
+	 */
+	@Override
+	public double findThresh(Histogram3D histogram, double min, double max, double delta) {
 		
+		CumulativeHistogram moments = new CumulativeHistogram(histogram);
+		double numberOfVoxels = moments.totalCount();
+		long totalSum = moments.totalSum();
+		PrintWriter diagnostics = getDiagnostics();
 		
+		double optThresh = 0.0;
 		double maxInterClassVariance = Double.MIN_VALUE;
 		
+		if (diagnostics != null) {
+			diagnostics.println("THRESHOLD,WEIGHT BKG,MEAN BKG,MEAN FRG,INTER CLASS VARIANCE");
+		}
+		
 		for (double thresh = min; thresh <= max; thresh += delta) {
 			
-			double wB = 0.0;
-			double wF = 0.0;
-			double meanB = 0.0;
-			double meanF = 0.0;
-			
-			for(int i=0; i<= thresh; i++) {
-				wB += probabilities[i];
-				meanB += probabilities[i] * i;
-			}
-			meanB /= wB;
-			for(int i=(int)thresh + 1; i< numberGreyValues; i++) {
-				wF += probabilities[i];
-				meanF += probabilities[i] * i;
+			// background voxels are those in bins 0 to thresh (included)
+			int t = histogram.toBin(thresh);
+			long countB = moments.count(t);
+			long countF = moments.totalCount() - countB;
+			if (countB == 0 || countF == 0) {
+				continue;
 			}
-			meanF /= wF;
 			
-			double interClassVariance = wB * wF * Math.pow((meanB - meanF), 2);
+			double wB = countB / numberOfVoxels;
+			double wF = countF / numberOfVoxels;
+			double meanB = (double) moments.sum(t) / countB;
+			double meanF = (double) (totalSum - moments.sum(t)) / countF;
+			
+			double interClassVariance = wB * wF * (meanB - meanF) * (meanB - meanF);
+			if (diagnostics != null) {
+				diagnostics.println(thresh + "," + wB + "," + meanB + "," + meanF
+						+ "," + interClassVariance);
+			}
 			if(interClassVariance > maxInterClassVariance) {
 				optThresh = thresh;
 				maxInterClassVariance = interClassVariance;
 			}
 			
 		}
+		
+		if (diagnostics != null) {
+			diagnostics.flush();
+		}
 	
 		return optThresh;
 	}
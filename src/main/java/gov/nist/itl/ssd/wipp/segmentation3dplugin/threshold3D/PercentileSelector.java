@@ -0,0 +1,341 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+import java.util.concurrent.ForkJoinPool;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.ConcurrencyUtils;
+
+/**
+ * Statistics and percentiles of the positive values of a 3D image, used by
+ * the EGT thresholding, without copying nor sorting the voxels.
+ * 
+ * The k-th smallest value is found by successive histograms: each pass
+ * splits the range still holding it into NUMBER_OF_BINS bins, keeping the
+ * count and the exact minimum and maximum of each bin, and narrows the range
+ * to the bin holding the rank. Each pass is linear in the number of voxels
+ * and the range shrinks by about NUMBER_OF_BINS each time, so that one pass
+ * is enough for 8-bit images, two for 16-bit images and a few for 32-bit
+ * images. The memory used is a few small histograms per chunk of slices.
+ * 
+ * The values are read slice by slice from a SliceSource, which may compute
+ * them on the fly (see GradientSlices), once per pass.
+ * 
+ * NaN and infinite values are ignored.
+ */
+class PercentileSelector {
+	
+	// number of bins of the refinement histograms
+	static final int NUMBER_OF_BINS = 4096;
+	
+	/**
+	 * Slices of values read by the selector
+	 */
+	interface SliceSource {
+		
+		/**
+		 * @return the number of slices
+		 */
+		int getZSize();
+		
+		/**
+		 * @param zStart first slice (0 based)
+		 * @return a reader of the slices from zStart on, owning its buffers
+		 */
+		SliceReader read(int zStart);
+	}
+	
+	/**
+	 * Sequential reader of the slices of a SliceSource
+	 */
+	interface SliceReader {
+		
+		/**
+		 * @return the values of the next slice, valid until the next call
+		 */
+		float[] next();
+	}
+	
+	private final SliceSource source;
+	private final ForkJoinPool pool;
+	private final int numberOfChunks;
+	
+	// statistics of the positive values
+	private final long count;
+	private final float minValue;
+	private final float maxValue;
+	
+	/**
+	 * Computes the number, minimum and maximum of the positive values of an
+	 * image
+	 * 
+	 * @param voxels the voxels of the image
+	 * @param pool the pool processing the chunks of slices
+	 */
+	PercentileSelector(VoxelBuffer voxels, ForkJoinPool pool) {
+		this(of(voxels), pool);
+	}
+	
+	/**
+	 * Computes the number, minimum and maximum of the positive values of a
+	 * source of slices
+	 * 
+	 * @param source the slices of values
+	 * @param pool the pool processing the chunks of slices
+	 */
+	PercentileSelector(SliceSource source, ForkJoinPool pool) {
+		this.source = source;
+		this.pool = pool;
+		int zSize = source.getZSize();
+		this.numberOfChunks = Math.max(1, Math.min(zSize, 2 * pool.getParallelism()));
+		
+		long[] chunkCounts = new long[numberOfChunks];
+		float[] chunkMins = new float[numberOfChunks];
+		float[] chunkMaxs = new float[numberOfChunks];
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfChunks, chunk -> {
+			long localCount = 0;
+			float localMin = Float.POSITIVE_INFINITY;
+			float localMax = 0.0f;
+			SliceReader reader = source.read(chunkStart(chunk));
+			for (int z = chunkStart(chunk); z < chunkStart(chunk + 1); ++z) {
+				for (float v : reader.next()) {
+					if (v > 0 && v < Float.POSITIVE_INFINITY) {
+						localCount++;
+						if (v < localMin) localMin = v;
+						if (v > localMax) localMax = v;
+					}
+				}
+			}
+			chunkCounts[chunk] = localCount;
+			chunkMins[chunk] = localMin;
+			chunkMaxs[chunk] = localMax;
+		});
+		
+		long total = 0;
+		float min = Float.POSITIVE_INFINITY;
+		float max = 0.0f;
+		for (int chunk = 0; chunk < numberOfChunks; ++chunk) {
+			total += chunkCounts[chunk];
+			min = Math.min(min, chunkMins[chunk]);
+			max = Math.max(max, chunkMaxs[chunk]);
+		}
+		this.count = total;
+		this.minValue = min;
+		this.maxValue = max;
+	}
+	
+	/**
+	 * @return the number of positive values
+	 */
+	long getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return the smallest positive value
+	 */
+	float getMinValue() {
+		return minValue;
+	}
+	
+	/**
+	 * @return the largest positive value
+	 */
+	float getMaxValue() {
+		return maxValue;
+	}
+	
+	/**
+	 * Computes the histogram of the positive values with nbBins + 1 bins
+	 * centered on minValue + i * (maxValue - minValue) / nbBins
+	 * 
+	 * @param nbBins the number of intervals between minValue and maxValue
+	 * @return the histogram
+	 */
+	double[] histogram(int nbBins) {
+		double rescale = nbBins / ((double) maxValue - minValue);
+		long[][] chunkHistograms = new long[numberOfChunks][];
+		ConcurrencyUtils.parallelFor(pool, 0, numberOfChunks, chunk -> {
+			long[] localHistogram = new long[nbBins + 1];
+			SliceReader reader = source.read(chunkStart(chunk));
+			for (int z = chunkStart(chunk); z < chunkStart(chunk + 1); ++z) {
+				for (float v : reader.next()) {
+					if (v > 0 && v < Float.POSITIVE_INFINITY) {
+						// + 0.5 is to center the bins at [0 1] instead of [-0.5 0.5]
+						localHistogram[(int) ((v - minValue) * rescale + 0.5)]++;
+					}
+				}
+			}
+			chunkHistograms[chunk] = localHistogram;
+		});
+		
+		double[] histogram = new double[nbBins + 1];
+		for (long[] localHistogram : chunkHistograms) {
+			for (int i = 0; i <= nbBins; ++i) {
+				histogram[i] += localHistogram[i];
+			}
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Finds the percentile of the positive values, as the value of rank
+	 * (count + 1) * percent / 100 (constrained to valid ranks) in the sorted
+	 * values
+	 * 
+	 * @param percent the percentile, between 0 and 100
+	 * @return the value of the percentile
+	 */
+	double percentile(double percent) {
+		double rank = (count + 1) * (percent / 100.0);
+		
+		// constrain to valid values
+		if (rank > (count - 1)) {
+			rank = count - 1;
+		}
+		if (rank < 0) {
+			rank = 0;
+		}
+		return select((long) rank);
+	}
+	
+	/**
+	 * @param rank the rank (0 based) of the value in the sorted positive
+	 *        values
+	 * @return the value of rank rank
+	 */
+	double select(long rank) {
+		if (rank < 0 || rank >= count) {
+			throw new IllegalArgumentException("Rank " + rank
+					+ " out of the " + count + " positive values");
+		}
+		float low = minValue;
+		float high = maxValue;
+		while (low < high) {
+			// values of [low, high] are binned by (v - low) * scale, which is
+			// monotonic: the values between the minimum and the maximum of a
+			// bin all fall in this bin
+			final float rangeLow = low;
+			final float rangeHigh = high;
+			final double scale = NUMBER_OF_BINS / ((double) high - low);
+			long[][] chunkCounts = new long[numberOfChunks][];
+			float[][] chunkMins = new float[numberOfChunks][];
+			float[][] chunkMaxs = new float[numberOfChunks][];
+			ConcurrencyUtils.parallelFor(pool, 0, numberOfChunks, chunk -> {
+				long[] counts = new long[NUMBER_OF_BINS];
+				float[] mins = new float[NUMBER_OF_BINS];
+				float[] maxs = new float[NUMBER_OF_BINS];
+				SliceReader reader = source.read(chunkStart(chunk));
+				for (int z = chunkStart(chunk); z < chunkStart(chunk + 1); ++z) {
+					for (float v : reader.next()) {
+						if (v >= rangeLow && v <= rangeHigh) {
+							int bin = Math.min(NUMBER_OF_BINS - 1,
+									(int) (((double) v - rangeLow) * scale));
+							if (counts[bin] == 0 || v < mins[bin]) mins[bin] = v;
+							if (counts[bin] == 0 || v > maxs[bin]) maxs[bin] = v;
+							counts[bin]++;
+						}
+					}
+				}
+				chunkCounts[chunk] = counts;
+				chunkMins[chunk] = mins;
+				chunkMaxs[chunk] = maxs;
+			});
+			
+			// find the bin holding the rank, and its range over the chunks
+			long below = 0;
+			for (int bin = 0; bin < NUMBER_OF_BINS; ++bin) {
+				long binCount = 0;
+				for (long[] counts : chunkCounts) {
+					binCount += counts[bin];
+				}
+				if (below + binCount > rank) {
+					low = Float.POSITIVE_INFINITY;
+					high = Float.NEGATIVE_INFINITY;
+					for (int chunk = 0; chunk < numberOfChunks; ++chunk) {
+						if (chunkCounts[chunk][bin] > 0) {
+							low = Math.min(low, chunkMins[chunk][bin]);
+							high = Math.max(high, chunkMaxs[chunk][bin]);
+						}
+					}
+					rank -= below;
+					break;
+				}
+				below += binCount;
+			}
+		}
+		return low;
+	}
+	
+	private int chunkStart(int chunk) {
+		return (int) ((long) source.getZSize() * chunk / numberOfChunks);
+	}
+	
+	/**
+	 * @return the slices of a voxel buffer, as floats
+	 */
+	static SliceSource of(VoxelBuffer voxels) {
+		return new SliceSource() {
+			
+			@Override
+			public int getZSize() {
+				return voxels.getZSize();
+			}
+			
+			@Override
+			public SliceReader read(int zStart) {
+				float[] buffer = new float[voxels.getSliceSize()];
+				return new SliceReader() {
+					
+					private int z = zStart;
+					
+					@Override
+					public float[] next() {
+						return toFloats(voxels.getSlice(z++), buffer);
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @return the values of a slice as floats (the slice itself for 32-bit
+	 *         images, buffer filled with the values otherwise)
+	 */
+	static float[] toFloats(Object slice, float[] buffer) {
+		if (slice instanceof float[]) {
+			return (float[]) slice;
+		}
+		if (slice instanceof byte[]) {
+			byte[] bytes = (byte[]) slice;
+			for (int i = 0; i < bytes.length; ++i) {
+				buffer[i] = bytes[i] & 0xff;
+			}
+		} else {
+			short[] shorts = (short[]) slice;
+			for (int i = 0; i < shorts.length; ++i) {
+				buffer[i] = shorts[i] & 0xffff;
+			}
+		}
+		return buffer;
+	}
+}
@@ -22,6 +22,10 @@ package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
 
 import ij.ImagePlus;
 
+import java.io.BufferedWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -37,6 +41,34 @@ public abstract class Threshold3DImage {
 	abstract double findThresh(ImagePlus img3D, double min, double max,
 			double delta);
 
+	// optional trace of the scores of the candidate thresholds
+	private PrintWriter diagnostics;
+
+	/**
+	 * Sets the writer receiving the score of each candidate threshold, as CSV
+	 * lines. The writer is buffered and flushed at the end of each search, but
+	 * never closed. Null (the default) disables the trace.
+	 * 
+	 * @param writer
+	 *            - diagnostics writer, or null
+	 */
+	public void setDiagnosticsWriter(Writer writer) {
+		if (writer == null) {
+			diagnostics = null;
+		} else if (writer instanceof BufferedWriter) {
+			diagnostics = new PrintWriter(writer);
+		} else {
+			diagnostics = new PrintWriter(new BufferedWriter(writer));
+		}
+	}
+
+	/**
+	 * @return the diagnostics writer, or null if the trace is disabled
+	 */
+	PrintWriter getDiagnostics() {
+		return diagnostics;
+	}
+
 //	/**
 //	 * This method thresholds a 3D volume and returns a binary 3D volume with
 //	 * 255 values for voxels with intensities larger than the provided threshold
@@ -79,8 +79,7 @@ public class TopoStableThresh extends Threshold3DImage{
 				count[iter] = 0;
 			
 			// Implementation for objects larger than N pixels (N=500)
-			Segment3DImage segment3DImage = new Segment3DImage(img3D);
-			segment3DImage.thresholdImage((int) thresh);
+			Segment3DImage segment3DImage = new Segment3DImage(img3D, (int) thresh);
 			frgCounts[iter] = segment3DImage.getFRGCount();
 			bkgCounts[iter] = segment3DImage.getBKGCount();
 			
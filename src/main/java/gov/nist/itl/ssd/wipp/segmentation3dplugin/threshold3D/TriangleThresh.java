@@ -24,15 +24,14 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.process.AutoThresholder;
-import ij.process.ImageProcessor;
 
 /**
  * @author Mylene Simon <mylene.simon at nist.gov>
  *
  */
-public class TriangleThresh {
+public class TriangleThresh extends Threshold3DImage
+		implements HistogramThresholder {
 
 	private static Log logger = LogFactory.getLog(TriangleThresh.class);
 	/**
@@ -42,6 +41,16 @@ public class TriangleThresh {
 		// TODO Auto-generated constructor stub
 	}
 	
+	/**
+	 * Finds the Triangle threshold of the image, over all the bins of its
+	 * histogram (min, max and delta are ignored)
+	 */
+	@Override
+	public double findThresh(ImagePlus img3D, double min, double max,
+			double delta) {
+		return findThresh(img3D);
+	}
+	
 	public double findThresh(ImagePlus img3D) {
 		
 		// sanity check
@@ -49,33 +58,37 @@ public class TriangleThresh {
 			logger.error("Input image is null, no threshold to be found.");
 			return -1.0;
 		}
-		int numrows = img3D.getHeight();
-		int numcols = img3D.getWidth();
-		int numzs = img3D.getNSlices();
 		
-		double optThresh = 0.0;
-		
-		ImageStack imgStack = img3D.getStack();
-		
-		int[] histogram = new int[256];
+		// compute histogram
+		return findThresh(Histogram3D.compute(img3D));
+	}
+	
+	/**
+	 * Finds the Triangle threshold from the histogram of the image, over all
+	 * its bins (min, max and delta are ignored)
+	 */
+	@Override
+	public double findThresh(Histogram3D histogram, double min, double max,
+			double delta) {
+		return findThresh(histogram);
+	}
+	
+	/**
+	 * @param histogram histogram of the image
+	 * @return the Triangle threshold, computed on a 256 bins histogram when
+	 *         the number of bins is a multiple of 256, in grey values
+	 */
+	public double findThresh(Histogram3D histogram) {
 		
-		// compute 8-bit histogram 
-		for (int z = 0; z < numzs; z++) {
-			ImageProcessor imgProc = imgStack.getProcessor(z+1).convertToByte(true);
-			
-			for(int x = 0; x < numcols; ++ x) {
-				for(int y = 0; y < numrows; ++ y) {
-					int temp =imgProc.getPixel(x, y);
-					histogram[temp] ++;
-				}
-			}
-		}
+		// 8-bit histogram
+		int numberOfBins = histogram.getNumberOfBins();
+		Histogram3D histogram256 = numberOfBins > 256 && numberOfBins % 256 == 0
+				? histogram.rebin(256) : histogram;
 		
 		// Compute threshold with Triangle algorithm from ImageJ
 		AutoThresholder autoThresholder = new AutoThresholder();
-		optThresh = autoThresholder.getThreshold("Triangle", histogram) * 256.0;
-		
-		return optThresh;
+		return histogram256.getBinStart(autoThresholder.getThreshold("Triangle",
+				histogram256.toIntArray()));
 	}
 
 }
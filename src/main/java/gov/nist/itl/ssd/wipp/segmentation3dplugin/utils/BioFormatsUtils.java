@@ -61,16 +61,7 @@ public class BioFormatsUtils {
     }
 
     public static OMEXMLMetadata getMetadata(File tile) {
-        OMEXMLMetadata metadata;
-        try {
-            OMEXMLService omeXmlService = new ServiceFactory().getInstance(
-                    OMEXMLService.class);
-            metadata = omeXmlService.createOMEXMLMetadata();
-        } catch (DependencyException ex) {
-            throw new RuntimeException("Cannot find OMEXMLService", ex);
-        } catch (ServiceException ex) {
-            throw new RuntimeException("Cannot create OME metadata", ex);
-        }
+        OMEXMLMetadata metadata = createMetadata();
         try (ImageReader imageReader = new ImageReader()) {
             IFormatReader reader;
             reader = imageReader.getReader(tile.getPath());
@@ -85,4 +76,19 @@ public class BioFormatsUtils {
 		return metadata;
 }
 
+    /**
+     * @return empty OME metadata, to be populated by a reader
+     */
+    static OMEXMLMetadata createMetadata() {
+        try {
+            OMEXMLService omeXmlService = new ServiceFactory().getInstance(
+                    OMEXMLService.class);
+            return omeXmlService.createOMEXMLMetadata();
+        } catch (DependencyException ex) {
+            throw new RuntimeException("Cannot find OMEXMLService", ex);
+        } catch (ServiceException ex) {
+            throw new RuntimeException("Cannot create OME metadata", ex);
+        }
+    }
+
 }
@@ -0,0 +1,67 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Helpers to run loops on a ForkJoinPool
+ */
+public class ConcurrencyUtils {
+
+    /**
+     * Runs body(i) for every i in [start, end) on the given pool and waits for
+     * completion. The range is split recursively so that idle workers can
+     * steal the remaining iterations. Exceptions thrown by the body are
+     * rethrown to the caller.
+     *
+     * @param pool the pool running the iterations
+     * @param start first index (included)
+     * @param end last index (excluded)
+     * @param body the loop body
+     */
+    public static void parallelFor(ForkJoinPool pool, int start, int end,
+            IntConsumer body) {
+        if (start >= end) {
+            return;
+        }
+        pool.invoke(new RangeAction(start, end, body));
+    }
+
+    private static class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+        private final IntConsumer body;
+
+        RangeAction(int start, int end, IntConsumer body) {
+            this.start = start;
+            this.end = end;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                body.accept(start);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new RangeAction(start, middle, body),
+                    new RangeAction(middle, end, body));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+/**
+ * A number of bytes shared by the stages of a pipeline. A stage reserves the
+ * memory of the data it is about to allocate, waiting for other stages to
+ * release theirs if needed, so that the amount of data in flight stays
+ * within the budget whatever the number of images.
+ *
+ * A reservation larger than the whole budget is granted once nothing else is
+ * reserved, so that a single large image can still be processed alone.
+ */
+public class MemoryBudget {
+
+    private final long capacity;
+    private long reserved;
+
+    /**
+     * @param capacity the number of bytes that can be reserved at once
+     */
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Memory budget must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves bytes, waiting until they fit in the budget (or until nothing
+     * is reserved, for more bytes than the budget)
+     *
+     * @param bytes the number of bytes to reserve
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (reserved > 0 && reserved + bytes > capacity) {
+            wait();
+        }
+        reserved += bytes;
+    }
+
+    /**
+     * Releases bytes reserved by acquire
+     *
+     * @param bytes the number of bytes to release
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getReserved() {
+        return reserved;
+    }
+}
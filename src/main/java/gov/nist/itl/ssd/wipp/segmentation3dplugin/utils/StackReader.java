@@ -0,0 +1,217 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import ij.ImagePlus;
+import loci.common.DebugTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ome.OMEXMLMetadata;
+
+/**
+ * Reads the planes of a 3D stack with Bio-Formats directly into a
+ * VoxelBuffer.
+ *
+ * The file is opened once: the OME metadata is populated by the same open
+ * (no second reader is needed to write the output with it), and the planes
+ * are decoded with openBytes into the slice arrays of the buffer, without
+ * building the ImageJ processors, LUTs and calibration of BF.openImagePlus.
+ * Unsigned 8-bit, unsigned 16-bit and float planes are supported, which are
+ * stored as is by ImageJ. Only the first channel and timepoint of the first
+ * series are read.
+ */
+public class StackReader implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(
+            StackReader.class.getName());
+
+    private final IFormatReader reader;
+    private final OMEXMLMetadata metadata;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int bitDepth;
+    private final ByteOrder byteOrder;
+    // raw bytes of a plane, for the 16-bit and float planes
+    private byte[] planeBytes;
+
+    /**
+     * Opens a file and reads its metadata
+     *
+     * @param file the image file
+     * @throws IOException if the file can not be opened
+     */
+    public StackReader(File file) throws IOException {
+        DebugTools.enableLogging("WARN");
+        LOGGER.log(Level.INFO, "Loading " + file.getName() + " using BioFormats");
+
+        metadata = BioFormatsUtils.createMetadata();
+        reader = new ImageReader();
+        try {
+            reader.setOriginalMetadataPopulated(false);
+            reader.setMetadataStore(metadata);
+            reader.setId(file.getPath());
+        } catch (FormatException | IOException ex) {
+            reader.close();
+            throw new IOException("Cannot open image " + file
+                    + " using BioFormats: " + ex.getMessage(), ex);
+        }
+
+        xSize = reader.getSizeX();
+        ySize = reader.getSizeY();
+        zSize = reader.getSizeZ();
+        byteOrder = reader.isLittleEndian()
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        if (reader.getRGBChannelCount() != 1) {
+            bitDepth = 0;
+        } else {
+            switch (reader.getPixelType()) {
+                case FormatTools.UINT8:
+                    bitDepth = 8;
+                    break;
+                case FormatTools.UINT16:
+                    bitDepth = 16;
+                    break;
+                case FormatTools.FLOAT:
+                    bitDepth = 32;
+                    break;
+                default:
+                    bitDepth = 0;
+            }
+        }
+        if (reader.getSizeC() > 1 || reader.getSizeT() > 1) {
+            LOGGER.warning(file.getName() + " has " + reader.getSizeC()
+                    + " channels and " + reader.getSizeT()
+                    + " timepoints, only the first ones are read.");
+        }
+    }
+
+    /**
+     * @return true if the planes can be read into a VoxelBuffer, false if
+     *         the image has to be opened with BioFormatsUtils.readImage
+     */
+    public boolean isSupported() {
+        return bitDepth != 0;
+    }
+
+    /**
+     * @return the OME metadata populated when the file was opened
+     */
+    public OMEXMLMetadata getMetadata() {
+        return metadata;
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    public int getZSize() {
+        return zSize;
+    }
+
+    /**
+     * @return 8, 16 or 32, or 0 if the pixel type is not supported
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @return the number of bytes of the voxels once read (4 bytes per voxel
+     *         for the pixel types which are not supported, as converted by
+     *         ImageJ)
+     */
+    public long getNumberOfBytes() {
+        return (long) xSize * ySize * zSize * (bitDepth == 0 ? 4 : bitDepth / 8);
+    }
+
+    /**
+     * Decodes plane z (0 based) into a slice array
+     *
+     * @param z the plane
+     * @param slice byte[], short[] or float[] of xSize * ySize values,
+     *        matching the bit depth
+     * @throws IOException if the plane can not be read
+     */
+    public void readPlane(int z, Object slice) throws IOException {
+        int planeIndex = reader.getIndex(z, 0, 0);
+        try {
+            if (bitDepth == 8) {
+                // the bytes are the voxels
+                reader.openBytes(planeIndex, (byte[]) slice);
+                return;
+            }
+            if (planeBytes == null) {
+                planeBytes = new byte[xSize * ySize * (bitDepth / 8)];
+            }
+            reader.openBytes(planeIndex, planeBytes);
+        } catch (FormatException ex) {
+            throw new IOException("Cannot read plane " + z + ": "
+                    + ex.getMessage(), ex);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(planeBytes).order(byteOrder);
+        if (bitDepth == 16) {
+            bytes.asShortBuffer().get((short[]) slice);
+        } else {
+            bytes.asFloatBuffer().get((float[]) slice);
+        }
+    }
+
+    /**
+     * Reads all the planes into a new buffer
+     *
+     * @return the voxels of the stack
+     * @throws IOException if a plane can not be read
+     */
+    public VoxelBuffer read() throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unsupported pixel type: "
+                    + FormatTools.getPixelTypeString(reader.getPixelType()));
+        }
+        VoxelBuffer voxels = VoxelBuffer.create(bitDepth, xSize, ySize, zSize);
+        for (int z = 0; z < zSize; ++z) {
+            readPlane(z, voxels.getSlice(z));
+        }
+        return voxels;
+    }
+
+    /**
+     * Reads all the planes into an ImagePlus sharing the arrays of the buffer
+     *
+     * @param title the title of the image
+     * @return the image
+     * @throws IOException if a plane can not be read
+     */
+    public ImagePlus readImage(String title) throws IOException {
+        return new ImagePlus(title, read().toImageStack());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import ij.ImageStack;
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+/**
+ * Writes stacks as tiled, LZW or PackBits compressed OME-TIFF files: 8-bit
+ * masks, as is or packed to 1 bit per voxel (bilevel), and 16-bit or 32-bit
+ * label images (stored as unsigned integers).
+ *
+ * The tiles are compressed in parallel on a ForkJoinPool, a batch of planes
+ * at a time, and appended in order to the file, each plane followed by its
+ * IFD. The OME-XML of the metadata is stored in the description of the first
+ * IFD, with one TiffData element per plane. The file is a BigTIFF when it may
+ * exceed 4 GB, or when requested (setBigTiff).
+ */
+public class TiledOmeTiffWriter {
+
+    // TIFF tags
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int IMAGE_DESCRIPTION = 270;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int PLANAR_CONFIGURATION = 284;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int SAMPLE_FORMAT = 339;
+
+    // TIFF field types
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int LONG8 = 16;
+
+    public static final int LZW_COMPRESSION = 5;
+    public static final int PACKBITS_COMPRESSION = 32773;
+
+    private static final int BLACK_IS_ZERO = 1;
+
+    private final int tileSize;
+    private final int compression;
+    private final ForkJoinPool pool;
+    private boolean forceBigTiff = false;
+
+    /**
+     * Writer of LZW compressed files
+     *
+     * @param tileSize the width and height of the tiles, a multiple of 16
+     * @param pool the pool compressing the tiles
+     */
+    public TiledOmeTiffWriter(int tileSize, ForkJoinPool pool) {
+        this(tileSize, LZW_COMPRESSION, pool);
+    }
+
+    /**
+     * @param tileSize the width and height of the tiles, a multiple of 16
+     * @param compression LZW_COMPRESSION or PACKBITS_COMPRESSION
+     * @param pool the pool compressing the tiles
+     */
+    public TiledOmeTiffWriter(int tileSize, int compression,
+            ForkJoinPool pool) {
+        if (tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException(
+                    "Tile size must be a positive multiple of 16: "
+                    + tileSize);
+        }
+        if (compression != LZW_COMPRESSION
+                && compression != PACKBITS_COMPRESSION) {
+            throw new IllegalArgumentException("Unsupported compression: "
+                    + compression);
+        }
+        this.tileSize = tileSize;
+        this.compression = compression;
+        this.pool = pool;
+    }
+
+    /**
+     * @param bigTiff whether to write BigTIFF files whatever their size
+     *        (default: false, only the files which may exceed 4 GB are)
+     */
+    public void setBigTiff(boolean bigTiff) {
+        this.forceBigTiff = bigTiff;
+    }
+
+    /**
+     * Writes a stack with the bit depth of its planes
+     *
+     * @see #write(File, OMEXMLMetadata, ImageStack, boolean)
+     */
+    public long write(File file, OMEXMLMetadata metadata, ImageStack stack)
+            throws IOException {
+        return write(file, metadata, stack, false);
+    }
+
+    /**
+     * Writes a stack of 8-bit planes (or 1-bit planes, for a bilevel file:
+     * the voxels different from 0 are set), 16-bit planes or 32-bit planes
+     * of integer values. The pixel type and the TiffData and UUID elements
+     * of the metadata are updated to describe the planes of the file.
+     *
+     * @param file the output file
+     * @param metadata the OME metadata of the stack
+     * @param stack the planes to write
+     * @param bilevel whether to pack the 8-bit planes to 1 bit per voxel
+     * @return the size of the file, in bytes
+     * @throws IOException if the file can not be written
+     */
+    public long write(File file, OMEXMLMetadata metadata, ImageStack stack,
+            boolean bilevel) throws IOException {
+        return write(file, metadata, stack.getWidth(), stack.getHeight(),
+                stack.getSize(), z -> stack.getPixels(z + 1), bilevel);
+    }
+
+    /**
+     * Writes a stack whose planes are produced while the file is written,
+     * for a stack which does not fit in memory: the planes are requested in
+     * z order, a batch at a time, and released once compressed.
+     *
+     * @param file the output file
+     * @param metadata the OME metadata of the stack
+     * @param xSize the width of the planes
+     * @param ySize the height of the planes
+     * @param zSize the number of planes
+     * @param planes the pixel array of each plane (0 based), all of the
+     *        same type
+     * @param bilevel whether to pack the 8-bit planes to 1 bit per voxel
+     * @return the size of the file, in bytes
+     * @throws IOException if the file can not be written
+     * @see #write(File, OMEXMLMetadata, ImageStack, boolean)
+     */
+    public long write(File file, OMEXMLMetadata metadata, int xSize,
+            int ySize, int zSize, IntFunction<Object> planes, boolean bilevel)
+            throws IOException {
+        Object firstPlane = zSize == 0 ? null : planes.apply(0);
+        int bitsPerSample;
+        PixelType pixelType;
+        if (firstPlane instanceof byte[]) {
+            bitsPerSample = bilevel ? 1 : 8;
+            pixelType = bilevel ? PixelType.BIT : PixelType.UINT8;
+        } else if (firstPlane instanceof short[] && !bilevel) {
+            bitsPerSample = 16;
+            pixelType = PixelType.UINT16;
+        } else if (firstPlane instanceof float[] && !bilevel) {
+            bitsPerSample = 32;
+            pixelType = PixelType.UINT32;
+        } else {
+            throw new IllegalArgumentException("Unsupported stack"
+                    + (bilevel ? " for a bilevel file" : ""));
+        }
+        metadata.setPixelsType(pixelType, 0);
+        metadata.setPixelsSignificantBits(new PositiveInteger(bitsPerSample),
+                0);
+
+        // tiles larger than the image only add padding
+        int tileWidth = Math.min(tileSize, roundUp(xSize, 16));
+        int tileHeight = Math.min(tileSize, roundUp(ySize, 16));
+        int tilesAcross = (xSize + tileWidth - 1) / tileWidth;
+        int tilesDown = (ySize + tileHeight - 1) / tileHeight;
+        int tilesPerPlane = tilesAcross * tilesDown;
+        // the tile width is a multiple of 8, rows of bits fill whole bytes
+        int rowBytes = tileWidth * bitsPerSample / 8;
+
+        byte[] description = createDescription(file, metadata, zSize);
+        // LZW may expand incompressible tiles
+        long maximumSize = 2L * tilesPerPlane * rowBytes * tileHeight * zSize
+                + (long) (tilesPerPlane * 16 + 256) * zSize
+                + description.length;
+        boolean bigTiff = forceBigTiff || maximumSize > 0xFFFFFFFFL;
+
+        // enough tiles per batch to keep the workers busy
+        int planesPerBatch = Math.max(1, Math.min(zSize,
+                (2 * pool.getParallelism() + tilesPerPlane - 1)
+                / tilesPerPlane));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(bigTiff ? 16 : 8)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 'I').put((byte) 'I');
+            if (bigTiff) {
+                header.putShort((short) 43).putShort((short) 8)
+                        .putShort((short) 0).putLong(0);
+            } else {
+                header.putShort((short) 42).putInt(0);
+            }
+            header.flip();
+            long position = write(channel, header, 0);
+            // position of the offset of the next IFD, patched once it is
+            // written
+            long nextIfdPointer = bigTiff ? 8 : 4;
+
+            for (int zStart = 0; zStart < zSize; zStart += planesPerBatch) {
+                int batchStart = zStart;
+                int batchSize = Math.min(planesPerBatch, zSize - zStart);
+                Object[] batchPlanes = new Object[batchSize];
+                for (int p = 0; p < batchSize; ++p) {
+                    batchPlanes[p] = batchStart + p == 0 ? firstPlane
+                            : planes.apply(batchStart + p);
+                }
+                byte[][] tiles = new byte[batchSize * tilesPerPlane][];
+                ConcurrencyUtils.parallelFor(pool, 0, tiles.length, t -> {
+                    int tile = t % tilesPerPlane;
+                    tiles[t] = compressTile(batchPlanes[t / tilesPerPlane],
+                            bitsPerSample, xSize, ySize,
+                            (tile % tilesAcross) * tileWidth,
+                            (tile / tilesAcross) * tileHeight,
+                            tileWidth, tileHeight);
+                });
+
+                for (int p = 0; p < batchSize; ++p) {
+                    long[] offsets = new long[tilesPerPlane];
+                    long[] byteCounts = new long[tilesPerPlane];
+                    for (int tile = 0; tile < tilesPerPlane; ++tile) {
+                        byte[] data = tiles[p * tilesPerPlane + tile];
+                        tiles[p * tilesPerPlane + tile] = null;
+                        offsets[tile] = position;
+                        byteCounts[tile] = data.length;
+                        position += write(channel, ByteBuffer.wrap(data),
+                                position);
+                    }
+
+                    Ifd ifd = new Ifd(bigTiff);
+                    ifd.putLong(IMAGE_WIDTH, xSize);
+                    ifd.putLong(IMAGE_LENGTH, ySize);
+                    ifd.putShort(BITS_PER_SAMPLE, bitsPerSample);
+                    ifd.putShort(COMPRESSION, compression);
+                    ifd.putShort(PHOTOMETRIC_INTERPRETATION, BLACK_IS_ZERO);
+                    if (batchStart + p == 0) {
+                        ifd.putAscii(IMAGE_DESCRIPTION, description);
+                    }
+                    ifd.putShort(SAMPLES_PER_PIXEL, 1);
+                    ifd.putShort(PLANAR_CONFIGURATION, 1);
+                    ifd.putLong(TILE_WIDTH, tileWidth);
+                    ifd.putLong(TILE_LENGTH, tileHeight);
+                    ifd.putOffsets(TILE_OFFSETS, offsets);
+                    ifd.putOffsets(TILE_BYTE_COUNTS, byteCounts);
+                    ifd.putShort(SAMPLE_FORMAT, 1);
+
+                    // IFDs start on a word boundary
+                    position += position & 1;
+                    ByteBuffer pointer = ByteBuffer.allocate(bigTiff ? 8 : 4)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    if (bigTiff) {
+                        pointer.putLong(position);
+                    } else {
+                        pointer.putInt((int) position);
+                    }
+                    pointer.flip();
+                    write(channel, pointer, nextIfdPointer);
+                    nextIfdPointer = position + ifd.getNextIfdPointer();
+                    position += write(channel, ifd.toBuffer(position),
+                            position);
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Sets the TiffData elements of the planes and returns the OME-XML, as
+     * a null terminated string
+     */
+    private static byte[] createDescription(File file,
+            OMEXMLMetadata metadata, int zSize) {
+        String uuid = "urn:uuid:" + UUID.randomUUID();
+        metadata.setUUID(uuid);
+        for (int z = 0; z < zSize; ++z) {
+            NonNegativeInteger plane = new NonNegativeInteger(z);
+            metadata.setTiffDataIFD(plane, 0, z);
+            metadata.setTiffDataFirstZ(plane, 0, z);
+            metadata.setTiffDataFirstC(new NonNegativeInteger(0), 0, z);
+            metadata.setTiffDataFirstT(new NonNegativeInteger(0), 0, z);
+            metadata.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, z);
+            metadata.setUUIDFileName(file.getName(), 0, z);
+            metadata.setUUIDValue(uuid, 0, z);
+        }
+        // the planes are written in the byte order of the file
+        metadata.setPixelsBigEndian(Boolean.FALSE, 0);
+        byte[] xml = metadata.dumpXML().getBytes(StandardCharsets.UTF_8);
+        byte[] description = new byte[xml.length + 1];
+        System.arraycopy(xml, 0, description, 0, xml.length);
+        return description;
+    }
+
+    /**
+     * Copies a tile of a plane, padded with zeros past the edges of the
+     * plane, in the samples of the file, and compresses it
+     */
+    private byte[] compressTile(Object plane, int bitsPerSample, int xSize,
+            int ySize, int x, int y, int tileWidth, int tileHeight) {
+        int rowBytes = tileWidth * bitsPerSample / 8;
+        byte[] tile = new byte[rowBytes * tileHeight];
+        int width = Math.min(tileWidth, xSize - x);
+        int height = Math.min(tileHeight, ySize - y);
+        for (int row = 0; row < height; ++row) {
+            int offset = (y + row) * xSize + x;
+            int tileOffset = row * rowBytes;
+            switch (bitsPerSample) {
+                case 1:
+                    byte[] mask = (byte[]) plane;
+                    for (int i = 0; i < width; ++i) {
+                        if (mask[offset + i] != 0) {
+                            tile[tileOffset + (i >>> 3)] |= 0x80 >>> (i & 7);
+                        }
+                    }
+                    break;
+                case 8:
+                    System.arraycopy(plane, offset, tile, tileOffset, width);
+                    break;
+                case 16:
+                    short[] shortPlane = (short[]) plane;
+                    for (int i = 0; i < width; ++i) {
+                        short value = shortPlane[offset + i];
+                        tile[tileOffset + 2 * i] = (byte) value;
+                        tile[tileOffset + 2 * i + 1] = (byte) (value >> 8);
+                    }
+                    break;
+                default:
+                    // integer values stored in a float plane
+                    float[] floatPlane = (float[]) plane;
+                    for (int i = 0; i < width; ++i) {
+                        int value = (int) floatPlane[offset + i];
+                        for (int b = 0; b < 4; ++b) {
+                            tile[tileOffset + 4 * i + b] =
+                                    (byte) (value >> (8 * b));
+                        }
+                    }
+                    break;
+            }
+        }
+        if (compression == PACKBITS_COMPRESSION) {
+            return packBits(tile, rowBytes);
+        }
+        try {
+            return new LZWCodec().compress(tile,
+                    CodecOptions.getDefaultOptions());
+        } catch (FormatException ex) {
+            throw new RuntimeException("Unable to compress tile: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Encodes a tile with PackBits, row by row as TIFF requires: runs of a
+     * repeated byte become 2 bytes, which suits the long runs of sparse masks
+     */
+    private static byte[] packBits(byte[] tile, int rowBytes) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(
+                tile.length / 8 + 16);
+        for (int rowStart = 0; rowStart < tile.length; rowStart += rowBytes) {
+            int rowEnd = rowStart + rowBytes;
+            int i = rowStart;
+            while (i < rowEnd) {
+                int run = 1;
+                while (i + run < rowEnd && run < 128
+                        && tile[i + run] == tile[i]) {
+                    ++run;
+                }
+                if (run > 1) {
+                    packed.write(1 - run);
+                    packed.write(tile[i]);
+                    i += run;
+                    continue;
+                }
+                // literal bytes, up to the next repeated byte
+                int literalStart = i;
+                while (i < rowEnd && i - literalStart < 128
+                        && (i + 1 == rowEnd || tile[i + 1] != tile[i])) {
+                    ++i;
+                }
+                packed.write(i - literalStart - 1);
+                packed.write(tile, literalStart, i - literalStart);
+            }
+        }
+        return packed.toByteArray();
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return length;
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    /**
+     * The entries of an image file directory, sorted by tag. The values
+     * that do not fit in an entry are stored right after the directory.
+     */
+    private static class Ifd {
+
+        private final boolean bigTiff;
+        private final Map<Integer, Entry> entries = new TreeMap<>();
+
+        Ifd(boolean bigTiff) {
+            this.bigTiff = bigTiff;
+        }
+
+        void putShort(int tag, int value) {
+            ByteBuffer data = allocate(2);
+            data.putShort((short) value);
+            entries.put(tag, new Entry(SHORT, 1, data.array()));
+        }
+
+        void putLong(int tag, long value) {
+            ByteBuffer data = allocate(4);
+            data.putInt((int) value);
+            entries.put(tag, new Entry(LONG, 1, data.array()));
+        }
+
+        void putAscii(int tag, byte[] value) {
+            entries.put(tag, new Entry(ASCII, value.length, value));
+        }
+
+        void putOffsets(int tag, long[] values) {
+            ByteBuffer data = allocate(values.length * (bigTiff ? 8 : 4));
+            for (long value : values) {
+                if (bigTiff) {
+                    data.putLong(value);
+                } else {
+                    data.putInt((int) value);
+                }
+            }
+            entries.put(tag, new Entry(bigTiff ? LONG8 : LONG,
+                    values.length, data.array()));
+        }
+
+        /**
+         * @return the position of the offset of the next IFD, relative to
+         *         the start of the directory
+         */
+        long getNextIfdPointer() {
+            return (bigTiff ? 8 : 2) + (long) entries.size()
+                    * (bigTiff ? 20 : 12);
+        }
+
+        /**
+         * @param position the position of the directory in the file
+         * @return the directory followed by its out of line values, with no
+         *         next IFD
+         */
+        ByteBuffer toBuffer(long position) {
+            int valueSize = bigTiff ? 8 : 4;
+            int directorySize = (int) getNextIfdPointer() + valueSize;
+            int size = directorySize;
+            for (Entry entry : entries.values()) {
+                if (entry.data.length > valueSize) {
+                    size += roundUp(entry.data.length, 2);
+                }
+            }
+            ByteBuffer buffer = allocate(size);
+            if (bigTiff) {
+                buffer.putLong(entries.size());
+            } else {
+                buffer.putShort((short) entries.size());
+            }
+            int valuesPosition = directorySize;
+            for (Map.Entry<Integer, Entry> tagEntry : entries.entrySet()) {
+                Entry entry = tagEntry.getValue();
+                buffer.putShort(tagEntry.getKey().shortValue());
+                buffer.putShort((short) entry.type);
+                if (bigTiff) {
+                    buffer.putLong(entry.count);
+                } else {
+                    buffer.putInt(entry.count);
+                }
+                if (entry.data.length <= valueSize) {
+                    buffer.put(entry.data);
+                    buffer.position(buffer.position() + valueSize
+                            - entry.data.length);
+                } else {
+                    if (bigTiff) {
+                        buffer.putLong(position + valuesPosition);
+                    } else {
+                        buffer.putInt((int) (position + valuesPosition));
+                    }
+                    int entryEnd = buffer.position();
+                    buffer.position(valuesPosition);
+                    buffer.put(entry.data);
+                    valuesPosition = roundUp(buffer.position(), 2);
+                    buffer.position(entryEnd);
+                }
+            }
+            // no next IFD until the next plane is written
+            buffer.position(0);
+            return buffer;
+        }
+
+        private static ByteBuffer allocate(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static class Entry {
+
+        final int type;
+        final int count;
+        final byte[] data;
+
+        Entry(int type, int count, byte[] data) {
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+    }
+}
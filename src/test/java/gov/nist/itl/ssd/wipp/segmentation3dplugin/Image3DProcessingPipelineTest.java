@@ -0,0 +1,98 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+/**
+ * Voxel dimensions scaling the Ball structuring element
+ */
+public class Image3DProcessingPipelineTest {
+	
+	@Test
+	public void prefersGivenVoxelDimensions() throws Exception {
+		OMEXMLMetadata metadata = createMetadata(
+				new Length(0.5, UNITS.MICROMETER),
+				new Length(0.5, UNITS.MICROMETER),
+				new Length(2, UNITS.MICROMETER));
+		assertArrayEquals(new double[] { 1, 2, 3 },
+				Image3DProcessingPipeline.getVoxelDimensions(metadata, 1, 2,
+						3, "nm"), 0);
+	}
+	
+	@Test
+	public void readsPhysicalSizesInMicrometers() throws Exception {
+		OMEXMLMetadata metadata = createMetadata(
+				new Length(250, UNITS.NANOMETER),
+				new Length(0.5, UNITS.MICROMETER),
+				new Length(0.002, UNITS.MILLIMETER));
+		assertArrayEquals(new double[] { 0.25, 0.5, 2 },
+				Image3DProcessingPipeline.getVoxelDimensions(metadata, 0, 0,
+						0, null), 1e-12);
+	}
+	
+	@Test
+	public void isotropicWithoutPhysicalSizes() throws Exception {
+		// no z size, as in a stack of 2D planes
+		assertNull(Image3DProcessingPipeline.getVoxelDimensions(
+				createMetadata(new Length(0.5, UNITS.MICROMETER),
+						new Length(0.5, UNITS.MICROMETER), null),
+				0, 0, 0, null));
+		// sizes in pixels, which have no length
+		assertNull(Image3DProcessingPipeline.getVoxelDimensions(
+				createMetadata(new Length(1, UNITS.PIXEL),
+						new Length(1, UNITS.PIXEL),
+						new Length(1, UNITS.PIXEL)),
+				0, 0, 0, null));
+		assertNull(Image3DProcessingPipeline.getVoxelDimensions(null, 0, 0,
+				0, null));
+	}
+	
+	private static OMEXMLMetadata createMetadata(Length physicalSizeX,
+			Length physicalSizeY, Length physicalSizeZ) throws Exception {
+		OMEXMLMetadata metadata = new ServiceFactory()
+				.getInstance(OMEXMLService.class).createOMEXMLMetadata();
+		MetadataTools.populateMetadata(metadata, 0, "stack", true, "XYZCT",
+				FormatTools.getPixelTypeString(FormatTools.UINT16), 16, 16,
+				4, 1, 1, 1);
+		if (physicalSizeX != null) {
+			metadata.setPixelsPhysicalSizeX(physicalSizeX, 0);
+		}
+		if (physicalSizeY != null) {
+			metadata.setPixelsPhysicalSizeY(physicalSizeY, 0);
+		}
+		if (physicalSizeZ != null) {
+			metadata.setPixelsPhysicalSizeZ(physicalSizeZ, 0);
+		}
+		return metadata;
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.utils.StackReader;
+
+/**
+ * Segments a synthetic stack brick by brick and in memory: the masks must be
+ * the same whatever the depth of the bricks. The components of the stack, its
+ * hole and the component touching an edge cross the brick boundaries.
+ */
+public class BrickedSegmentationTest {
+	
+	private static final int X_SIZE = 60;
+	private static final int Y_SIZE = 48;
+	private static final int Z_SIZE = 16;
+	private static final double THRESHOLD = 100;
+	private static final int RADIUS = 2;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	
+	@After
+	public void shutdownPool() {
+		pool.shutdown();
+	}
+	
+	@Test
+	public void matchesSegment3DImage() throws Exception {
+		Object[] planes = createStack(8);
+		File file = write(planes, FormatTools.UINT8);
+		for (int structuringElement : new int[] {
+				Segment3DImage.BOX_STRUCTURING_ELEMENT,
+				Segment3DImage.BALL_STRUCTURING_ELEMENT }) {
+			for (int choice = Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS;
+					choice <= Segment3DImage.ERODE_MORPHOLOGICAL_OPERATIONS;
+					++choice) {
+				for (boolean smoothing : new boolean[] { false, true }) {
+					assertSameAsInCore(file, planes, smoothing,
+							structuringElement, choice, false);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void keepsLargestComponent() throws Exception {
+		Object[] planes = createStack(8);
+		File file = write(planes, FormatTools.UINT8);
+		for (boolean smoothing : new boolean[] { false, true }) {
+			assertSameAsInCore(file, planes, smoothing,
+					Segment3DImage.BOX_STRUCTURING_ELEMENT,
+					Segment3DImage.NO_MORPHOLOGICAL_OPERATIONS, true);
+		}
+	}
+	
+	@Test
+	public void matchesSegment3DImageFor16BitAndFloatStacks()
+			throws Exception {
+		Object[] shorts = createStack(16);
+		File shortFile = write(shorts, FormatTools.UINT16);
+		Object[] floats = createStack(32);
+		File floatFile = write(floats, FormatTools.FLOAT);
+		for (boolean smoothing : new boolean[] { false, true }) {
+			assertSameAsInCore(shortFile, shorts, smoothing,
+					Segment3DImage.BOX_STRUCTURING_ELEMENT,
+					Segment3DImage.CLOSING_MORPHOLOGICAL_OPERATIONS, false);
+			assertSameAsInCore(floatFile, floats, smoothing,
+					Segment3DImage.BOX_STRUCTURING_ELEMENT,
+					Segment3DImage.CLOSING_MORPHOLOGICAL_OPERATIONS, false);
+		}
+	}
+	
+	@Test
+	public void readsStackOnce() throws Exception {
+		File file = write(createStack(16), FormatTools.UINT16);
+		for (boolean smoothing : new boolean[] { false, true }) {
+			try (CountingReader reader = new CountingReader(file);
+					BrickedSegmentation bricked = new BrickedSegmentation(
+							reader, 3, folder.getRoot(), pool)) {
+				if (smoothing) {
+					bricked.setSmoothing(1, 1, 1);
+				}
+				// range and histogram passes, then the thresholding
+				bricked.forEachBrick(voxels -> { });
+				int firstPassReads = reader.planeReads;
+				if (!smoothing) {
+					assertEquals(Z_SIZE, firstPassReads);
+				}
+				bricked.forEachBrick(voxels -> { });
+				bricked.thresholdStack(THRESHOLD);
+				assertEquals(firstPassReads, reader.planeReads);
+			}
+			// only the stack is left in the folder
+			assertEquals(1, folder.getRoot().list().length);
+		}
+	}
+	
+	/**
+	 * Segments a stack in memory, then brick by brick for bricks of 1, 2 and
+	 * 3 slices, removing the edge components and filling the holes
+	 */
+	private void assertSameAsInCore(File file, Object[] planes,
+			boolean smoothing, int structuringElement, int choice,
+			boolean makeSingleComponent) throws IOException {
+		String message = "smoothing " + smoothing + ", structuring element "
+				+ structuringElement + ", choice " + choice;
+		
+		ImagePlus image = toImagePlus(planes);
+		if (smoothing) {
+			Image3DSmoothing.grayscaleFlatOpening(image, 1, 1, 1, pool);
+		}
+		Segment3DImage inCore = new Segment3DImage(image, THRESHOLD, pool);
+		long thresholdedCount = inCore.getFRGCount();
+		inCore.setStructuringElement(structuringElement);
+		ImagePlus expected = inCore.segmentThresholdedImage(choice, RADIUS,
+				true, true, makeSingleComponent);
+		// the edge component and the hole change the mask
+		assertNotEquals(message, thresholdedCount, inCore.getFRGCount());
+		
+		for (int brickDepth = 1; brickDepth <= 3; ++brickDepth) {
+			try (StackReader reader = new StackReader(file);
+					BrickedSegmentation bricked = new BrickedSegmentation(
+							reader, brickDepth, folder.getRoot(), pool)) {
+				if (smoothing) {
+					bricked.setSmoothing(1, 1, 1);
+				}
+				bricked.setStructuringElement(structuringElement);
+				assertEquals(message, thresholdedCount,
+						bricked.thresholdStack(THRESHOLD));
+				bricked.segmentThresholdedStack(choice, RADIUS, true, true,
+						makeSingleComponent);
+				
+				String brickMessage = message + ", brick depth " + brickDepth;
+				assertEquals(brickMessage, inCore.getFRGCount(),
+						bricked.getFRGCount());
+				IntFunction<Object> actual = bricked.getMaskPlanes();
+				for (int z = 0; z < Z_SIZE; ++z) {
+					assertArrayEquals(brickMessage + ", slice " + z,
+							(byte[]) expected.getStack().getPixels(z + 1),
+							(byte[]) actual.apply(z));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the noisy planes of a stack holding:
+	 *         - a closed box around a hole,
+	 *         - a block touching the x = 0 face,
+	 *         - a bar going down the stack diagonally,
+	 *         - two pillars joined by a plate near the bottom of the stack,
+	 *         - a small cube
+	 */
+	private static Object[] createStack(int bitDepth) {
+		boolean[][] foreground = new boolean[Z_SIZE][X_SIZE * Y_SIZE];
+		// box of 5 voxel thick walls, the hole spanning slices 6 to 9
+		fill(foreground, 4, 27, 4, 27, 1, 14);
+		clear(foreground, 9, 22, 9, 22, 6, 9);
+		fill(foreground, 0, 8, 34, 44, 3, 12);
+		for (int z = 0; z < Z_SIZE; ++z) {
+			fill(foreground, 34 + z, 39 + z, 6 + z, 11 + z, z, z);
+		}
+		fill(foreground, 40, 45, 36, 41, 4, 13);
+		fill(foreground, 52, 57, 36, 41, 4, 13);
+		fill(foreground, 40, 57, 36, 41, 12, 13);
+		fill(foreground, 30, 31, 40, 41, 7, 8);
+		
+		Random random = new Random(bitDepth);
+		VoxelBuffer voxels = VoxelBuffer.create(bitDepth, X_SIZE, Y_SIZE,
+				Z_SIZE);
+		Object[] planes = new Object[Z_SIZE];
+		for (int z = 0; z < Z_SIZE; ++z) {
+			for (int i = 0; i < X_SIZE * Y_SIZE; ++i) {
+				boolean set = foreground[z][i];
+				// salt in the background, pepper in the foreground
+				if (random.nextInt(50) == 0) {
+					set = !set;
+				}
+				voxels.set(z, i, (set ? 200 : 30) + random.nextInt(41) - 20);
+			}
+			planes[z] = voxels.getSlice(z);
+		}
+		return planes;
+	}
+	
+	private static void fill(boolean[][] foreground, int xStart, int xEnd,
+			int yStart, int yEnd, int zStart, int zEnd) {
+		set(foreground, xStart, xEnd, yStart, yEnd, zStart, zEnd, true);
+	}
+	
+	private static void clear(boolean[][] foreground, int xStart, int xEnd,
+			int yStart, int yEnd, int zStart, int zEnd) {
+		set(foreground, xStart, xEnd, yStart, yEnd, zStart, zEnd, false);
+	}
+	
+	private static void set(boolean[][] foreground, int xStart, int xEnd,
+			int yStart, int yEnd, int zStart, int zEnd, boolean value) {
+		for (int z = zStart; z <= zEnd; ++z) {
+			for (int y = yStart; y <= yEnd; ++y) {
+				Arrays.fill(foreground[z], y * X_SIZE + xStart,
+						y * X_SIZE + xEnd + 1, value);
+			}
+		}
+	}
+	
+	private static ImagePlus toImagePlus(Object[] planes) {
+		ImageStack stack = new ImageStack(X_SIZE, Y_SIZE);
+		for (Object plane : planes) {
+			if (plane instanceof byte[]) {
+				stack.addSlice(new ByteProcessor(X_SIZE, Y_SIZE,
+						((byte[]) plane).clone(), null));
+			} else if (plane instanceof short[]) {
+				stack.addSlice(new ShortProcessor(X_SIZE, Y_SIZE,
+						((short[]) plane).clone(), null));
+			} else {
+				stack.addSlice(new FloatProcessor(X_SIZE, Y_SIZE,
+						((float[]) plane).clone(), null));
+			}
+		}
+		return new ImagePlus("stack", stack);
+	}
+	
+	private File write(Object[] planes, int pixelType) throws Exception {
+		File file = new File(folder.getRoot(),
+				FormatTools.getPixelTypeString(pixelType) + ".ome.tif");
+		OMEXMLMetadata metadata = new ServiceFactory()
+				.getInstance(OMEXMLService.class).createOMEXMLMetadata();
+		MetadataTools.populateMetadata(metadata, 0, file.getName(), true,
+				"XYZCT", FormatTools.getPixelTypeString(pixelType), X_SIZE,
+				Y_SIZE, Z_SIZE, 1, 1, 1);
+		try (OMETiffWriter writer = new OMETiffWriter()) {
+			writer.setMetadataRetrieve(metadata);
+			writer.setId(file.getPath());
+			for (int z = 0; z < Z_SIZE; ++z) {
+				writer.saveBytes(z, toBytes(planes[z]));
+			}
+		}
+		return file;
+	}
+	
+	private static byte[] toBytes(Object plane) {
+		if (plane instanceof byte[]) {
+			return (byte[]) plane;
+		}
+		ByteBuffer bytes;
+		if (plane instanceof short[]) {
+			short[] shorts = (short[]) plane;
+			bytes = ByteBuffer.allocate(2 * shorts.length);
+			bytes.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(shorts);
+		} else {
+			float[] floats = (float[]) plane;
+			bytes = ByteBuffer.allocate(4 * floats.length);
+			bytes.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(floats);
+		}
+		return bytes.array();
+	}
+	
+	/**
+	 * Counts the planes read from the stack
+	 */
+	private static final class CountingReader extends StackReader {
+		
+		private int planeReads;
+		
+		CountingReader(File file) throws IOException {
+			super(file);
+		}
+		
+		@Override
+		public void readPlane(int z, Object slice) throws IOException {
+			++planeReads;
+			super.readPlane(z, slice);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This software was developed by employees of the National Institute of 
+ * Standards and Technology (NIST), an agency of the Federal Government. 
+ * Pursuant to title 17 United States Code Section 105, works of NIST employees 
+ * are not subject to copyright protection in the United States and are considered 
+ * to be in the public domain. Permission to freely use, copy, modify, and distribute 
+ * this software and its documentation without fee is hereby granted, provided that 
+ * this notice and disclaimer of warranty appears in all copies.
+ * THE SOFTWARE IS PROVIDED 'AS IS' WITHOUT ANY WARRANTY OF ANY KIND, EITHER EXPRESSED, 
+ * IMPLIED, OR STATUTORY, INCLUDING, BUT NOT LIMITED TO, ANY WARRANTY THAT THE SOFTWARE 
+ * WILL CONFORM TO SPECIFICATIONS, ANY IMPLIED WARRANTIES OF MERCHANTABILITY, FITNESS 
+ * FOR A PARTICULAR PURPOSE, AND FREEDOM FROM INFRINGEMENT, AND ANY WARRANTY THAT THE 
+ * DOCUMENTATION WILL CONFORM TO THE SOFTWARE, OR ANY WARRANTY THAT THE SOFTWARE WILL 
+ * BE ERROR FREE. IN NO EVENT SHALL NIST BE LIABLE FOR ANY DAMAGES, INCLUDING, BUT NOT 
+ * LIMITED TO, DIRECT, INDIRECT, SPECIAL OR CONSEQUENTIAL DAMAGES, ARISING OUT OF, 
+ * RESULTING FROM, OR IN ANY WAY CONNECTED WITH THIS SOFTWARE, WHETHER OR NOT BASED 
+ * UPON WARRANTY, CONTRACT, TORT, OR OTHERWISE, WHETHER OR NOT INJURY WAS SUSTAINED BY 
+ * PERSONS OR PROPERTY OR OTHERWISE, AND WHETHER OR NOT LOSS WAS SUSTAINED FROM, OR 
+ * AROSE OUT OF THE RESULTS OF, OR USE OF, THE SOFTWARE OR SERVICES PROVIDED HEREUNDER.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.threshold3D;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Test;
+
+import gov.nist.itl.ssd.wipp.segmentation3dplugin.segment3D.VoxelBuffer;
+import ij.ImagePlus;
+
+/**
+ * Adaptive histograms of 16-bit stacks, whole and slab by slab
+ */
+public class Histogram3DTest {
+	
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+	
+	@After
+	public void shutdownPool() {
+		pool.shutdown();
+	}
+	
+	@Test
+	public void narrowsSixteenBitHistogram() {
+		ImagePlus image = new ImagePlus("stack",
+				createStack(1000, 1999, 7).toImageStack());
+		
+		// one bin per grey value of the range
+		Histogram3D histogram = Histogram3D.computeAdaptive(image, 65536,
+				pool);
+		assertEquals(1000, histogram.getNumberOfBins());
+		assertEquals(1000.0, histogram.getMinValue(), 0.0);
+		assertEquals(1.0, histogram.getBinWidth(), 0.0);
+		long[] counts = Histogram3D.compute(image, pool).getCounts();
+		for (int bin = 0; bin < 1000; ++bin) {
+			assertEquals(counts[1000 + bin], histogram.getCount(bin));
+		}
+		
+		// whole grey values per bin
+		histogram = Histogram3D.computeAdaptive(image, 64, pool);
+		assertEquals(63, histogram.getNumberOfBins());
+		assertEquals(16.0, histogram.getBinWidth(), 0.0);
+		assertEquals(1015.0, histogram.toThreshold(0), 0.0);
+		assertEquals(7 * 64L * 48L,
+				histogram.getNumberOfVoxels());
+	}
+	
+	@Test
+	public void addsSlabHistograms() {
+		VoxelBuffer voxels = createStack(300, 4000, 9);
+		Histogram3D expected = Histogram3D.computeAdaptive(
+				new ImagePlus("stack", voxels.toImageStack()), 100, pool);
+		
+		double[] range = Histogram3D.computeRange(voxels, pool);
+		Histogram3D sum = null;
+		for (int zStart = 0; zStart < voxels.getZSize(); zStart += 4) {
+			int depth = Math.min(4, voxels.getZSize() - zStart);
+			VoxelBuffer slab = VoxelBuffer.create(16, voxels.getXSize(),
+					voxels.getYSize(), depth);
+			for (int z = 0; z < depth; ++z) {
+				System.arraycopy(voxels.getSlice(zStart + z), 0,
+						slab.getSlice(z), 0, voxels.getSliceSize());
+			}
+			Histogram3D slabHistogram = Histogram3D.computeAdaptive(slab,
+					range[0], range[1], 100, pool);
+			sum = sum == null ? slabHistogram : sum.plus(slabHistogram);
+		}
+		
+		assertArrayEquals(expected.getCounts(), sum.getCounts());
+		assertEquals(expected.getMinValue(), sum.getMinValue(), 0.0);
+		assertEquals(expected.getBinWidth(), sum.getBinWidth(), 0.0);
+		assertEquals(expected.getZeroCount(), sum.getZeroCount());
+	}
+	
+	/**
+	 * @return a 16-bit stack of random values from min to max (included),
+	 *         both present
+	 */
+	private static VoxelBuffer createStack(int min, int max, int zSize) {
+		Random random = new Random(min);
+		VoxelBuffer voxels = VoxelBuffer.create(16, 64, 48, zSize);
+		for (int z = 0; z < zSize; ++z) {
+			for (int i = 0; i < voxels.getSliceSize(); ++i) {
+				voxels.set(z, i, min + random.nextInt(max - min + 1));
+			}
+		}
+		voxels.set(0, 0, min);
+		voxels.set(zSize - 1, 0, max);
+		return voxels;
+	}
+}
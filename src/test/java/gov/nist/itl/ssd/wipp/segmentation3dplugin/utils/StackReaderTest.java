@@ -0,0 +1,182 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.OMETiffWriter;
+
+/**
+ * Reads OME-TIFF files written by Bio-Formats with StackReader and with
+ * BioFormatsUtils.readImage (BF.openImagePlus): both must give the same
+ * voxels, in either byte order.
+ */
+public class StackReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reads16BitLittleEndian() throws Exception {
+        assertSameAsBioFormats(FormatTools.UINT16, true, 1);
+    }
+
+    @Test
+    public void reads16BitBigEndian() throws Exception {
+        assertSameAsBioFormats(FormatTools.UINT16, false, 1);
+    }
+
+    @Test
+    public void readsFloatLittleEndian() throws Exception {
+        assertSameAsBioFormats(FormatTools.FLOAT, true, 1);
+    }
+
+    @Test
+    public void readsFloatBigEndian() throws Exception {
+        assertSameAsBioFormats(FormatTools.FLOAT, false, 1);
+    }
+
+    @Test
+    public void readsFirstChannel() throws Exception {
+        assertSameAsBioFormats(FormatTools.UINT16, false, 2);
+        assertSameAsBioFormats(FormatTools.FLOAT, true, 3);
+    }
+
+    /**
+     * Writes a random stack and checks that StackReader reads the planes
+     * of its first channel as written, as BioFormatsUtils.readImage does
+     */
+    private void assertSameAsBioFormats(int pixelType, boolean littleEndian,
+            int sizeC) throws Exception {
+        int xSize = 37;
+        int ySize = 23;
+        int zSize = 5;
+        Random random = new Random(31 * pixelType + sizeC);
+        // planes in XYZCT order
+        Object[] planes = new Object[zSize * sizeC];
+        for (int i = 0; i < planes.length; ++i) {
+            planes[i] = pixelType == FormatTools.UINT16
+                    ? randomShorts(xSize * ySize, random)
+                    : randomFloats(xSize * ySize, random);
+        }
+        File file = new File(folder.getRoot(), (littleEndian ? "le" : "be")
+                + sizeC + FormatTools.getPixelTypeString(pixelType)
+                + ".ome.tif");
+        write(file, pixelType, littleEndian, xSize, ySize, zSize, sizeC,
+                planes);
+        assertEquals(littleEndian ? 'I' : 'M', readFirstByte(file));
+
+        ImagePlus expected = BioFormatsUtils.readImage(file.getPath());
+        assertNotNull(expected);
+        ImagePlus actual;
+        try (StackReader reader = new StackReader(file)) {
+            assertTrue(reader.isSupported());
+            actual = reader.readImage(file.getName());
+        }
+
+        assertEquals(expected.getBitDepth(), actual.getBitDepth());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getNSlices(), actual.getImageStackSize());
+        assertEquals(zSize, actual.getImageStackSize());
+        for (int z = 0; z < zSize; ++z) {
+            Object plane = actual.getStack().getPixels(z + 1);
+            assertPlaneEquals(expected.getStack().getPixels(
+                    expected.getStackIndex(1, z + 1, 1)), plane);
+            assertPlaneEquals(planes[z], plane);
+        }
+    }
+
+    private static void write(File file, int pixelType, boolean littleEndian,
+            int xSize, int ySize, int zSize, int sizeC, Object[] planes)
+            throws Exception {
+        OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+        MetadataTools.populateMetadata(metadata, 0, file.getName(),
+                littleEndian, "XYZCT",
+                FormatTools.getPixelTypeString(pixelType), xSize, ySize,
+                zSize, sizeC, 1, 1);
+        try (OMETiffWriter writer = new OMETiffWriter()) {
+            writer.setMetadataRetrieve(metadata);
+            writer.setId(file.getPath());
+            for (int i = 0; i < planes.length; ++i) {
+                writer.saveBytes(i, toBytes(planes[i], littleEndian));
+            }
+        }
+    }
+
+    private static byte[] toBytes(Object plane, boolean littleEndian) {
+        ByteBuffer bytes;
+        if (plane instanceof short[]) {
+            short[] shorts = (short[]) plane;
+            bytes = ByteBuffer.allocate(2 * shorts.length);
+            bytes.order(littleEndian
+                    ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN)
+                    .asShortBuffer().put(shorts);
+        } else {
+            float[] floats = (float[]) plane;
+            bytes = ByteBuffer.allocate(4 * floats.length);
+            bytes.order(littleEndian
+                    ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN)
+                    .asFloatBuffer().put(floats);
+        }
+        return bytes.array();
+    }
+
+    private static short[] randomShorts(int length, Random random) {
+        short[] values = new short[length];
+        for (int i = 0; i < length; ++i) {
+            // the whole unsigned range, so that both bytes differ
+            values[i] = (short) random.nextInt(65536);
+        }
+        return values;
+    }
+
+    private static float[] randomFloats(int length, Random random) {
+        float[] values = new float[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = (float) (random.nextGaussian() * 1000.0);
+        }
+        return values;
+    }
+
+    private static char readFirstByte(File file) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            return (char) input.read();
+        }
+    }
+
+    private static void assertPlaneEquals(Object expected, Object actual) {
+        if (expected instanceof short[]) {
+            assertArrayEquals((short[]) expected, (short[]) actual);
+        } else {
+            assertArrayEquals((float[]) expected, (float[]) actual, 0.0f);
+        }
+    }
+}
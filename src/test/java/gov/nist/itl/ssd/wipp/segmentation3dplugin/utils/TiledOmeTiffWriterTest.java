@@ -0,0 +1,271 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by employees of the Federal Government in the course of
+ * their official duties. Pursuant to title 17 Section 105 of the United
+ * States Code this software is not subject to copyright protection and is
+ * in the public domain. This software is an experimental system. NIST assumes
+ * no responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or
+ * any other characteristic. We would appreciate acknowledgement if the
+ * software is used.
+ */
+package gov.nist.itl.ssd.wipp.segmentation3dplugin.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import ome.xml.model.enums.PixelType;
+
+/**
+ * Writes stacks with TiledOmeTiffWriter and reads them back with Bio-Formats:
+ * the planes, the pixel type and the OME sizes must survive the round trip.
+ */
+public class TiledOmeTiffWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void writesLzwMask() throws Exception {
+        byte[][] planes = createMasks(64, 48, 3, new Random(1));
+        File file = write(new TiledOmeTiffWriter(32,
+                TiledOmeTiffWriter.LZW_COMPRESSION, pool),
+                64, 48, planes, false);
+
+        assertArrayEquals(toValues(planes),
+                readBack(file, FormatTools.UINT8, 64, 48, 3));
+    }
+
+    @Test
+    public void writesForcedBigTiff() throws Exception {
+        byte[][] planes = createMasks(40, 24, 5, new Random(2));
+        TiledOmeTiffWriter writer = new TiledOmeTiffWriter(16,
+                TiledOmeTiffWriter.LZW_COMPRESSION, pool);
+        writer.setBigTiff(true);
+        File file = write(writer, 40, 24, planes, false);
+
+        // little-endian BigTIFF magic number
+        assertArrayEquals(new byte[] { 'I', 'I', 43, 0 }, readHeader(file));
+        assertArrayEquals(toValues(planes),
+                readBack(file, FormatTools.UINT8, 40, 24, 5));
+    }
+
+    @Test
+    public void writesImageNotMultipleOfTileSize() throws Exception {
+        // partial tiles on the right and bottom edges, in several batches of
+        // planes
+        byte[][] planes = createMasks(100, 37, 9, new Random(3));
+        File file = write(new TiledOmeTiffWriter(32,
+                TiledOmeTiffWriter.LZW_COMPRESSION, pool),
+                100, 37, planes, false);
+
+        assertArrayEquals(new byte[] { 'I', 'I', 42, 0 }, readHeader(file));
+        assertArrayEquals(toValues(planes),
+                readBack(file, FormatTools.UINT8, 100, 37, 9));
+    }
+
+    @Test
+    public void writesPackBitsBilevelMask() throws Exception {
+        // rows of 70 bits, not a whole number of bytes within the last tile
+        byte[][] planes = createMasks(70, 50, 4, new Random(4));
+        File file = write(new TiledOmeTiffWriter(32,
+                TiledOmeTiffWriter.PACKBITS_COMPRESSION, pool),
+                70, 50, planes, true);
+
+        // the reader may expand the bits to 0/1 or 0/255
+        assertArrayEquals(toBinary(toValues(planes)),
+                toBinary(readBack(file, FormatTools.BIT, 70, 50, 4)));
+    }
+
+    @Test
+    public void writes16BitLabels() throws Exception {
+        Random random = new Random(5);
+        short[][] planes = new short[3][60 * 20];
+        for (short[] plane : planes) {
+            for (int i = 0; i < plane.length; ++i) {
+                // the largest labels have the sign bit set
+                plane[i] = random.nextInt(4) == 0 ? 0
+                        : (short) (65535 - random.nextInt(1000));
+            }
+        }
+        File file = write(new TiledOmeTiffWriter(32,
+                TiledOmeTiffWriter.LZW_COMPRESSION, pool),
+                60, 20, planes, false);
+
+        assertArrayEquals(toValues(planes),
+                readBack(file, FormatTools.UINT16, 60, 20, 3));
+    }
+
+    @Test
+    public void writes32BitLabelsFromFloatPlanes() throws Exception {
+        Random random = new Random(6);
+        float[][] planes = new float[3][45 * 33];
+        for (float[] plane : planes) {
+            for (int i = 0; i < plane.length; ++i) {
+                // labels past 65535, and past 2^24 in all 4 bytes (multiples
+                // of 256, exact in a float)
+                plane[i] = random.nextInt(4) == 0 ? 0
+                        : random.nextBoolean() ? 65536 + random.nextInt(1 << 23)
+                        : (float) (random.nextInt(1 << 23) << 8);
+            }
+        }
+        File file = write(new TiledOmeTiffWriter(32,
+                TiledOmeTiffWriter.LZW_COMPRESSION, pool),
+                45, 33, planes, false);
+
+        assertArrayEquals(toValues(planes),
+                readBack(file, FormatTools.UINT32, 45, 33, 3));
+    }
+
+    /**
+     * @return random masks (0/255) with runs of foreground voxels
+     */
+    private static byte[][] createMasks(int xSize, int ySize, int zSize,
+            Random random) {
+        byte[][] planes = new byte[zSize][xSize * ySize];
+        for (byte[] plane : planes) {
+            for (int i = 0; i < plane.length; ++i) {
+                boolean previous = i > 0 && plane[i - 1] != 0;
+                boolean set = random.nextInt(8) == 0 ? !previous : previous;
+                plane[i] = set ? (byte) 255 : 0;
+            }
+        }
+        return planes;
+    }
+
+    private File write(TiledOmeTiffWriter writer, int xSize, int ySize,
+            Object[] planes, boolean bilevel) throws IOException {
+        File file = new File(folder.getRoot(), "stack.ome.tif");
+        OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+        MetadataTools.populateMetadata(metadata, 0, "stack", true, "XYZCT",
+                FormatTools.getPixelTypeString(FormatTools.UINT8), xSize,
+                ySize, planes.length, 1, 1, 1);
+        long size = writer.write(file, metadata, xSize, ySize, planes.length,
+                z -> planes[z], bilevel);
+        assertEquals(file.length(), size);
+        return file;
+    }
+
+    private static byte[] readHeader(File file) throws IOException {
+        byte[] header = new byte[4];
+        try (FileInputStream input = new FileInputStream(file)) {
+            assertEquals(header.length, input.read(header));
+        }
+        return header;
+    }
+
+    /**
+     * Reads a file with Bio-Formats and checks its pixel type and sizes, as
+     * seen by the reader and in the OME metadata
+     *
+     * @return the voxel values of each plane
+     */
+    static long[][] readBack(File file, int pixelType, int xSize, int ySize,
+            int zSize) throws Exception {
+        OMEXMLMetadata metadata = BioFormatsUtils.createMetadata();
+        try (ImageReader reader = new ImageReader()) {
+            reader.setMetadataStore(metadata);
+            reader.setId(file.getPath());
+
+            assertEquals(pixelType, reader.getPixelType());
+            assertEquals(xSize, reader.getSizeX());
+            assertEquals(ySize, reader.getSizeY());
+            assertEquals(zSize, reader.getSizeZ());
+            assertEquals(1, reader.getSizeC());
+            assertEquals(1, reader.getSizeT());
+            assertEquals(zSize, reader.getImageCount());
+
+            assertEquals(PixelType.fromString(
+                    FormatTools.getPixelTypeString(pixelType)),
+                    metadata.getPixelsType(0));
+            assertEquals(xSize, metadata.getPixelsSizeX(0).getValue()
+                    .intValue());
+            assertEquals(ySize, metadata.getPixelsSizeY(0).getValue()
+                    .intValue());
+            assertEquals(zSize, metadata.getPixelsSizeZ(0).getValue()
+                    .intValue());
+            assertEquals(1, metadata.getPixelsSizeC(0).getValue().intValue());
+            assertEquals(1, metadata.getPixelsSizeT(0).getValue().intValue());
+
+            int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+            boolean littleEndian = reader.isLittleEndian();
+            long[][] planes = new long[zSize][xSize * ySize];
+            for (int z = 0; z < zSize; ++z) {
+                byte[] bytes = reader.openBytes(reader.getIndex(z, 0, 0));
+                for (int i = 0; i < planes[z].length; ++i) {
+                    long value = 0;
+                    for (int b = 0; b < bytesPerPixel; ++b) {
+                        int shift = 8 * (littleEndian
+                                ? b : bytesPerPixel - 1 - b);
+                        value |= (bytes[i * bytesPerPixel + b] & 0xffL)
+                                << shift;
+                    }
+                    planes[z][i] = value;
+                }
+            }
+            return planes;
+        }
+    }
+
+    private static long[][] toBinary(long[][] values) {
+        long[][] binary = new long[values.length][];
+        for (int z = 0; z < values.length; ++z) {
+            binary[z] = new long[values[z].length];
+            for (int i = 0; i < values[z].length; ++i) {
+                binary[z][i] = values[z][i] != 0 ? 1 : 0;
+            }
+        }
+        return binary;
+    }
+
+    /**
+     * @return the voxel values of 8-bit, 16-bit or float planes
+     */
+    static long[][] toValues(Object[] planes) {
+        long[][] values = new long[planes.length][];
+        for (int z = 0; z < planes.length; ++z) {
+            if (planes[z] instanceof byte[]) {
+                byte[] plane = (byte[]) planes[z];
+                values[z] = new long[plane.length];
+                for (int i = 0; i < plane.length; ++i) {
+                    values[z][i] = plane[i] & 0xff;
+                }
+            } else if (planes[z] instanceof short[]) {
+                short[] plane = (short[]) planes[z];
+                values[z] = new long[plane.length];
+                for (int i = 0; i < plane.length; ++i) {
+                    values[z][i] = plane[i] & 0xffff;
+                }
+            } else {
+                float[] plane = (float[]) planes[z];
+                values[z] = new long[plane.length];
+                for (int i = 0; i < plane.length; ++i) {
+                    values[z][i] = (long) plane[i];
+                }
+            }
+        }
+        return values;
+    }
+}